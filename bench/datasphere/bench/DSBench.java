@@ -0,0 +1,122 @@
+package datasphere.bench;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Times a piece of work, and counts the bytes it allocates, for the
+ * benchmarks in this package. Each measurement runs a number of warm-up
+ * rounds, which are discarded, and then reports the best of the timed
+ * rounds, per operation. Allocation is read from the JVM's per-thread
+ * counter where it offers one, and is reported as unknown otherwise. <br/>
+ * <br/>
+ * The benchmarks live outside the src tree, so are never shipped. They are
+ * built and run with "ant bench -Dbench.class=...".
+ *
+ * @author James Goulding
+ * @version 2010-12-20
+ */
+public class DSBench {
+
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int TIMED_ROUNDS = 5;
+
+	//-- the number of times each measurement runs its rounds of iterations
+	public static final int ROUNDS = WARMUP_ROUNDS + TIMED_ROUNDS;
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	//-- holds the latest result, so the work cannot be optimised away
+	private static volatile Object sink = null;
+
+	/**
+	 * A piece of work to be measured. Whatever it returns is kept, so the
+	 * work done to produce it cannot be skipped.
+	 */
+	public interface Task {
+		public Object run() throws Exception;
+	}
+
+	//////////////////////////////////
+
+	/**
+	 * Runs the task the supplied number of times per round, and prints its
+	 * best time and allocation per operation.
+	 * @param label 		Names the measurement in the report.
+	 * @param iterations 	The number of times the task is run per round.
+	 * @param task 			The work to be measured.
+	 */
+	public static void measure( String label, int iterations, Task task )
+	throws Exception {
+
+		long bestTime = Long.MAX_VALUE;
+		long bestAlloc = Long.MAX_VALUE;
+
+		for ( int r = 0; r < WARMUP_ROUNDS + TIMED_ROUNDS; r++ ) {
+			long a0 = allocated();
+			long t0 = System.nanoTime();
+			for ( int i = 0; i < iterations; i++ ) {
+				sink = task.run();
+			}
+			long t1 = System.nanoTime();
+			long a1 = allocated();
+
+			if ( r < WARMUP_ROUNDS ) continue;
+			bestTime = Math.min( bestTime, t1 - t0 );
+			if ( a0 >= 0 && a1 >= 0 )
+				bestAlloc = Math.min( bestAlloc, a1 - a0 );
+		}
+
+		String alloc = ( bestAlloc == Long.MAX_VALUE ) ? "unknown" : bytes( bestAlloc / iterations );
+		System.out.println( String.format( "  %-36s %10.2fus %12s", label, bestTime / 1e3 / iterations, alloc ) );
+	}
+
+	//////////////////////////////////
+
+	/**
+	 * @return int The number of iterations asked for by the argument at the
+	 * supplied position, or the default if there is no such argument.
+	 */
+	public static int iterations( String[] args, int position, int defaultIterations ) {
+		return ( args.length > position ) ? Integer.parseInt( args[ position ] ) : defaultIterations;
+	}
+
+	//////////////////////////////////
+
+	public static String bytes( long n ) {
+		if ( n < 1024 ) return n + " B";
+		if ( n < 1024 * 1024 ) return String.format( "%.1f KB", n / 1024.0 );
+		return String.format( "%.1f MB", n / ( 1024.0 * 1024.0 ) );
+	}
+
+	//////////////////////////////////
+
+	/**
+	 * @return long The bytes allocated by the current thread so far, or -1 if
+	 * the JVM does not count them.
+	 */
+	private static long allocated() {
+
+		if ( !( threads instanceof com.sun.management.ThreadMXBean ) ) return -1;
+		com.sun.management.ThreadMXBean counter = ( com.sun.management.ThreadMXBean ) threads;
+		if ( !counter.isThreadAllocatedMemorySupported() || !counter.isThreadAllocatedMemoryEnabled() ) return -1;
+		return counter.getThreadAllocatedBytes( Thread.currentThread().getId() );
+	}
+}
@@ -0,0 +1,105 @@
+package datasphere.bench;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import datasphere.dataware.DSUpdate;
+
+/**
+ * Measures what decoding tags and meta data lazily saves when a page of
+ * history is read. Each row holds three tags and four meta entries, as
+ * JSON text, and a page is built from the rows three ways:
+ * <ul>
+ * <li>eagerly, decoding both columns as each update is built, as readUpdate
+ * did before;</li>
+ * <li>lazily, with the text handed back unread, as when a page is re-bound
+ * to a statement or copied into the recent history;</li>
+ * <li>lazily, with every update's tags and meta then asked for, which is the
+ * most lazy decoding can cost.</li>
+ * </ul>
+ * Usage: DSLazyDecodeBench [updates per round]
+ *
+ * @author James Goulding
+ * @version 2010-12-20
+ */
+public class DSLazyDecodeBench {
+
+	private static final String TAGS = "[\"social\",\"status\",\"friend\"]";
+	private static final String META = "{\"user\":\"john\",\"id\":\"1234567890\"," +
+		"\"link\":\"http://www.facebook.com/john/posts/1234\",\"likes\":\"12\"}";
+
+	private static final int[] PAGE_SIZES = { 10, 1000 };
+
+	//////////////////////////////////
+
+	public static void main( String[] args )
+	throws Exception {
+
+		int iterations = DSBench.iterations( args, 0, 100000 );
+
+		for ( final int size : PAGE_SIZES ) {
+			int pages = Math.max( 1, iterations / size );
+			System.out.println( "--- DSLazyDecodeBench: page of " + size + ", " + pages + " pages per round" );
+
+			DSBench.measure( "eager", pages, new DSBench.Task() {
+				public Object run() throws Exception {
+					ArrayList< DSUpdate > page = new ArrayList< DSUpdate >( size );
+					for ( int i = 0; i < size; i++ ) {
+						DSUpdate u = new DSUpdate( "fb@datasphere.org", "ds:update" );
+						u.setTags( new JSONArray( TAGS ) );
+						u.setMeta( new JSONObject( META ) );
+						page.add( u );
+					}
+					return page;
+				}
+			} );
+
+			DSBench.measure( "lazy, passed on", pages, new DSBench.Task() {
+				public Object run() throws Exception {
+					ArrayList< DSUpdate > page = new ArrayList< DSUpdate >( size );
+					for ( int i = 0; i < size; i++ ) {
+						DSUpdate u = new DSUpdate( "fb@datasphere.org", "ds:update" );
+						u.setTagsJSON( TAGS ).setMetaJSON( META );
+						u.getTagsJSON();
+						u.getMetaJSON();
+						page.add( u );
+					}
+					return page;
+				}
+			} );
+
+			DSBench.measure( "lazy, all decoded", pages, new DSBench.Task() {
+				public Object run() throws Exception {
+					ArrayList< DSUpdate > page = new ArrayList< DSUpdate >( size );
+					for ( int i = 0; i < size; i++ ) {
+						DSUpdate u = new DSUpdate( "fb@datasphere.org", "ds:update" );
+						u.setTagsJSON( TAGS ).setMetaJSON( META );
+						u.getTags();
+						u.getMeta();
+						page.add( u );
+					}
+					return page;
+				}
+			} );
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package datasphere.bench;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import org.json.JSONObject;
+
+import datasphere.dataware.DSUpdate;
+import datasphere.dataware.DSUpdateParser;
+
+/**
+ * Compares the streaming parse of an incoming update message with the
+ * JSONObject and fromJSON path the listener used before, on a typical
+ * message with tags, meta data and a location. Before timing, the message
+ * is parsed both ways and the results printed, so that it can be seen that
+ * both read the same update. They differ only in the location, which
+ * fromJSON truncated and swapped. <br/>
+ * <br/>
+ * Usage: DSParseBench [iterations]
+ *
+ * @author James Goulding
+ * @version 2010-12-20
+ */
+public class DSParseBench {
+
+	static final String BODY =
+		"{\"namespace\":\"http://www.facebook.com\",\"primaryTag\":\"facebook:status\"," +
+		"\"tags\":[\"social\",\"status\",\"friend\"],\"ctime\":1292845123000,\"ftime\":1292845124000," +
+		"\"sid\":\"fb@datasphere.org\",\"crud\":\"create\"," +
+		"\"description\":\"John updated his status: \\\"off to the pub\\\"\",\"total\":42," +
+		"\"meta\":{\"user\":\"john\",\"id\":\"1234567890\",\"link\":\"http://www.facebook.com/john/posts/1234\"}," +
+		"\"loc\":{\"lat\":52.95,\"lon\":-1.18}}";
+
+	//////////////////////////////////
+
+	public static void main( String[] args )
+	throws Exception {
+
+		int iterations = DSBench.iterations( args, 0, 200000 );
+
+		System.out.println( "--- DSParseBench: " + BODY.length() + " character update, " + iterations + " per round" );
+		System.out.println( "  streaming: " + DSUpdateParser.parse( BODY ).toJSON() );
+		System.out.println( "  org.json:  " + new DSUpdate( new JSONObject( BODY ) ).toJSON() );
+
+		DSBench.measure( "streaming parser", iterations, new DSBench.Task() {
+			public Object run() throws Exception {
+				return DSUpdateParser.parse( BODY );
+			}
+		} );
+
+		DSBench.measure( "JSONObject and fromJSON", iterations, new DSBench.Task() {
+			public Object run() throws Exception {
+				return new DSUpdate( new JSONObject( BODY ) );
+			}
+		} );
+	}
+}
@@ -0,0 +1,211 @@
+package datasphere.bench;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+import datasphere.catalog.DSPayloadCodec;
+import datasphere.catalog.DSTagDictionary;
+import datasphere.dataware.DSUpdate;
+
+/**
+ * Compares the binary payload encoding of an update's tags, meta data and
+ * location with the three JSON text columns it replaces, for the stored
+ * size and for the cost of writing and reading them. Three kinds of update
+ * are measured: a typical one, one with many recurring tags and meta keys,
+ * and one carrying a long meta value, which is deflated. <br/>
+ * <br/>
+ * The payload is measured both with every recurring string already
+ * numbered by the dictionary, as in a catalog that has run for a while,
+ * and with none numbered, as just after the dictionary is created. The
+ * dictionary is held in memory here, so no database is needed. JSON reads
+ * decode every field, as the binary payload always does. <br/>
+ * <br/>
+ * Usage: DSPayloadBench [iterations]
+ *
+ * @author James Goulding
+ * @version 2010-12-20
+ */
+public class DSPayloadBench {
+
+	//-- the catalog's default UPDATE_PAYLOAD_DEFLATE_THRESHOLD
+	private static final int DEFLATE_THRESHOLD = 256;
+
+	//////////////////////////////////
+
+	public static void main( String[] args )
+	throws Exception {
+
+		int iterations = DSBench.iterations( args, 0, 100000 );
+
+		DSPayloadCodec warm = new DSPayloadCodec( new MemoryDictionary( true ), DEFLATE_THRESHOLD );
+		DSPayloadCodec cold = new DSPayloadCodec( new MemoryDictionary( false ), DEFLATE_THRESHOLD );
+
+		measure( "typical", typical(), warm, cold, iterations );
+		measure( "many tags", manyTags(), warm, cold, iterations );
+		measure( "long meta", longMeta(), warm, cold, iterations );
+	}
+
+	//////////////////////////////////
+
+	private static void measure( String name, final DSUpdate u, final DSPayloadCodec warm, DSPayloadCodec cold, int iterations )
+	throws Exception {
+
+		final String tags = u.getTagsJSON();
+		final String meta = u.getMetaJSON();
+		final String loc = u.getLocationJSON();
+		int json = utf8( tags ) + utf8( meta ) + utf8( loc );
+
+		final byte[] payload = warm.encode( u );
+		int coldSize = cold.encode( u ).length;
+
+		System.out.println( "--- DSPayloadBench: " + name + " update, " + iterations + " per round" );
+		System.out.println( String.format( "  stored: json %d B, payload %d B (%d B before any string is numbered)",
+			json, payload.length, coldSize ) );
+
+		DSBench.measure( "json write", iterations, new DSBench.Task() {
+			public Object run() throws Exception {
+				return length( u.getTagsJSON() ) + length( u.getMetaJSON() ) + length( u.getLocationJSON() );
+			}
+		} );
+
+		DSBench.measure( "payload write", iterations, new DSBench.Task() {
+			public Object run() throws Exception {
+				return warm.encode( u );
+			}
+		} );
+
+		DSBench.measure( "json read", iterations, new DSBench.Task() {
+			public Object run() throws Exception {
+				DSUpdate r = new DSUpdate( "fb@datasphere.org", "ds:update" );
+				r.setTagsJSON( tags ).setMetaJSON( meta );
+				if ( loc != null ) {
+					JSONObject l = new JSONObject( loc );
+					r.setLocation( l.getDouble( "lat" ), l.getDouble( "lon" ) );
+				}
+				r.getTags();
+				r.getMeta();
+				return r;
+			}
+		} );
+
+		DSBench.measure( "payload read", iterations, new DSBench.Task() {
+			public Object run() throws Exception {
+				DSUpdate r = new DSUpdate( "fb@datasphere.org", "ds:update" );
+				warm.decode( payload, r );
+				return r;
+			}
+		} );
+	}
+
+	//////////////////////////////////
+
+	private static DSUpdate typical()
+	throws Exception {
+
+		DSUpdate u = new DSUpdate( "fb@datasphere.org", "facebook:status", "create" );
+		u.addTag( "social" ).addTag( "status" ).addTag( "friend" );
+		u.addMetadata( "user", "john" );
+		u.addMetadata( "id", "1234567890" );
+		u.addMetadata( "link", "http://www.facebook.com/john/posts/1234" );
+		u.setLocation( 52.95, -1.18 );
+		return u;
+	}
+
+	//////////////////////////////////
+
+	private static DSUpdate manyTags()
+	throws Exception {
+
+		DSUpdate u = new DSUpdate( "lastfm@datasphere.org", "lastfm:scrobble", "create" );
+		for ( int i = 0; i < 20; i++ )
+			u.addTag( "genre:" + i );
+		for ( int i = 0; i < 10; i++ )
+			u.addMetadata( "field" + i, "value " + i );
+		return u;
+	}
+
+	//////////////////////////////////
+
+	private static DSUpdate longMeta()
+	throws Exception {
+
+		StringBuilder text = new StringBuilder();
+		for ( int i = 0; i < 40; i++ )
+			text.append( "Sentence " ).append( i ).append( " of a long post, as written by the user. " );
+
+		DSUpdate u = new DSUpdate( "blog@datasphere.org", "blog:post", "create" );
+		u.addTag( "blog" ).addTag( "post" );
+		u.addMetadata( "title", "A long post" );
+		u.addMetadata( "body", text.toString() );
+		return u;
+	}
+
+	//////////////////////////////////
+
+	private static int length( String s ) {
+		return ( s == null ) ? 0 : s.length();
+	}
+
+	//////////////////////////////////
+
+	private static int utf8( String s )
+	throws Exception {
+		return ( s == null ) ? 0 : s.getBytes( "UTF-8" ).length;
+	}
+
+	//////////////////////////////////
+
+	/**
+	 * A dictionary held only in memory, which numbers each string the first
+	 * time it is seen, or never numbers any.
+	 */
+	private static class MemoryDictionary extends DSTagDictionary {
+
+		private final boolean numbering;
+		private final AtomicInteger next = new AtomicInteger();
+		private final ConcurrentHashMap< String, Integer > ids = new ConcurrentHashMap< String, Integer >();
+		private final ConcurrentHashMap< Integer, String > terms = new ConcurrentHashMap< Integer, String >();
+
+		public MemoryDictionary( boolean numbering ) {
+			super( null, null, Integer.MAX_VALUE );
+			this.numbering = numbering;
+		}
+
+		@Override
+		public int idOf( String term ) {
+
+			if ( !numbering ) return -1;
+			Integer id = ids.get( term );
+			if ( id == null ) {
+				id = next.incrementAndGet();
+				ids.put( term, id );
+				terms.put( id, term );
+			}
+			return id;
+		}
+
+		@Override
+		public String termOf( int id ) {
+			return terms.get( id );
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package datasphere.bench;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gson.GsonBuilder;
+
+import datasphere.dataware.DSUpdate;
+import datasphere.dataware.DSUpdateParser;
+import datasphere.dataware.DSUpdateSerializer;
+
+/**
+ * Compares DSUpdateSerializer with the way updates were written before:
+ * JSON through a Gson built for every call, and XML grown with += in loops.
+ * The old code is kept here, as it was, to serve as the baseline. Before
+ * timing, each output is checked against its baseline, and whether they
+ * match is printed. <br/>
+ * <br/>
+ * Usage: DSSerializeBench [iterations]
+ *
+ * @author James Goulding
+ * @version 2010-12-20
+ */
+public class DSSerializeBench {
+
+	//////////////////////////////////
+
+	public static void main( String[] args )
+	throws Exception {
+
+		int iterations = DSBench.iterations( args, 0, 200000 );
+		final DSUpdate u = DSUpdateParser.parse( DSParseBench.BODY );
+		final StringBuilder builder = new StringBuilder( 1024 );
+		final ByteBuffer buffer = ByteBuffer.allocate( 4096 );
+
+		System.out.println( "--- DSSerializeBench: typical update, " + iterations + " per round" );
+		System.out.println( "  json matches gson: " + u.toJSON().equals( gsonJSON( u ) ) );
+		System.out.println( "  xml matches old:   " + u.toXML().equals( concatenatedXML( u ) ) );
+
+		DSBench.measure( "gson toJson", iterations, new DSBench.Task() {
+			public Object run() throws Exception {
+				return gsonJSON( u );
+			}
+		} );
+
+		DSBench.measure( "toJSON", iterations, new DSBench.Task() {
+			public Object run() throws Exception {
+				return u.toJSON();
+			}
+		} );
+
+		DSBench.measure( "writeJSON, reused builder", iterations, new DSBench.Task() {
+			public Object run() throws Exception {
+				builder.setLength( 0 );
+				DSUpdateSerializer.writeJSON( u, builder );
+				return builder;
+			}
+		} );
+
+		DSBench.measure( "writeJSON, reused ByteBuffer", iterations, new DSBench.Task() {
+			public Object run() throws Exception {
+				buffer.clear();
+				DSUpdateSerializer.writeJSON( u, buffer );
+				return buffer;
+			}
+		} );
+
+		DSBench.measure( "concatenated toXML", iterations, new DSBench.Task() {
+			public Object run() throws Exception {
+				return concatenatedXML( u );
+			}
+		} );
+
+		DSBench.measure( "toXML", iterations, new DSBench.Task() {
+			public Object run() throws Exception {
+				return u.toXML();
+			}
+		} );
+	}
+
+	//////////////////////////////////
+
+	/**
+	 * The JSON, as toJSON wrote it before.
+	 */
+	private static String gsonJSON( DSUpdate u ) {
+
+		//-- decode any stored text first, as gson only sees the decoded fields
+		u.getTags();
+		u.getMeta();
+		return new GsonBuilder().create().toJson( u );
+	}
+
+	//////////////////////////////////
+
+	/**
+	 * The XML, as toXML wrote it before.
+	 */
+	private static String concatenatedXML( DSUpdate u ) {
+
+		DSUpdate.Coordinate loc = u.getLocation();
+		HashMap< String, String > meta = u.getMeta();
+		ArrayList< String > tags = u.getTags();
+
+		String locString = ( loc == null ) ? "" : "<loc><lon>" + loc.getLon() + "</lon><lat>" + loc.getLat() + "</lat></loc>";
+
+		String metaXML = "";
+		if ( meta != null ) {
+			metaXML = "<meta>";
+			for ( Map.Entry< String, String > e : meta.entrySet() )
+				metaXML += "<" + e.getKey() + ">" + e.getValue() + "</" + e.getKey() + ">";
+			metaXML += "</meta>";
+		}
+
+		String tagsXML = "";
+		if ( tags != null ) {
+			for ( String e : tags )
+				tagsXML += "<tag>" + e + "</tag>";
+		}
+
+		return "<DSUpdate>" +
+			"<namespace>" + u.getNamespace() + "</namespace>" +
+			"<primaryTag>" + u.getPrimaryTag() + "</primaryTag>" +
+			"<description>" + u.getDescription() + "</description>" +
+			"<crud>" + u.getCrud() + "</crud>" +
+			"<ctime>" + u.getCtime() + "</ctime>" +
+			"<ftime>" + u.getFtime() + "</ftime>" +
+			"<rtime>" + u.getRtime() + "</rtime>" +
+			"<total>" + u.getTotal() + "</total>" +
+			locString + tagsXML + metaXML +
+			"</DSUpdate>";
+	}
+}
@@ -0,0 +1,220 @@
+package datasphere.bench;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import datasphere.catalog.DSConnectionPool;
+import datasphere.catalog.DSPooledConnection;
+
+/**
+ * Measures what caching prepared statements saves on the history page
+ * query, against a live catalog database. The same page is read three ways:
+ * <ul>
+ * <li>as a plain statement with the jid written into the SQL, as every query
+ * was before statements were cached, so MySQL parses each one;</li>
+ * <li>through a server-side prepared statement prepared afresh each time;</li>
+ * <li>through the connection's statement cache, as DSDataManager now reads it.</li>
+ * </ul>
+ * Alongside the time per page, the number of statements MySQL parsed per
+ * page is reported, from its own session counters: every statement
+ * prepared (Com_stmt_prepare), and every select not run as a prepared
+ * statement (Com_select less Com_stmt_execute). <br/>
+ * <br/>
+ * Usage: DSStatementBench jdbc-url user password jid [iterations]
+ *
+ * @author James Goulding
+ * @version 2010-12-20
+ */
+public class DSStatementBench {
+
+	private static final String DB = "datasphere";
+	private static final String UPDATES_TABLE = "ds_sys_updates";
+	private static final int PAGE_SIZE = 20;
+
+	//-- the history page query, as issued by DSDataManager.fetchUpdates
+	private static final String PAGE_QUERY =
+		"SELECT * FROM " + DB + "." + UPDATES_TABLE + " WHERE jid=? " +
+		"ORDER BY ctime DESC, rtime DESC, sid DESC LIMIT ? OFFSET ?";
+
+	//////////////////////////////////
+
+	public static void main( String[] args )
+	throws Exception {
+
+		if ( args.length < 4 ) {
+			System.err.println( "usage: DSStatementBench jdbc-url user password jid [iterations]" );
+			System.exit( 1 );
+		}
+
+		final String jid = args[ 3 ];
+		int iterations = DSBench.iterations( args, 4, 2000 );
+
+		DriverManager.registerDriver( new com.mysql.jdbc.Driver() );
+		Properties info = new Properties();
+		info.setProperty( "user", args[ 1 ] );
+		info.setProperty( "password", args[ 2 ] );
+		info.setProperty( "useServerPrepStmts", "true" );
+
+		DSConnectionPool pool = new DSConnectionPool( args[ 0 ], info );
+		pool.setMaxSize( 1 );
+		pool.setMinIdle( 1 );
+		pool.open();
+
+		final DSPooledConnection c = pool.borrow();
+		final Connection conn = c.getConnection();
+		try {
+			System.out.println( "--- DSStatementBench: history page of " + PAGE_SIZE + " for " + jid +
+				" (" + count( conn, jid ) + " rows), " + iterations + " pages per round" );
+
+			measure( conn, "plain statement", iterations, new DSBench.Task() {
+				public Object run() throws Exception {
+					Statement stmt = conn.createStatement();
+					try {
+						return read( stmt.executeQuery(
+							"SELECT * FROM " + DB + "." + UPDATES_TABLE + " WHERE jid='" + jid.replace( "'", "''" ) + "' " +
+							"ORDER BY ctime DESC, rtime DESC, sid DESC LIMIT " + PAGE_SIZE + " OFFSET 0" ) );
+					} finally {
+						stmt.close();
+					}
+				}
+			} );
+
+			measure( conn, "prepared per query", iterations, new DSBench.Task() {
+				public Object run() throws Exception {
+					PreparedStatement stmt = conn.prepareStatement( PAGE_QUERY );
+					try {
+						return read( bind( stmt, jid ).executeQuery() );
+					} finally {
+						stmt.close();
+					}
+				}
+			} );
+
+			measure( conn, "cached prepared", iterations, new DSBench.Task() {
+				public Object run() throws Exception {
+					return read( bind( c.prepare( PAGE_QUERY ), jid ).executeQuery() );
+				}
+			} );
+
+		} finally {
+			pool.release( c );
+			pool.close();
+		}
+	}
+
+	//////////////////////////////////
+
+	/**
+	 * Measures the task, then reports how many statements MySQL parsed per
+	 * page. Reading the counters costs a query of its own, which is measured
+	 * and taken off.
+	 */
+	private static void measure( Connection conn, String label, int iterations, DSBench.Task task )
+	throws Exception {
+
+		long p0 = parses( conn );
+		long p1 = parses( conn );
+		DSBench.measure( label, iterations, task );
+		long p2 = parses( conn );
+
+		double pages = iterations * ( double ) DSBench.ROUNDS;
+		System.out.println( String.format( "  %-36s %10.2f parses per page", "", ( p2 - p1 - ( p1 - p0 ) ) / pages ) );
+	}
+
+	//////////////////////////////////
+
+	private static PreparedStatement bind( PreparedStatement stmt, String jid )
+	throws SQLException {
+		stmt.setString( 1, jid );
+		stmt.setInt( 2, PAGE_SIZE );
+		stmt.setInt( 3, 0 );
+		return stmt;
+	}
+
+	//////////////////////////////////
+
+	/**
+	 * Reads every row of the page, as readUpdate would, and closes it.
+	 * @return Integer The number of rows read.
+	 */
+	private static Integer read( ResultSet rs )
+	throws SQLException {
+
+		int rows = 0;
+		try {
+			while ( rs.next() ) {
+				rs.getString( "sid" );
+				rs.getLong( "ctime" );
+				rs.getString( "tags" );
+				rows++;
+			}
+		} finally {
+			rs.close();
+		}
+		return rows;
+	}
+
+	//////////////////////////////////
+
+	private static long count( Connection conn, String jid )
+	throws SQLException {
+
+		PreparedStatement stmt = conn.prepareStatement( "SELECT COUNT(1) FROM " + DB + "." + UPDATES_TABLE + " WHERE jid=?" );
+		try {
+			stmt.setString( 1, jid );
+			ResultSet rs = stmt.executeQuery();
+			rs.next();
+			return rs.getLong( 1 );
+		} finally {
+			stmt.close();
+		}
+	}
+
+	//////////////////////////////////
+
+	/**
+	 * @return long The number of statements the session has had MySQL parse
+	 * so far: those prepared, and the selects not run as prepared statements.
+	 */
+	private static long parses( Connection conn )
+	throws SQLException {
+
+		long prepares = 0, executes = 0, selects = 0;
+		Statement stmt = conn.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery( "SHOW SESSION STATUS WHERE Variable_name IN " +
+				"( 'Com_stmt_prepare', 'Com_stmt_execute', 'Com_select' )" );
+			while ( rs.next() ) {
+				String name = rs.getString( 1 );
+				if ( name.equalsIgnoreCase( "Com_stmt_prepare" ) ) prepares = rs.getLong( 2 );
+				else if ( name.equalsIgnoreCase( "Com_stmt_execute" ) ) executes = rs.getLong( 2 );
+				else selects = rs.getLong( 2 );
+			}
+		} finally {
+			stmt.close();
+		}
+		return prepares + selects - executes;
+	}
+}
@@ -0,0 +1,42 @@
+package datasphere.catalog;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.List;
+
+import datasphere.dataware.DSUpdate;
+
+/**
+ * Callback through which {@link DSDataManager#ingestUpdates} reports a batch
+ * of updates that could not be recorded, so that whoever received it can let
+ * the sender know. As batches are written as one unit, none of its updates
+ * have been recorded. Where ingest is asynchronous the callback is made from
+ * a worker thread, some time after the batch was accepted.
+ *
+ * @author James Goulding
+ * @version 2010-12-20
+ */
+public interface DSBatchRejectionHandler {
+
+	/**
+	 * @param jid 		The user the batch was sent to.
+	 * @param sid 		The source that sent it.
+	 * @param batch 	The updates rejected.
+	 */
+	public void rejected( String jid, String sid, List< DSUpdate > batch );
+}
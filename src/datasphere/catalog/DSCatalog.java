@@ -19,6 +19,7 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Properties;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
@@ -37,6 +38,7 @@ import org.restlet.data.Protocol;
 import datasphere.catalog.http.DSWebServer;
 import datasphere.catalog.xmpp.DSChatServer;
 import datasphere.dataware.DSException;
+import datasphere.dataware.DSAsyncHandler;
 import datasphere.dataware.DSLogFormatter;
 
 
@@ -48,6 +50,8 @@ public final class DSCatalog {
 	
 	private static Logger logger = Logger.getLogger( DSCatalog.class.getName() );
 	private static Handler handler = new ConsoleHandler();   
+	private static DSAsyncHandler asyncHandler = null;
+	private static Level logLevel = Level.INFO;
 	
 	public static DSDataManager db = null;
 	private Properties config = null;
@@ -65,6 +69,8 @@ public final class DSCatalog {
 	
     private boolean systemWipe = false;
     private boolean systemCreate = false;
+    private boolean rebuildCounts = false;
+    private boolean encodePayloads = false;
     private boolean isRunning = false;
     
     ///////////////////////////////
@@ -80,15 +86,18 @@ public final class DSCatalog {
 	///////////////////////////////
 	
 	/**
-	 * setup log formatting
+	 * setup log formatting. Messages are written to the console by a
+	 * background thread, and only from INFO up unless a finer level is
+	 * asked for with -log-level.
 	 */
 	public void setupLogging() {
 
 	    handler.setFormatter( new DSLogFormatter() );
-	    handler.setLevel( Level.FINEST );
-	    logger.addHandler( handler );
+	    handler.setLevel( Level.INFO );
+	    asyncHandler = new DSAsyncHandler( handler );
+	    logger.addHandler( asyncHandler );
 	    logger.setUseParentHandlers( false );
-	    logger.setLevel( Level.FINEST );
+	    logger.setLevel( logLevel );
 	}
 	
 	///////////////////////////////
@@ -168,8 +177,24 @@ public final class DSCatalog {
 		try {
 			logger.info( "Establishing database connection and checking integrity..." );
 			db.setPassword( this.password );
+			db.configure( config );
 			db.connect();
 			
+			//-- make sure buffered updates reach the database on shutdown. the log
+			//-- manager's own hook may run first, detaching the log handler, so it
+			//-- is pinned open and put back until the queues have been drained
+			asyncHandler.pin();
+			Runtime.getRuntime().addShutdownHook( new Thread( "DSCatalog-shutdown" ) {
+				public void run() {
+					if ( !Arrays.asList( logger.getHandlers() ).contains( asyncHandler ) ) {
+						logger.addHandler( asyncHandler );
+						logger.setLevel( logLevel );
+					}
+					db.disconnect();
+					asyncHandler.release();
+				}
+			});
+			
 			//-- attempt to clear the system tables if requested
 			if ( systemWipe == true ) 
 				db.clearSystemTables();
@@ -180,6 +205,14 @@ public final class DSCatalog {
 			
 			//-- check to see that table integrity is ok 
 			db.checkSystemTables();
+			
+			//-- repair any drift in the maintained update counts if requested
+			if ( rebuildCounts == true )
+				db.rebuildUpdateCounts();
+			
+			//-- rewrite updates stored as json into the binary payload encoding if requested
+			if ( encodePayloads == true )
+				db.encodePayloads();
 
 			//-- start the servers up and running
 			logger.info( "Attempting to start server components..." );
@@ -284,6 +317,7 @@ public final class DSCatalog {
 	public void setLoggingLevel( Level level ) {
 		handler.setLevel( level );
 	    logger.setLevel( level );
+	    logLevel = level;
 	}
 	
 	///////////////////////////////
@@ -328,6 +362,9 @@ public final class DSCatalog {
 			options.addOption( "p", "password", true, "specify the admin password for the system");
 			options.addOption( "l", "log-level", true, "specify the log level (0-1000) to display");
 			options.addOption( "c", "create", false, "Automatically generates required system tables");			
+			options.addOption( "r", "rebuild-counts", false, "recalculates the per-user update counts on startup");
+			options.addOption( "e", "encode-payloads", false, "rewrites updates stored as json into the binary payload encoding on startup");
+			options.addOption( "m", "memory", false, "holds all catalog state in memory rather than the database (for load testing)");
 			options.addOption( "h", "help", false, "prints this message");
 			options.addOption( "v", "version", false, "returns version information");
 			options.addOption( "b", "verbose", false, "posts all logger information to the console");
@@ -392,6 +429,16 @@ public final class DSCatalog {
 				systemCreate = true;
 			}
 			
+			//-- determine if the update counts should be recalculated
+			if ( cmd.hasOption( "rebuild-counts" ) ) {
+				rebuildCounts = true;
+			}
+			
+			//-- determine if json payloads should be rewritten in binary
+			if ( cmd.hasOption( "encode-payloads" ) ) {
+				encodePayloads = true;
+			}
+			
 			//-- determine if user is attempting to create the system database
 			if ( cmd.hasOption( "debug" ) ) {
 				this.debug = true;
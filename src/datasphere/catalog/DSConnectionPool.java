@@ -0,0 +1,449 @@
+package datasphere.catalog;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of JDBC connections shared by the XMPP listener threads and
+ * the HTTP request threads. Connections are created lazily up to a maximum size,
+ * validated before reuse if they have sat idle for a while, and evicted again
+ * once they have been idle for longer than the idle timeout. Callers that cannot
+ * obtain a connection within the maximum wait time receive an {@link SQLException}. <br/>
+ * <br/>
+ * A maintenance timer also watches borrowed connections and logs (once, with
+ * the borrowing stack trace) any that have been held for longer than the leak
+ * threshold. Detection is off by default, as recording the stack trace costs
+ * every borrow; it is meant for debugging. Usage statistics are available through the various getters and
+ * are summarised by {@link #toString()}.
+ *
+ * @author James Goulding
+ * @version 2010-12-14
+ */
+public class DSConnectionPool {
+
+	private static Logger logger = Logger.getLogger( DSCatalog.class.getName() );
+
+	private static final long MAINTENANCE_PERIOD = 30000;
+	private static final int VALIDATION_TIMEOUT = 2;
+
+	private final String address;
+	private final Properties info;
+
+	private int maxSize = 10;
+	private int minIdle = 2;
+	private long maxWait = 5000;
+	private long idleTimeout = 300000;
+	private long validationInterval = 30000;
+	private long leakThreshold = 0;
+
+	private final LinkedList< DSPooledConnection > idle = new LinkedList< DSPooledConnection >();
+	private final Map< DSPooledConnection, Boolean > active = new IdentityHashMap< DSPooledConnection, Boolean >();
+	private int pending = 0;
+	private boolean closed = false;
+	private Timer maintenance = null;
+
+	//-- usage statistics
+	private long created = 0;
+	private long destroyed = 0;
+	private long borrows = 0;
+	private long waits = 0;
+	private long timeouts = 0;
+	private long validationFailures = 0;
+	private long leaks = 0;
+	private int peakActive = 0;
+	private long retiredStatementHits = 0;
+	private long retiredStatementMisses = 0;
+
+	//////////////////////////////////
+
+	/**
+	 * @param address	The JDBC URL of the database to be pooled.
+	 * @param info		Connection properties, including "user" and "password".
+	 */
+	public DSConnectionPool( String address, Properties info ) {
+		this.address = address;
+		this.info = info;
+	}
+
+	//////////////////////////////////
+
+	public void setMaxSize( int maxSize ) {
+		this.maxSize = Math.max( 1, maxSize );
+	}
+
+	public void setMinIdle( int minIdle ) {
+		this.minIdle = Math.max( 0, minIdle );
+	}
+
+	public void setMaxWait( long maxWait ) {
+		this.maxWait = maxWait;
+	}
+
+	public void setIdleTimeout( long idleTimeout ) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public void setValidationInterval( long validationInterval ) {
+		this.validationInterval = validationInterval;
+	}
+
+	/**
+	 * @param leakThreshold The number of milliseconds a connection may be held
+	 * before being reported as leaked. A value of zero disables leak detection.
+	 */
+	public void setLeakThreshold( long leakThreshold ) {
+		this.leakThreshold = leakThreshold;
+	}
+
+	//////////////////////////////////
+
+	/**
+	 * Opens the minimum number of idle connections and starts the maintenance timer.
+	 * As this establishes at least one physical connection it also serves to check
+	 * that the database is reachable with the supplied credentials.
+	 * @throws SQLException Thrown if the initial connections cannot be made.
+	 */
+	public void open()
+	throws SQLException {
+
+		int initial = Math.max( 1, Math.min( minIdle, maxSize ) );
+		for ( int i = 0; i < initial; i++ ) {
+			DSPooledConnection c = create();
+			synchronized ( this ) {
+				idle.addFirst( c );
+			}
+		}
+
+		maintenance = new Timer( "DSConnectionPool-maintenance", true );
+		maintenance.schedule( new TimerTask() {
+			public void run() {
+				maintain();
+			}
+		}, MAINTENANCE_PERIOD, MAINTENANCE_PERIOD );
+	}
+
+	//////////////////////////////////
+
+	/**
+	 * Obtains a connection from the pool, creating one if the pool has not yet
+	 * reached its maximum size, or waiting up to the maximum wait time for one to
+	 * be released otherwise.
+	 * @return DSPooledConnection A validated connection. It must be returned
+	 * via {@link #release(DSPooledConnection)}.
+	 * @throws SQLException Thrown if no connection becomes available in time,
+	 * or if a new connection cannot be established.
+	 */
+	public DSPooledConnection borrow()
+	throws SQLException {
+
+		long deadline = System.currentTimeMillis() + maxWait;
+
+		while ( true ) {
+
+			DSPooledConnection c = null;
+			boolean mustCreate = false;
+
+			synchronized ( this ) {
+
+				boolean waited = false;
+				while ( c == null && !mustCreate ) {
+
+					if ( closed )
+						throw new SQLException( "Connection pool has been closed" );
+
+					if ( !idle.isEmpty() ) {
+						c = idle.removeFirst();
+					}
+					else if ( active.size() + pending < maxSize ) {
+						pending++;
+						mustCreate = true;
+					}
+					else {
+						long remaining = deadline - System.currentTimeMillis();
+						if ( remaining <= 0 ) {
+							timeouts++;
+							throw new SQLException( "Timed out after " + maxWait +
+								"ms waiting for a database connection (" + this + ")" );
+						}
+						if ( !waited ) {
+							waits++;
+							waited = true;
+						}
+						try {
+							wait( remaining );
+						} catch ( InterruptedException e ) {
+							Thread.currentThread().interrupt();
+							throw new SQLException( "Interrupted waiting for a database connection" );
+						}
+					}
+				}
+			}
+
+			if ( mustCreate ) {
+				try {
+					c = create();
+				} finally {
+					if ( c == null ) {
+						synchronized ( this ) {
+							pending--;
+							notifyAll();
+						}
+					}
+				}
+			}
+			else if ( !validate( c ) ) {
+				destroy( c );
+				continue;
+			}
+
+			synchronized ( this ) {
+				//-- the new connection stops being pending in the same step as 
+				//-- it becomes active, so the pool can never overshoot its maximum
+				if ( mustCreate ) pending--;
+				c.markBorrowed( leakThreshold > 0 ? new Throwable( "connection borrowed here" ) : null );
+				active.put( c, Boolean.TRUE );
+				borrows++;
+				if ( active.size() > peakActive )
+					peakActive = active.size();
+			}
+			return c;
+		}
+	}
+
+	//////////////////////////////////
+
+	/**
+	 * Returns a previously borrowed connection to the pool. Connections that
+	 * cannot be reset to a clean state are discarded rather than reused.
+	 * Passing null is a no-op, so this may be called unconditionally in a
+	 * finally block.
+	 */
+	public void release( DSPooledConnection c ) {
+
+		if ( c == null ) return;
+
+		boolean reusable = true;
+		try {
+			c.reset();
+		} catch ( SQLException e ) {
+			reusable = false;
+		}
+
+		synchronized ( this ) {
+			if ( active.remove( c ) == null ) {
+				logger.warning( "--- DSConnectionPool: release of a connection not borrowed from this pool ignored" );
+				return;
+			}
+			c.markReturned();
+			if ( reusable && !closed ) {
+				idle.addFirst( c );
+				notifyAll();
+				return;
+			}
+			notifyAll();
+		}
+		destroy( c );
+	}
+
+	//////////////////////////////////
+
+	/**
+	 * Closes all idle connections and stops the maintenance timer. Borrowed
+	 * connections are closed as they are released.
+	 */
+	public void close() {
+
+		ArrayList< DSPooledConnection > doomed;
+		synchronized ( this ) {
+			if ( closed ) return;
+			closed = true;
+			doomed = new ArrayList< DSPooledConnection >( idle );
+			idle.clear();
+			notifyAll();
+		}
+
+		if ( maintenance != null )
+			maintenance.cancel();
+
+		for ( DSPooledConnection c : doomed )
+			destroy( c );
+
+		logger.info( "--- DSConnectionPool: Closing connection pool... [SUCCESS]" );
+	}
+
+	//////////////////////////////////
+
+	private DSPooledConnection create()
+	throws SQLException {
+		DSPooledConnection c = new DSPooledConnection(
+			DriverManager.getConnection( address, info ) );
+		synchronized ( this ) {
+			created++;
+		}
+		return c;
+	}
+
+	//////////////////////////////////
+
+	private void destroy( DSPooledConnection c ) {
+		c.close();
+		synchronized ( this ) {
+			destroyed++;
+			retiredStatementHits += c.getStatementHits();
+			retiredStatementMisses += c.getStatementMisses();
+		}
+	}
+
+	//////////////////////////////////
+
+	private boolean validate( DSPooledConnection c ) {
+
+		if ( System.currentTimeMillis() - c.getLastUsed() < validationInterval )
+			return true;
+
+		try {
+			if ( c.getConnection().isValid( VALIDATION_TIMEOUT ) )
+				return true;
+		} catch ( SQLException e ) {
+			//-- treated as a validation failure below
+		}
+
+		synchronized ( this ) {
+			validationFailures++;
+		}
+		logger.fine( "--- DSConnectionPool: discarding a stale database connection" );
+		return false;
+	}
+
+	//////////////////////////////////
+
+	/**
+	 * Periodic housekeeping: evicts connections that have been idle for too long
+	 * (whilst keeping the minimum number of idle connections open) and reports
+	 * connections that appear to have been leaked by their borrower.
+	 */
+	void maintain() {
+
+		ArrayList< DSPooledConnection > evicted = new ArrayList< DSPooledConnection >();
+		ArrayList< DSPooledConnection > leaked = new ArrayList< DSPooledConnection >();
+		long now = System.currentTimeMillis();
+
+		synchronized ( this ) {
+
+			//-- the oldest idle connections sit at the end of the list
+			Iterator< DSPooledConnection > i = idle.descendingIterator();
+			while ( i.hasNext() && idle.size() > minIdle ) {
+				DSPooledConnection c = i.next();
+				if ( now - c.getLastUsed() > idleTimeout ) {
+					i.remove();
+					evicted.add( c );
+				}
+			}
+
+			if ( leakThreshold > 0 ) {
+				for ( DSPooledConnection c : active.keySet() ) {
+					if ( !c.isLeakReported() && now - c.getBorrowed() > leakThreshold ) {
+						c.setLeakReported();
+						leaked.add( c );
+						leaks++;
+					}
+				}
+			}
+		}
+
+		for ( DSPooledConnection c : evicted )
+			destroy( c );
+
+		for ( DSPooledConnection c : leaked ) {
+			logger.log( Level.WARNING, "--- DSConnectionPool: connection held for " +
+				( now - c.getBorrowed() ) + "ms - possible leak", c.getBorrower() );
+		}
+
+		if ( !evicted.isEmpty() )
+			logger.finer( "--- DSConnectionPool: evicted " + evicted.size() + " idle connections" );
+
+		if ( logger.isLoggable( Level.FINEST ) )
+			logger.finest( "--- DSConnectionPool: " + this );
+	}
+
+	//////////////////////////////////
+
+	public synchronized int getActiveCount() 			{ return active.size(); }
+	public synchronized int getIdleCount() 				{ return idle.size(); }
+	public synchronized int getPeakActiveCount() 		{ return peakActive; }
+	public synchronized long getCreatedCount() 			{ return created; }
+	public synchronized long getDestroyedCount() 		{ return destroyed; }
+	public synchronized long getBorrowCount() 			{ return borrows; }
+	public synchronized long getWaitCount() 			{ return waits; }
+	public synchronized long getTimeoutCount() 			{ return timeouts; }
+	public synchronized long getValidationFailureCount() { return validationFailures; }
+	public synchronized long getLeakCount() 			{ return leaks; }
+	public int getMaxSize() 							{ return maxSize; }
+
+	/**
+	 * @return long The number of prepared statement requests, across all 
+	 * connections past and present, that were served from a statement cache.
+	 */
+	public synchronized long getStatementHitCount() {
+		long hits = retiredStatementHits;
+		for ( DSPooledConnection c : idle ) hits += c.getStatementHits();
+		for ( DSPooledConnection c : active.keySet() ) hits += c.getStatementHits();
+		return hits;
+	}
+
+	/**
+	 * @return long The number of prepared statement requests that required 
+	 * the statement to be prepared (and so parsed by the server) afresh.
+	 */
+	public synchronized long getStatementMissCount() {
+		long misses = retiredStatementMisses;
+		for ( DSPooledConnection c : idle ) misses += c.getStatementMisses();
+		for ( DSPooledConnection c : active.keySet() ) misses += c.getStatementMisses();
+		return misses;
+	}
+
+	//////////////////////////////////
+
+	@Override
+	public synchronized String toString() {
+		return "pool[active=" + active.size() +
+			", idle=" + idle.size() +
+			", max=" + maxSize +
+			", peak=" + peakActive +
+			", created=" + created +
+			", destroyed=" + destroyed +
+			", borrows=" + borrows +
+			", waits=" + waits +
+			", timeouts=" + timeouts +
+			", invalid=" + validationFailures +
+			", leaks=" + leaks +
+			", statements(hit/miss)=" + getStatementHitCount() + "/" + getStatementMissCount() + "]";
+	}
+}
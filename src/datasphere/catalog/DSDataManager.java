@@ -17,7 +17,9 @@ You should have received a copy of the GNU General Public License
 along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 
-import java.sql.Connection;
+import java.io.File;
+import java.io.IOException;
+import java.sql.BatchUpdateException;
 import java.sql.DatabaseMetaData;
 import java.sql.Driver;
 import java.sql.DriverManager;
@@ -25,17 +27,33 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import datasphere.catalog.DSSub.Status;
+import datasphere.catalog.cache.DSBloomFilter;
+import datasphere.catalog.cache.DSCache;
+import datasphere.catalog.cache.DSHistoryCache;
+import datasphere.catalog.cache.DSRecentUpdates;
+import datasphere.catalog.cache.DSSubscriptionIndex;
+import datasphere.catalog.store.DSClientStore;
+import datasphere.catalog.store.DSSegmentUpdateStore;
+import datasphere.catalog.store.DSSourceStore;
+import datasphere.catalog.store.DSSubscriptionStore;
+import datasphere.catalog.store.DSUpdateStore;
 import datasphere.catalog.xmpp.DSClientBot;
 import datasphere.catalog.xmpp.DSVCard;
 import datasphere.dataware.DSException;
@@ -50,6 +68,16 @@ import datasphere.dataware.DSUpdate;
  * utility functions such as checking the integrity of required datasphere system tables, 
  * detecting jid clashes and simplifying common queries. <br/>
  * <br/>
+ * All database work is carried out on connections borrowed from a bounded
+ * {@link DSConnectionPool}, so the XMPP listener threads and the HTTP request
+ * threads may call into a single DSDataManager concurrently. Every method
+ * returns the connection it borrowed before it completes. <br/>
+ * <br/>
+ * The class implements each of the storage interfaces in {@link datasphere.catalog.store}
+ * against MySQL. For single node deployments updates may instead be kept in an
+ * embedded {@link DSSegmentUpdateStore} (UPDATE_STORE = embedded in the configuration
+ * file), to which the update methods then delegate. <br/>
+ * <br/>
  * Importantly the class also provides three utility methods that return the names of
  * essential system tables: {@link #getConnectionsTable()}, {@link #getUsersTable()}
  * and {@link #getUpdatesTable()}. Any reference to these tables in an external classes
@@ -59,11 +87,12 @@ import datasphere.dataware.DSUpdate;
  * @version 2010-11-03
  */
 
-public class DSDataManager {
+public class DSDataManager
+implements DSUpdateStore, DSSubscriptionStore, DSSourceStore, DSClientStore {
 
 	private static Logger logger = Logger.getLogger( DSCatalog.class.getName() );
 	
-	private Connection conn = null;
+	private DSConnectionPool pool = null;
 	private String address;
 	private String login;
 	private String password;
@@ -75,11 +104,171 @@ public class DSDataManager {
 	private static final String SUBSCRIPTIONS_TABLE	= "ds_sys_subscriptions";
 	private static final String POLICIES_TABLE	= "ds_sys_policies";
 	private static final String SOURCES_TABLE = "ds_sys_sources";
+	private static final String COUNTS_TABLE = "ds_sys_update_counts";
 	
 	private static final String DEFAULT_LOGIN = "dsadmin";
 	private static final String DEFAULT_SYS_DB = "datasphere"; 
 	private static final String DEFAULT_PASSWORD = "YOUR_PASSWORD_HERE";
 
+	//-- connection pool settings, overridable via configure()
+	private int poolMaxSize = 10;
+	private int poolMinIdle = 2;
+	private long poolMaxWait = 5000;
+	private long poolIdleTimeout = 300000;
+	private long poolLeakThreshold = 0;
+	
+	//-- write-behind ingest settings, overridable via configure()
+	private boolean writeBehind = false;
+	private int batchSize = 500;
+	private long batchInterval = 250;
+	private int batchCapacity = 10000;
+	private DSWriteBehindQueue writeBehindQueue = null;
+	
+	//-- asynchronous ingest settings, overridable via configure() (0 workers disables)
+	private int ingestWorkers = 2;
+	private int ingestCapacity = 10000;
+	private DSIngestQueue.Policy ingestPolicy = DSIngestQueue.Policy.BLOCK;
+	private DSIngestQueue ingestQueue = null;
+	
+	//-- update counter cache settings, overridable via configure()
+	private int counterCacheSize = 10000;
+	private long counterCacheTtl = 60000;
+	private DSUpdateCounters counters = new DSUpdateCounters( counterCacheSize, counterCacheTtl );
+	
+	//-- client cache settings, overridable via configure()
+	private int clientCacheSize = 1000;
+	private long clientCacheTtl = 300000;
+	private DSCache< String, DSClient > clientCache = new DSCache< String, DSClient >( "clients", clientCacheSize, clientCacheTtl );
+	
+	//-- source registry cache settings, overridable via configure()
+	private int sourceCacheSize = 1000;
+	private long sourceCacheTtl = 600000;
+	private DSCache< String, DSVCard > sourceCache = new DSCache< String, DSVCard >( "sources", sourceCacheSize, sourceCacheTtl );
+	
+	//-- recent history settings, overridable via configure() (a depth of 0 disables)
+	private int recentDepth = 50;
+	private int recentBudget = 500000;
+	private DSRecentUpdates recent = new DSRecentUpdates( recentDepth, recentBudget );
+	
+	//-- history page cache settings, overridable via configure() (a size of 0 disables)
+	private int historyCacheSize = 10000;
+	private int historyCachePages = 32;
+	private long historyCacheTtl = 0;
+	private DSHistoryCache historyCache = new DSHistoryCache( historyCacheSize, historyCachePages, historyCacheTtl );
+	
+	//-- coalescing of concurrent identical reads, overridable via configure()
+	private boolean coalesceReads = true;
+	private DSSingleFlight flights = new DSSingleFlight();
+	
+	//-- filters of the known jids and sids, overridable via configure() (0 expected keys disables)
+	private long bloomExpectedKeys = 1000000;
+	private double bloomFalsePositive = 0.01;
+	private long unknownClientTtl = 60000;
+	private volatile DSBloomFilter knownClients = null;
+	private volatile DSBloomFilter knownSources = null;
+	private DSCache< String, Boolean > unknownClients = new DSCache< String, Boolean >( "unknown clients", 10000, unknownClientTtl );
+	
+	//-- binary payload settings, overridable via configure()
+	private boolean encodePayloads = false;
+	private int payloadDeflateThreshold = 256;
+	private int dictionarySize = 65536;
+	private DSPayloadCodec codec = null;
+	
+	//-- write-through copy of the subscriptions and policies tables
+	private final DSSubscriptionIndex subIndex = new DSSubscriptionIndex();
+	
+	//-- rows fetched per round trip when streaming a scan, overridable via configure()
+	private int scanFetchSize = 1000;
+	
+	//-- where updates are kept, overridable via configure()
+	private String updateStoreType = "mysql";
+	private String updateStoreDir = "data/updates";
+	private int updateStoreSegmentSize = DSSegmentUpdateStore.DEFAULT_SEGMENT_SIZE;
+	private DSSegmentUpdateStore updateStore = null;
+	
+	//-- partitioning of the updates table, overridable via configure()
+	private boolean partitionUpdates = false;
+	private int partitionAhead = 3;
+	private int partitionRetention = 0;
+	private DSPartitionManager partitionManager = null;
+	
+	//-- widening ctime windows tried in turn by recent-history reads on a
+	//-- partitioned table, so that most pages touch only the latest partitions
+	private static final long[] PRUNE_WINDOWS = { 
+		7 * 24 * 60 * 60 * 1000L, 
+		31 * 24 * 60 * 60 * 1000L, 
+		366 * 24 * 60 * 60 * 1000L };
+	
+	//-- the number of updates rewritten per transaction by encodePayloads()
+	private static final int ENCODE_BATCH_SIZE = 1000;
+	
+	//-- every optional field of an update, as read by SELECT *
+	private static final EnumSet< DSUpdateField > ALL_FIELDS = EnumSet.allOf( DSUpdateField.class );
+	
+	//-- parameterised queries. the text of each is the key under which
+	//-- its prepared statement is cached on every pooled connection
+	private static final String INSERT_UPDATE_QUERY = 
+		"INSERT INTO " + DEFAULT_SYS_DB + "." + UPDATES_TABLE + " " +
+		"( jid, sid, loc, description, crud, total, meta, tags, ctime, rtime, primaryTag, ftime, payload ) " +
+		"VALUES ( ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ? ) ";
+	
+	private static final String INCREMENT_COUNT_QUERY =
+		"INSERT INTO " + DEFAULT_SYS_DB + "." + COUNTS_TABLE + " ( jid, sid, total ) VALUES ( ?, ?, ? ) " +
+		"ON DUPLICATE KEY UPDATE total = total + VALUES( total )";
+	
+	private static final String FETCH_COUNTS_QUERY =
+		"SELECT sid, total FROM " + DEFAULT_SYS_DB + "." + COUNTS_TABLE + " WHERE jid=?";
+	
+	private static final String REBUILD_COUNTS_QUERY =
+		"INSERT INTO " + DEFAULT_SYS_DB + "." + COUNTS_TABLE + " ( jid, sid, total ) " +
+		"SELECT jid, sid, COUNT(1) FROM " + DEFAULT_SYS_DB + "." + UPDATES_TABLE + " GROUP BY jid, sid";
+	
+	private static final String FETCH_CLIENTS_QUERY =
+		"SELECT * FROM " + DEFAULT_SYS_DB + "." + USERS_TABLE;
+	
+	private static final String FETCH_CLIENT_QUERY =
+		FETCH_CLIENTS_QUERY + " WHERE jid=?";
+	
+	private static final String SUB_STATUS_QUERY =
+		"SELECT subscriptionStatus FROM " + DEFAULT_SYS_DB + "." + SUBSCRIPTIONS_TABLE + " " + 
+		"WHERE sid=? AND jid=?";
+	
+	private static final String SET_SUB_STATUS_QUERY =
+		"UPDATE " + DEFAULT_SYS_DB + "." + SUBSCRIPTIONS_TABLE + " " + 
+		"SET subscriptionStatus=?, mtime=? WHERE sid=? AND jid=?";
+	
+	private static final String INSERT_SUB_QUERY =
+		"INSERT INTO " + DEFAULT_SYS_DB + "." + SUBSCRIPTIONS_TABLE + " " +
+		"(sid, jid, subscriptionStatus, ctime, mtime ) VALUES (?, ?, ?, ?, ?)";
+	
+	private static final String FETCH_SUB_QUERY =
+		"SELECT * FROM " + DEFAULT_SYS_DB + "." + SUBSCRIPTIONS_TABLE + " b " +
+		"INNER JOIN " + DEFAULT_SYS_DB + "." + SOURCES_TABLE + " s ON s.sid = b.sid " +
+		"WHERE b.jid=? AND b.sid=?";
+	
+	private static final String DELETE_SUB_QUERY =
+		"DELETE FROM " + DEFAULT_SYS_DB + "." + SUBSCRIPTIONS_TABLE + " WHERE jid=? AND sid=?";
+	
+	private static final String INSERT_SOURCE_QUERY =
+		"INSERT INTO " + DEFAULT_SYS_DB + "." + SOURCES_TABLE + " " +
+		"( sid, namespace, name, url, avatar, orgname, orgunit, description ) " +
+		"VALUES ( ?, ?, ?, ?, ?, ?, ?, ? ) ";
+	
+	private static final String FETCH_SOURCE_QUERY =
+		"SELECT * FROM " + DEFAULT_SYS_DB + "." + SOURCES_TABLE + " WHERE sid=?";
+	
+	private static final String FETCH_NAMESPACE_QUERY =
+		"SELECT namespace FROM " + DEFAULT_SYS_DB + "." + SUBSCRIPTIONS_TABLE + " WHERE sid=?";
+	
+	private static final String DELETE_POLICY_QUERY =
+		"DELETE FROM " + DEFAULT_SYS_DB + "." + POLICIES_TABLE + " WHERE sid=? AND jid=?";
+	
+	private static final String INSERT_POLICY_QUERY =
+		"INSERT INTO " + DEFAULT_SYS_DB + "." + POLICIES_TABLE + " VALUES ( ?, ?, ? )";
+	
+	private static final String FETCH_POLICY_QUERY =
+		"SELECT * FROM " + DEFAULT_SYS_DB + "." + POLICIES_TABLE + " WHERE jid=? AND sid=?";
+
 	//////////////////////////////////
 	
 	/**
@@ -104,6 +293,86 @@ public class DSDataManager {
 		logger.fine( "--- DSDataManager: setting the DSAdmin password [" + password + "]... [SUCCESS]" );
 	}
 	
+	//////////////////////////////////
+	
+	/**
+	 * Reads the persistence settings from the catalog's configuration file.
+	 * Any setting that is absent or malformed keeps its default value. This
+	 * must be called before {@link #connect()} for pool settings to take effect.
+	 * @param config The properties loaded from the configuration file.
+	 */
+	public void configure( Properties config ) {
+		poolMaxSize = getInt( config, "DB_POOL_MAX_SIZE", poolMaxSize );
+		poolMinIdle = getInt( config, "DB_POOL_MIN_IDLE", poolMinIdle );
+		poolMaxWait = getLong( config, "DB_POOL_MAX_WAIT", poolMaxWait );
+		poolIdleTimeout = getLong( config, "DB_POOL_IDLE_TIMEOUT", poolIdleTimeout );
+		poolLeakThreshold = getLong( config, "DB_POOL_LEAK_THRESHOLD", poolLeakThreshold );
+		writeBehind = Boolean.parseBoolean( config.getProperty( "DB_WRITE_BEHIND", Boolean.toString( writeBehind ) ).trim() );
+		batchSize = getInt( config, "DB_BATCH_SIZE", batchSize );
+		batchInterval = getLong( config, "DB_BATCH_INTERVAL", batchInterval );
+		batchCapacity = getInt( config, "DB_BATCH_CAPACITY", batchCapacity );
+		ingestWorkers = getInt( config, "INGEST_WORKERS", ingestWorkers );
+		ingestCapacity = getInt( config, "INGEST_CAPACITY", ingestCapacity );
+		DSIngestQueue.Policy policy = DSIngestQueue.Policy.get( config.getProperty( "INGEST_POLICY", ingestPolicy.toString() ).trim() );
+		if ( policy != null ) ingestPolicy = policy;
+		else logger.warning( "--- DSDataManager: invalid value for INGEST_POLICY. using default " + ingestPolicy );
+		counterCacheSize = getInt( config, "DB_COUNTER_CACHE_SIZE", counterCacheSize );
+		counterCacheTtl = getLong( config, "DB_COUNTER_CACHE_TTL", counterCacheTtl );
+		counters = new DSUpdateCounters( counterCacheSize, counterCacheTtl );
+		scanFetchSize = getInt( config, "DB_SCAN_FETCH_SIZE", scanFetchSize );
+		clientCacheSize = getInt( config, "DB_CLIENT_CACHE_SIZE", clientCacheSize );
+		clientCacheTtl = getLong( config, "DB_CLIENT_CACHE_TTL", clientCacheTtl );
+		clientCache = new DSCache< String, DSClient >( "clients", clientCacheSize, clientCacheTtl );
+		sourceCacheSize = getInt( config, "DB_SOURCE_CACHE_SIZE", sourceCacheSize );
+		sourceCacheTtl = getLong( config, "DB_SOURCE_CACHE_TTL", sourceCacheTtl );
+		sourceCache = new DSCache< String, DSVCard >( "sources", sourceCacheSize, sourceCacheTtl );
+		recentDepth = getInt( config, "DB_RECENT_DEPTH", recentDepth );
+		recentBudget = getInt( config, "DB_RECENT_BUDGET", recentBudget );
+		recent = ( recentDepth > 0 ) ? new DSRecentUpdates( recentDepth, recentBudget ) : null;
+		historyCacheSize = getInt( config, "DB_HISTORY_CACHE_SIZE", historyCacheSize );
+		historyCachePages = getInt( config, "DB_HISTORY_CACHE_PAGES", historyCachePages );
+		historyCacheTtl = getLong( config, "DB_HISTORY_CACHE_TTL", historyCacheTtl );
+		historyCache = ( historyCacheSize > 0 ) ? new DSHistoryCache( historyCacheSize, historyCachePages, historyCacheTtl ) : null;
+		coalesceReads = Boolean.parseBoolean( config.getProperty( "DB_COALESCE_READS", Boolean.toString( coalesceReads ) ).trim() );
+		flights = coalesceReads ? new DSSingleFlight() : null;
+		bloomExpectedKeys = getLong( config, "DB_BLOOM_EXPECTED_KEYS", bloomExpectedKeys );
+		try {
+			bloomFalsePositive = Double.parseDouble( config.getProperty( "DB_BLOOM_FALSE_POSITIVE", Double.toString( bloomFalsePositive ) ).trim() );
+		} catch ( NumberFormatException e ) {
+			logger.warning( "--- DSDataManager: invalid value for DB_BLOOM_FALSE_POSITIVE. using default " + bloomFalsePositive );
+		}
+		unknownClientTtl = getLong( config, "DB_UNKNOWN_CLIENT_TTL", unknownClientTtl );
+		unknownClients = new DSCache< String, Boolean >( "unknown clients", 10000, unknownClientTtl );
+		encodePayloads = "binary".equalsIgnoreCase( config.getProperty( "UPDATE_PAYLOAD_ENCODING", encodePayloads ? "binary" : "json" ).trim() );
+		payloadDeflateThreshold = getInt( config, "UPDATE_PAYLOAD_DEFLATE_THRESHOLD", payloadDeflateThreshold );
+		dictionarySize = getInt( config, "UPDATE_DICTIONARY_SIZE", dictionarySize );
+		updateStoreType = config.getProperty( "UPDATE_STORE", updateStoreType ).trim();
+		updateStoreDir = config.getProperty( "UPDATE_STORE_DIR", updateStoreDir ).trim();
+		updateStoreSegmentSize = getInt( config, "UPDATE_STORE_SEGMENT_SIZE", updateStoreSegmentSize );
+		partitionUpdates = Boolean.parseBoolean( config.getProperty( "DB_PARTITION_UPDATES", Boolean.toString( partitionUpdates ) ).trim() );
+		partitionAhead = getInt( config, "DB_PARTITION_AHEAD", partitionAhead );
+		partitionRetention = getInt( config, "DB_PARTITION_RETENTION", partitionRetention );
+	}
+
+	//////////////////////////////////
+	
+	private static int getInt( Properties config, String key, int def ) {
+		return ( int ) getLong( config, key, def );
+	}
+
+	//////////////////////////////////
+	
+	private static long getLong( Properties config, String key, long def ) {
+		String value = config.getProperty( key );
+		if ( value == null ) return def;
+		try {
+			return Long.parseLong( value.trim() );
+		} catch ( NumberFormatException e ) {
+			logger.warning( "--- DSDataManager: invalid value for " + key + " [" + value + "]. using default " + def );
+			return def;
+		}
+	}
+	
 	//////////////////////////////////
 		
 	public String getConnectionsTable() {
@@ -125,21 +394,168 @@ public class DSDataManager {
 	//////////////////////////////////
 
 	/**
-	 * Used to obtain a JDBC {@link Statement} object through which interaction
-	 * with the database, such as querying or updating of game state, can be performed.
-	 * @return Statement The statement object to be used.
-	 * @throws SQLException Thrown if the database cannot supply a statment.
+	 * Returns the connection pool through which all database work is carried
+	 * out, principally so that its usage statistics can be inspected.
+	 * @return DSConnectionPool The pool, or null if not yet connected.
+	 */
+	public final DSConnectionPool getPool() {
+		return pool;
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Returns the write-behind buffer used for ingest, principally so that its
+	 * flush statistics can be inspected.
+	 * @return DSWriteBehindQueue The queue, or null if write-behind is disabled.
+	 */
+	public final DSWriteBehindQueue getWriteBehindQueue() {
+		return writeBehindQueue;
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Returns the queue decoupling update receipt from persistence, principally 
+	 * so that its depth and wait time statistics can be inspected.
+	 * @return DSIngestQueue The queue, or null if asynchronous ingest is disabled.
+	 */
+	public final DSIngestQueue getIngestQueue() {
+		return ingestQueue;
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * @return DSUpdateStore The store updates are kept in: either the embedded 
+	 * store, or this manager itself if updates are kept in MySQL.
+	 */
+	public final DSUpdateStore getUpdateStore() {
+		return ( updateStore != null ) ? updateStore : this;
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * @return DSPartitionManager The manager of the updates table's partitions,
+	 * or null if partitioning is disabled.
+	 */
+	public final DSPartitionManager getPartitionManager() {
+		return partitionManager;
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Returns the cache of per-user and per-source update totals, principally 
+	 * so that its hit rate can be inspected.
+	 * @return DSUpdateCounters The counter cache.
+	 */
+	public final DSUpdateCounters getUpdateCounters() {
+		return counters;
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Returns the cache of client records read by {@link #fetchClient(String)},
+	 * principally so that its hit rate can be inspected.
+	 * @return DSCache The client cache.
+	 */
+	public final DSCache< String, DSClient > getClientCache() {
+		return clientCache;
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Returns the cache of source vCards read by {@link #fetchSource(String)} 
+	 * and {@link #fetchSources(String, DSSub.Status...)}, principally so that 
+	 * its hit rate can be inspected.
+	 * @return DSCache The source cache.
+	 */
+	public final DSCache< String, DSVCard > getSourceCache() {
+		return sourceCache;
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * @return DSRecentUpdates The recent history held in memory, or null if disabled.
+	 */
+	public final DSRecentUpdates getRecentUpdates() {
+		return recent;
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * @return DSHistoryCache The cache of history pages, or null if disabled.
+	 */
+	public final DSHistoryCache getHistoryCache() {
+		return historyCache;
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * @return DSSingleFlight The coalescer of concurrent identical reads, or null if disabled.
+	 */
+	public final DSSingleFlight getSingleFlight() {
+		return flights;
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * @return DSBloomFilter The filter of known jids, or null if not (yet) loaded.
+	 */
+	public final DSBloomFilter getKnownClients() {
+		return knownClients;
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * @return DSBloomFilter The filter of known sids, or null if not (yet) loaded.
+	 */
+	public final DSBloomFilter getKnownSources() {
+		return knownSources;
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * @return DSPayloadCodec The binary payload codec, or null before the system tables are checked.
+	 */
+	public final DSPayloadCodec getPayloadCodec() {
+		return codec;
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * @return DSSubscriptionIndex The in-memory copy of the subscriptions and policies tables.
+	 */
+	public final DSSubscriptionIndex getSubscriptionIndex() {
+		return subIndex;
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Discards any cached copy of a client's record. To be called whenever
+	 * a row of the users table is changed.
 	 */
-	public final Statement createStatement() 
-	throws SQLException	{
-		return conn.createStatement();
+	public void invalidateClient( String jid ) {
+		clientCache.invalidate( jid );
 	}
 	
 	//////////////////////////////////
 	
 	/**
-	 * Attempts to establish a connection to the specified database. 
-	 * @throws SQLException Thrown if connection cannot be made to the specified
+	 * Attempts to establish a pool of connections to the specified database. 
+	 * @throws DSException Thrown if connection cannot be made to the specified
 	 * database address, via the supplied drivers.
 	 */
 	public void connect() 
@@ -147,16 +563,70 @@ public class DSDataManager {
 		
 		try {
 			DriverManager.registerDriver ( driver );
-			conn = DriverManager.getConnection( address, login , password );
+			
+			Properties info = new Properties();
+			info.setProperty( "user", login );
+			info.setProperty( "password", password );
+			
+			//-- have mysql parse each cached statement once per connection
+			info.setProperty( "useServerPrepStmts", "true" );
+			
+			//-- let scans read through a server-side cursor, a fetch size at a time
+			info.setProperty( "useCursorFetch", "true" );
+			
+			pool = new DSConnectionPool( address, info );
+			pool.setMaxSize( poolMaxSize );
+			pool.setMinIdle( poolMinIdle );
+			pool.setMaxWait( poolMaxWait );
+			pool.setIdleTimeout( poolIdleTimeout );
+			pool.setLeakThreshold( poolLeakThreshold );
+			pool.open();
+			
 			logger.info( "--- DSDataManager: Connecting to database for persistence... [SUCCESS]" );
+			
+			if ( "embedded".equalsIgnoreCase( updateStoreType ) ) {
+				updateStore = new DSSegmentUpdateStore( new File( updateStoreDir ), updateStoreSegmentSize );
+				updateStore.open();
+			}
+			
+			if ( writeBehind ) {
+				writeBehindQueue = new DSWriteBehindQueue( this, batchSize, batchInterval, batchCapacity );
+				writeBehindQueue.start();
+			}
+			
+			if ( ingestWorkers > 0 ) {
+				ingestQueue = new DSIngestQueue( this, ingestWorkers, ingestCapacity, ingestPolicy );
+				ingestQueue.start();
+			}
 		} catch ( SQLException e ) {
 			logger.info( "--- DSDataManager: Connecting to database for persistence... [FAILED]" );
 			throw new DSException( e );
+		} catch ( IOException e ) {
+			logger.info( "--- DSDataManager: Opening embedded update store... [FAILED]" );
+			throw new DSException( e );
 		}
 	}
 	
 	//////////////////////////////////
 	
+	/**
+	 * Flushes any queued and buffered updates and closes all pooled connections to the database.
+	 */
+	public void disconnect() {
+		if ( ingestQueue != null )
+			ingestQueue.stop();
+		if ( partitionManager != null )
+			partitionManager.close();
+		if ( writeBehindQueue != null )
+			writeBehindQueue.stop();
+		if ( updateStore != null )
+			updateStore.close();
+		if ( pool != null ) 
+			pool.close();
+	}
+	
+	//////////////////////////////////
+	
 	/**
 	 * Returns the URL database address registered to the manager.
 	 * @return String The URL of the database being used. 
@@ -169,34 +639,30 @@ public class DSDataManager {
 		
 	/**
 	 * Method that checks the integrity of required system tables. Currently
-	 * this just checks the existence of the connections, users, subs, sources
-	 *  and updates tables. N.b. that if tables do not exist they can be automatically 
+	 * this checks the existence of the connections, users, subs, sources
+	 * and updates tables, and then brings their schema up to date using a
+	 * {@link DSSchemaManager}. N.b. that if tables do not exist they can be automatically 
 	 * created via the {@link #createSystemTables()} method.
 	 * @throws DSException Thrown if there is a problem with table integrity.
 	 */
-	public final void checkSystemTables() 
+	public void checkSystemTables() 
 	throws DSException {
 		
-		ResultSet res = null;
+		DSPooledConnection c = null;
 		
 		try {
-			DatabaseMetaData meta = conn.getMetaData();
+			c = pool.borrow();
+			DatabaseMetaData meta = c.getConnection().getMetaData();
 			ArrayList< String > missing = new ArrayList< String >();
 			
-			res = meta.getTables( null, null, USERS_TABLE, null );
-			if ( !res.next() ) missing.add( USERS_TABLE );
-			
-			res = meta.getTables( null, null, CONNECTIONS_TABLE, null );
-			if ( !res.next() ) missing.add( CONNECTIONS_TABLE );
-
-			res = meta.getTables( null, null,SUBSCRIPTIONS_TABLE, null );
-			if ( !res.next() ) missing.add( SUBSCRIPTIONS_TABLE );
-					
-			res = meta.getTables(null, null, UPDATES_TABLE, null );
-			if ( !res.next() ) missing.add( UPDATES_TABLE );
-					
-			res = meta.getTables(null, null, SOURCES_TABLE, null );
-			if ( !res.next() ) missing.add( SOURCES_TABLE );
+			for ( String table : new String[] { 
+					USERS_TABLE, 
+					CONNECTIONS_TABLE, 
+					SUBSCRIPTIONS_TABLE, 
+					UPDATES_TABLE, 
+					SOURCES_TABLE } ) {
+				if ( !hasTable( meta, table ) ) missing.add( table );
+			}
 			
 			if ( missing.isEmpty() ) {
 				logger.info( "--- DSDataManager: Checking System Table integrity... [SUCCESS]" );
@@ -214,11 +680,138 @@ public class DSDataManager {
 			logger.info( "--- DSDataManager: Checking System Table integrity... [FAILED]" );
 			throw new DSException( e.getMessage() );
 		} finally {
+			pool.release( c );
+		}
+		
+		//-- with the tables present, bring their schema up to date
+		new DSSchemaManager( pool, DEFAULT_SYS_DB ).migrate();
+		
+		//-- payloads may have been written in binary before, so the codec is needed whatever the setting
+		if ( codec == null ) {
+			DSTagDictionary dictionary = new DSTagDictionary( pool, DEFAULT_SYS_DB, dictionarySize );
 			try {
-				res.close();
+				dictionary.load();
 			} catch ( SQLException e ) {
-				logger.log( Level.SEVERE, "+++ DSDataManager:: SQL Meltdown - ", e );
+				logger.severe( "--- DSDataManager: Loading payload dictionary... [FAILED]" );
+				throw new DSException( e );
+			}
+			codec = new DSPayloadCodec( dictionary, payloadDeflateThreshold );
+			logger.info( "--- DSDataManager: Loading payload dictionary (" + dictionary.getSize() + " terms, " + 
+				( encodePayloads ? "binary" : "json" ) + " encoding)... [SUCCESS]" );
+		}
+		
+		//-- and, if requested, keep the updates table partitioned by month
+		if ( partitionUpdates && partitionManager == null ) {
+			partitionManager = new DSPartitionManager( 
+				this, pool, DEFAULT_SYS_DB, UPDATES_TABLE, partitionAhead, partitionRetention );
+			partitionManager.open();
+		}
+		
+		loadSubscriptionIndex();
+		loadKnownKeys();
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Fills the filters of known jids and sids from the users and sources 
+	 * tables, after which lookups of unknown users and sources are mostly
+	 * rejected without a query.
+	 */
+	private void loadKnownKeys() 
+	throws DSException {
+		
+		if ( bloomExpectedKeys <= 0 ) return;
+		
+		long start = System.currentTimeMillis();
+		DSPooledConnection c = null;
+		Statement stmt = null;
+		ResultSet rs = null;
+		try {
+			c = pool.borrow();
+			stmt = c.createStatement();
+			
+			DSBloomFilter clients = new DSBloomFilter( "clients", bloomExpectedKeys, bloomFalsePositive );
+			rs = stmt.executeQuery( "SELECT jid FROM " + DEFAULT_SYS_DB + "." + USERS_TABLE );
+			while ( rs.next() ) 
+				clients.add( rs.getString( "jid" ) );
+			close( rs );
+			
+			DSBloomFilter sources = new DSBloomFilter( "sources", bloomExpectedKeys, bloomFalsePositive );
+			rs = stmt.executeQuery( "SELECT sid FROM " + DEFAULT_SYS_DB + "." + SOURCES_TABLE );
+			while ( rs.next() ) 
+				sources.add( rs.getString( "sid" ) );
+			
+			clients.setLoaded();
+			sources.setLoaded();
+			knownClients = clients;
+			knownSources = sources;
+			unknownClients.clear();
+			logger.info( "--- DSDataManager: Loading known jids and sids in " + 
+				( System.currentTimeMillis() - start ) + "ms... [SUCCESS] " + clients + " " + sources );
+			
+		} catch ( SQLException e ) {
+			logger.severe( "--- DSDataManager: Loading known jids and sids... [FAILED]" );
+			throw new DSException( e );
+		} finally {
+			close( rs );
+			close( stmt );
+			pool.release( c );
+		}
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Reads the subscriptions and policies tables into the subscription index,
+	 * after which subscription and policy lookups no longer touch the database.
+	 */
+	private void loadSubscriptionIndex() 
+	throws DSException {
+		
+		long start = System.currentTimeMillis();
+		DSPooledConnection c = null;
+		Statement stmt = null;
+		ResultSet rs = null;
+		try {
+			c = pool.borrow();
+			stmt = c.createStatement();
+			subIndex.clear();
+			
+			rs = stmt.executeQuery( "SELECT jid, sid, subscriptionStatus, ctime, mtime FROM " + DEFAULT_SYS_DB + "." + SUBSCRIPTIONS_TABLE );
+			while ( rs.next() ) {
+				subIndex.putSub( rs.getString( "jid" ), rs.getString( "sid" ), new DSSubscriptionIndex.Subscription( 
+					rs.getString( "subscriptionStatus" ), rs.getLong( "ctime" ), rs.getLong( "mtime" ) ) );
 			}
+			close( rs );
+			
+			rs = stmt.executeQuery( "SELECT jid, sid, status FROM " + DEFAULT_SYS_DB + "." + POLICIES_TABLE );
+			while ( rs.next() ) 
+				subIndex.putPolicy( rs.getString( "jid" ), rs.getString( "sid" ), Status.get( rs.getString( "status" ) ) );
+			
+			subIndex.setLoaded();
+			logger.info( "--- DSDataManager: Loading subscription index in " + 
+				( System.currentTimeMillis() - start ) + "ms... [SUCCESS] " + subIndex );
+			
+		} catch ( SQLException e ) {
+			logger.severe( "--- DSDataManager: Loading subscription index... [FAILED]" );
+			throw new DSException( e );
+		} finally {
+			close( rs );
+			close( stmt );
+			pool.release( c );
+		}
+	}
+	
+	//////////////////////////////////
+	
+	private boolean hasTable( DatabaseMetaData meta, String table ) 
+	throws SQLException {
+		ResultSet res = meta.getTables( null, null, table, null );
+		try {
+			return res.next();
+		} finally {
+			close( res );
 		}
 	}
 
@@ -233,9 +826,11 @@ public class DSDataManager {
 	public void createSystemTables() 
 	throws DSException {
 
+		DSPooledConnection c = null;
+		Statement stmt = null;
 		try {
-			
-			Statement stmt = createStatement();
+			c = pool.borrow();
+			stmt = c.createStatement();
 			
 			String connectionsTableQuery = 
 					"CREATE TABLE  `" + DEFAULT_SYS_DB + "`.`" + CONNECTIONS_TABLE + "` (" +
@@ -335,6 +930,7 @@ public class DSDataManager {
 				")";
 			
 			stmt.execute( testAccountQuery );
+			clientCache.clear();
 			
 			
 			logger.info( "--- DSDataManager: Creating System Tables... [SUCCESS]" );
@@ -343,6 +939,9 @@ public class DSDataManager {
 			e.printStackTrace();
 			logger.severe( "--- DSDataManager: Creating System Tables... [FAILED]" );
 			throw new DSException( e );
+		} finally {
+			close( stmt );
+			pool.release( c );
 		}
 	}
 	
@@ -356,19 +955,35 @@ public class DSDataManager {
 	public void clearSystemTables() 
 	throws DSException {
 		
+		DSPooledConnection c = null;
+		Statement stmt = null;
 		try {
-			Statement stmt = createStatement();
+			c = pool.borrow();
+			stmt = c.createStatement();
 			stmt.addBatch( "DELETE FROM " + USERS_TABLE );
 			stmt.addBatch( "DELETE FROM " + CONNECTIONS_TABLE );
 			stmt.addBatch( "DELETE FROM " + UPDATES_TABLE );
 			stmt.addBatch( "DELETE FROM " + SUBSCRIPTIONS_TABLE );
 			stmt.addBatch( "DELETE FROM " + SOURCES_TABLE );
+			if ( hasTable( c.getConnection().getMetaData(), COUNTS_TABLE ) )
+				stmt.addBatch( "DELETE FROM " + COUNTS_TABLE );
 			stmt.executeBatch();
+			counters.clear();
+			if ( recent != null ) recent.clear();
+			if ( historyCache != null ) historyCache.clear();
+			clientCache.clear();
+			sourceCache.clear();
+			subIndex.clearSubs();
+			if ( updateStore != null )
+				updateStore.clearUpdates();
 			logger.info( "--- DSDataManager: Wiping System Tables of old data... [SUCCESS]" );
 			
 		} catch ( SQLException e ) {
 			logger.severe( "--- DSDataManager: Wiping System Tables of old data... [FAILED]" );
 			throw new DSException( e );
+		} finally {
+			close( stmt );
+			pool.release( c );
 		}
 	}
 	
@@ -381,8 +996,10 @@ public class DSDataManager {
 	public void clearConnections() 
 	throws SQLException {
 		
+		DSPooledConnection c = pool.borrow();
+		Statement stmt = null;
 		try {
-			Statement stmt = createStatement();
+			stmt = c.createStatement();
 			stmt.addBatch( "DELETE FROM " + CONNECTIONS_TABLE );
 			stmt.executeBatch();
 			logger.info( "--- DSDataManager: Wiping Connections Table of old data... [SUCCESS]" );
@@ -390,6 +1007,9 @@ public class DSDataManager {
 		} catch ( SQLException e ) {
 			logger.severe( "--- DSDataManager: Wiping Connections Table of old data... [FAILED]" );
 			throw e;
+		} finally {
+			close( stmt );
+			pool.release( c );
 		}
 	}
 	
@@ -402,243 +1022,1171 @@ public class DSDataManager {
 	public void clearUpdates() 
 	throws SQLException {
 		
+		if ( updateStore != null ) {
+			updateStore.clearUpdates();
+			return;
+		}
+		
+		DSPooledConnection c = pool.borrow();
+		Statement stmt = null;
 		try {
-			Statement stmt = createStatement();
+			stmt = c.createStatement();
 			stmt.addBatch( "DELETE FROM " + UPDATES_TABLE );
+			if ( hasTable( c.getConnection().getMetaData(), COUNTS_TABLE ) )
+				stmt.addBatch( "DELETE FROM " + COUNTS_TABLE );
 			stmt.executeBatch();
+			counters.clear();
+			if ( recent != null ) recent.clear();
+			if ( historyCache != null ) historyCache.clear();
 			logger.info( "--- DSDataManager: Wiping Updates Table of old data... [SUCCESS]" );
 			
 		} catch ( SQLException e ) {
 			logger.severe( "--- DSDataManager: Wiping Updates Table of old data... [FAILED]" );
 			throw e;
+		} finally {
+			close( stmt );
+			pool.release( c );
 		}
 	}
 	
 	//////////////////////////////////
-
+	
 	/**
-	 * Returns a list of the JID's currently connected to by the system 
-	 * @returns List the list of currently active (i.e. connected) jids
+	 * Recalculates the update counts table from the updates themselves, repairing
+	 * any drift between the two (for example after rows have been removed by hand).
+	 * The counts are replaced in a single transaction, so readers never see them empty.
+	 * @throws DSException Thrown if the counts cannot be rebuilt.
 	 */
-	public ArrayList< String > getAllConnections() {
+	public void rebuildUpdateCounts() 
+	throws DSException {
 		
-		ArrayList< String > a = new ArrayList< String >();
+		long start = System.currentTimeMillis();
+		DSPooledConnection c = null;
+		Statement stmt = null;
 		try {
-
-			Statement stmt = createStatement();
-			String query = "SELECT JID FROM " + CONNECTIONS_TABLE; 
-			ResultSet rs = stmt.executeQuery( query );
-			while ( rs.next() ) 
-				a.add( rs.getString( "JID" ) );
+			c = pool.borrow();
+			c.getConnection().setAutoCommit( false );
+			stmt = c.createStatement();
+			stmt.executeUpdate( "DELETE FROM " + DEFAULT_SYS_DB + "." + COUNTS_TABLE );
+			stmt.executeUpdate( REBUILD_COUNTS_QUERY );
+			c.getConnection().commit();
+			counters.clear();
+			
+			//-- the counts are rebuilt after partitions are dropped, taking recent history with them
+			if ( recent != null ) recent.clear();
+			if ( historyCache != null ) historyCache.clear();
+			logger.info( "--- DSDataManager: Rebuilding update counts in " + 
+				( System.currentTimeMillis() - start ) + "ms... [SUCCESS]" );
 			
 		} catch ( SQLException e ) {
-			logger.log( Level.SEVERE, "+++ Database Manager: SQL Meltdown - ", e );
-		} 
-		
-		return a;
+			logger.severe( "--- DSDataManager: Rebuilding update counts... [FAILED]" );
+			throw new DSException( e );
+		} finally {
+			close( stmt );
+			pool.release( c );
+		}
 	}
-
+	
 	//////////////////////////////////
-
+	
 	/**
-	 * 
-	 * @return
-	 * @throws SQLException 
+	 * Rewrites every update still stored as JSON text into the binary payload
+	 * encoding, a batch at a time, walking the table in key order so that
+	 * each batch picks up where the last left off. Updates written meanwhile
+	 * are unaffected, and the rewrite may be interrupted and rerun at any time.
+	 * @return long The number of updates rewritten.
+	 * @throws DSException Thrown if the updates cannot be rewritten.
 	 */
-	public Map< String, DSClientBot > fetchClientBots() 
-	throws SQLException {
+	public long encodePayloads() 
+	throws DSException {
+		
+		if ( codec == null ) 
+			throw new DSException( "System tables must be checked before payloads can be encoded" );
+		
+		long start = System.currentTimeMillis();
+		long total = 0;
+		String[] after = null;
+		
+		String select = "SELECT jid, sid, rtime, ctime, loc, meta, tags FROM " + DEFAULT_SYS_DB + "." + UPDATES_TABLE + 
+			" WHERE payload IS NULL ORDER BY jid, sid, rtime, ctime LIMIT " + ENCODE_BATCH_SIZE;
+		String seek = "SELECT jid, sid, rtime, ctime, loc, meta, tags FROM " + DEFAULT_SYS_DB + "." + UPDATES_TABLE + 
+			" WHERE ( jid, sid, rtime, ctime ) > ( ?, ?, ?, ? ) AND payload IS NULL ORDER BY jid, sid, rtime, ctime LIMIT " + ENCODE_BATCH_SIZE;
+		String update = "UPDATE " + DEFAULT_SYS_DB + "." + UPDATES_TABLE + " SET payload=?, loc='', meta='', tags='' " +
+			"WHERE jid=? AND sid=? AND rtime=? AND ctime=?";
+		
+		try {
+			for ( ;; ) {
+				int rows = 0;
+				DSPooledConnection c = pool.borrow();
+				ResultSet rs = null;
+				try {
+					PreparedStatement read = c.prepare( after == null ? select : seek );
+					if ( after != null ) {
+						read.setString( 1, after[ 0 ] );
+						read.setString( 2, after[ 1 ] );
+						read.setLong( 3, Long.parseLong( after[ 2 ] ) );
+						read.setLong( 4, Long.parseLong( after[ 3 ] ) );
+					}
+					
+					PreparedStatement write = c.prepare( update );
+					c.getConnection().setAutoCommit( false );
+					rs = read.executeQuery();
+					while ( rs.next() ) {
+						write.setBytes( 1, codec.encode( readPayloadFields( rs ) ) );
+						write.setString( 2, rs.getString( "jid" ) );
+						write.setString( 3, rs.getString( "sid" ) );
+						write.setLong( 4, rs.getLong( "rtime" ) );
+						write.setLong( 5, rs.getLong( "ctime" ) );
+						write.addBatch();
+						after = new String[] { rs.getString( "jid" ), rs.getString( "sid" ), 
+							rs.getString( "rtime" ), rs.getString( "ctime" ) };
+						rows++;
+					}
+					if ( rows > 0 ) write.executeBatch();
+					c.getConnection().commit();
+					
+				} finally {
+					close( rs );
+					pool.release( c );
+					flushDictionary();
+				}
+				
+				total += rows;
+				if ( rows < ENCODE_BATCH_SIZE ) break;
+				logger.fine( "--- DSDataManager: " + total + " update payloads encoded so far" );
+			}
+			
+			if ( recent != null ) recent.clear();
+			if ( historyCache != null ) historyCache.clear();
+			logger.info( "--- DSDataManager: Encoding " + total + " update payloads in " + 
+				( System.currentTimeMillis() - start ) + "ms... [SUCCESS]" );
+			return total;
+			
+		} catch ( SQLException e ) {
+			logger.severe( "--- DSDataManager: Encoding update payloads... [FAILED]" );
+			throw new DSException( e );
+		}
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Reads the JSON location, meta and tags columns of a row into an update 
+	 * ready for encoding. Text that fails to decode is treated as absent, as
+	 * it would be when read.
+	 */
+	private DSUpdate readPayloadFields( ResultSet rs ) 
+	throws SQLException {
+		
+		DSUpdate u;
+		try {
+			u = new DSUpdate( rs.getString( "sid" ), "ds:update" );
+		} catch ( DSFormatException e ) {
+			throw new SQLException( e );
+		}
+		u.setTagsJSON( rs.getString( "tags" ) ).setMetaJSON( rs.getString( "meta" ) );
+		readLocation( u, rs.getString( "loc" ) );
+		return u;
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Sets the location held in a JSON loc column on an update. A location
+	 * that fails to decode is treated as absent.
+	 */
+	private static void readLocation( DSUpdate u, String loc ) {
+		
+		if ( loc == null ) return;
+		try {
+			JSONObject j = new JSONObject( loc );
+			u.setLocation( j.getDouble( "lat" ), j.getDouble( "lon" ) );
+		} catch ( JSONException e ) {}
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * @return boolean True if any of the fields are held in the binary payload.
+	 */
+	private static boolean inPayload( EnumSet< DSUpdateField > fields ) {
+		return fields.contains( DSUpdateField.TAGS ) || 
+			fields.contains( DSUpdateField.META ) || 
+			fields.contains( DSUpdateField.LOCATION );
+	}
+	
+	//////////////////////////////////
+
+	/**
+	 * Returns a list of the JID's currently connected to by the system 
+	 * @returns List the list of currently active (i.e. connected) jids
+	 */
+	public ArrayList< String > getAllConnections() {
+		
+		ArrayList< String > a = new ArrayList< String >();
+		DSPooledConnection c = null;
+		Statement stmt = null;
+		try {
+			c = pool.borrow();
+			stmt = c.createStatement();
+			String query = "SELECT JID FROM " + CONNECTIONS_TABLE; 
+			ResultSet rs = stmt.executeQuery( query );
+			while ( rs.next() ) 
+				a.add( rs.getString( "JID" ) );
+			
+		} catch ( SQLException e ) {
+			logger.log( Level.SEVERE, "+++ Database Manager: SQL Meltdown - ", e );
+		} finally {
+			close( stmt );
+			pool.release( c );
+		}
+		
+		return a;
+	}
+
+	//////////////////////////////////
+	/**
+	 * 
+	 * @return
+	 * @throws SQLException 
+	 */
+	public Map< String, DSClientBot > fetchClientBots() 
+	throws SQLException {
 		
 		Map< String, DSClientBot > clients = new HashMap< String, DSClientBot >();
 				
-		Statement stmt = createStatement();
-		String query = "SELECT * FROM " + DEFAULT_SYS_DB + "." + USERS_TABLE;
-		ResultSet rs = stmt.executeQuery( query );
-		while ( rs.next() ) {
-			
-			DSClient c = new DSClient( 
-				rs.getString( "jid" ),
-				rs.getString( "firstname" ),
-				rs.getString( "lastname" ),
-				rs.getString( "email" ),
-				rs.getLong( "ctime" ),
-				rs.getLong( "atime" ),
-				rs.getString( "host" ), 
-				rs.getString( "service" ),
-				rs.getString( "user" ),
-				rs.getString( "pass" ) 
-			);
-			 
-			clients.put( 
-				rs.getString( "jid" ),
-				new DSClientBot( c )	
-			);
+		DSPooledConnection c = pool.borrow();
+		ResultSet rs = null;
+		try {
+			rs = c.prepare( FETCH_CLIENTS_QUERY ).executeQuery();
+			while ( rs.next() ) {
+				DSClient client = readClient( rs );
+				clientCache.put( client.getJid(), client );
+				clients.put( client.getJid(), new DSClientBot( client ) );
+			}
+		} finally {
+			close( rs );
+			pool.release( c );
+		}
+		
+		return clients;
+	}
+	
+	//////////////////////////////////
+
+	/**
+	 * Returns the number of updates held for a user, either from a single 
+	 * source or (if sid is null) across all of them. Totals are read from the
+	 * update counts table, maintained as updates are written, rather than by 
+	 * counting rows, and are cached a whole user at a time.
+	 */
+	public int fetchUpdateTotal( final String jid, String sid )
+	throws SQLException {		
+		
+		if ( updateStore != null ) 
+			return updateStore.fetchUpdateTotal( jid, sid );
+		
+		Long total = counters.get( jid, sid );
+		if ( total != null ) 
+			return total.intValue();
+		
+		//-- every total of the jid is loaded at once, so callers asking after any of its sids share the load
+		HashMap< String, Long > totals;
+		try {
+			totals = coalesce( "fetchUpdateTotal", new Callable< HashMap< String, Long > >() {
+				public HashMap< String, Long > call() throws SQLException {
+					return loadCounts( jid );
+				}
+			}, jid );
+		} catch ( DSFormatException e ) {
+			throw new SQLException( e );
+		}
+		
+		if ( sid != null ) {
+			Long t = totals.get( sid );
+			return ( t == null ) ? 0 : t.intValue();
+		}
+		
+		long sum = 0;
+		for ( Long t : totals.values() ) 
+			sum += t;
+		return ( int ) sum;
+	}
+	
+	//////////////////////////////////
+
+	public int fetchUpdateTotal( String jid )
+	throws SQLException {		
+		return fetchUpdateTotal( jid, null );
+	}
+	
+	//////////////////////////////////
+
+	private HashMap< String, Long > loadCounts( String jid )
+	throws SQLException {		
+		
+		HashMap< String, Long > totals = new HashMap< String, Long >();
+		DSPooledConnection c = pool.borrow();
+		ResultSet rs = null;
+		try {
+			PreparedStatement stmt = c.prepare( FETCH_COUNTS_QUERY );
+			stmt.setString( 1, jid );
+			rs = stmt.executeQuery();
+			while ( rs.next() ) 
+				totals.put( rs.getString( "sid" ), rs.getLong( "total" ) );
+			
+		} finally {
+			close( rs );
+			pool.release( c );
+		}
+		
+		counters.put( jid, totals );
+		return totals;
+	}
+	
+	//////////////////////////////////
+
+	/**
+	 * Fetches a user's entire update history into memory. Where the history 
+	 * may be large, walk it with {@link #scanUpdates(String, String, DSUpdateVisitor)} instead.
+	 * @return
+	 * @throws SQLException 
+	 * @throws JSONException 
+	 */
+	public ArrayList< DSUpdate > fetchUpdates( String jid, String sid ) 
+	throws SQLException, JSONException {
+		return fetchUpdates( jid, sid, null, null );
+	}
+	
+	//////////////////////////////////
+
+	/**
+	 * 
+	 * @return
+	 * @throws SQLException 
+	 * @throws JSONException 
+	 */
+	public ArrayList< DSUpdate > fetchUpdates( final String jid, final String sid, final Integer limit, final Integer offset  ) 
+	throws SQLException, JSONException {
+		
+		if ( updateStore != null ) 
+			return updateStore.fetchUpdates( jid, sid, limit, offset );
+		
+		return coalescePage( "fetchUpdates", new Callable< ArrayList< DSUpdate > >() {
+			public ArrayList< DSUpdate > call() throws SQLException {
+				return readUpdates( jid, sid, limit, offset );
+			}
+		}, jid, sid, limit, offset );
+	}
+	
+	//////////////////////////////////
+
+	/**
+	 * Fetches a page of updates, reading only the fields asked for, so that
+	 * callers with no use for the larger columns (such as meta and tags) 
+	 * neither transfer nor decode them. Fields not asked for are left unset.
+	 * A page of every field is served as by {@link #fetchUpdates(String, String, Integer, Integer)};
+	 * other projections always go to the database.
+	 * @param fields The optional fields to be read.
+	 */
+	public ArrayList< DSUpdate > fetchUpdates( String jid, String sid, Integer limit, Integer offset, EnumSet< DSUpdateField > fields ) 
+	throws SQLException, JSONException {
+		
+		if ( updateStore != null || fields.containsAll( ALL_FIELDS ) ) 
+			return fetchUpdates( jid, sid, limit, offset );
+		
+		if ( limit == null ) offset = null;
+		return fetchPage( jid, sid, limit, offset, fields );
+	}
+	
+	//////////////////////////////////
+
+	private ArrayList< DSUpdate > readUpdates( String jid, String sid, Integer limit, Integer offset  ) 
+	throws SQLException {
+		
+		//-- an offset is only meaningful alongside a limit
+		if ( limit == null ) offset = null;
+		
+		//-- the first pages of a history are served from memory where possible
+		if ( recent != null && limit != null ) {
+			int skip = ( offset == null ) ? 0 : offset;
+			ArrayList< DSUpdate > page = recent.get( jid, sid, limit, skip );
+			if ( page != null ) 
+				return page;
+			
+			if ( skip + limit <= recent.getDepth() ) {
+				long token = recent.begin( jid );
+				ArrayList< DSUpdate > newest = fetchPage( jid, sid, recent.getDepth(), null, ALL_FIELDS );
+				recent.warm( jid, sid, token, newest );
+				
+				page = new ArrayList< DSUpdate >();
+				for ( int i = skip; i < newest.size() && i < skip + limit; i++ )
+					page.add( newest.get( i ) );
+				return page;
+			}
+		}
+		
+		//-- deeper pages are cached as read, until a write to the history
+		if ( historyCache != null && limit != null ) {
+			int skip = ( offset == null ) ? 0 : offset;
+			ArrayList< DSUpdate > page = historyCache.get( jid, sid, limit, skip );
+			if ( page != null ) 
+				return page;
+			
+			long token = historyCache.begin( jid );
+			page = fetchPage( jid, sid, limit, offset, ALL_FIELDS );
+			historyCache.put( jid, sid, limit, skip, token, page );
+			return page;
+		}
+		return fetchPage( jid, sid, limit, offset, ALL_FIELDS );
+	}
+	
+	//////////////////////////////////
+
+	private ArrayList< DSUpdate > fetchPage( String jid, String sid, Integer limit, Integer offset, EnumSet< DSUpdateField > fields ) 
+	throws SQLException {
+		
+		//-- on a partitioned table, look for the page among recent updates first.
+		//-- a full page found within a window must be the page sought
+		if ( partitionManager != null && limit != null ) {
+			long now = System.currentTimeMillis();
+			for ( long window : PRUNE_WINDOWS ) {
+				ArrayList< DSUpdate > updates = fetchUpdates( jid, sid, now - window, limit, offset, fields );
+				if ( updates.size() >= limit ) 
+					return updates;
+			}
+		}
+		return fetchUpdates( jid, sid, null, limit, offset, fields );
+	}
+	
+	//////////////////////////////////
+
+	private ArrayList< DSUpdate > fetchUpdates( String jid, String sid, Long since, Integer limit, Integer offset, EnumSet< DSUpdateField > fields ) 
+	throws SQLException {
+		
+		String columns = fields.containsAll( ALL_FIELDS ) ? "*" : DSUpdateField.columns( fields );
+		if ( !columns.equals( "*" ) && inPayload( fields ) ) 
+			columns += ", payload";
+		String query = "SELECT " + columns + " FROM " + DEFAULT_SYS_DB + "." + UPDATES_TABLE + " WHERE jid=? "; 
+		if ( sid != null ) 
+			query += "AND sid=? ";
+		if ( since != null ) 
+			query += "AND ctime >= ? ";
+		query += "ORDER BY ctime DESC, rtime DESC, sid DESC";
+		if ( limit != null ) query += " LIMIT ?";
+		if ( offset != null ) query += " OFFSET ?";
+		
+		ArrayList< DSUpdate > updates = new ArrayList< DSUpdate >();
+		DSPooledConnection c = pool.borrow();
+		ResultSet rs = null;
+		try {
+			PreparedStatement stmt = c.prepare( query );
+			int i = 1;
+			stmt.setString( i++, jid );
+			if ( sid != null ) stmt.setString( i++, sid );
+			if ( since != null ) stmt.setLong( i++, since );
+			if ( limit != null ) stmt.setInt( i++, limit );
+			if ( offset != null ) stmt.setInt( i++, offset );
+			
+			rs = stmt.executeQuery();
+			while ( rs.next() ) {
+				DSUpdate u = readUpdate( rs, fields );
+				if ( u != null ) updates.add( u );
+			}
+		} finally {
+			close( rs );
+			pool.release( c );
+		}
+		
+		return updates;
+	}
+
+	//////////////////////////////////
+
+	/**
+	 * Fetches the page of updates immediately older than the supplied cursor, 
+	 * newest first. Rather than skipping rows with an OFFSET the query seeks 
+	 * straight to the cursor position, so deep pages cost the same as the first.
+	 * The newest page, and pages falling among the recent updates held in 
+	 * memory, are served as offset pages are, without a query.
+	 * @param cursor The position to continue from, or null to start at the newest update.
+	 * @param limit The maximum number of updates to return.
+	 */
+	public ArrayList< DSUpdate > fetchUpdatesAfter( final String jid, final String sid, final DSHistoryCursor cursor, final int limit ) 
+	throws SQLException {
+		
+		if ( updateStore != null ) 
+			return updateStore.fetchUpdatesAfter( jid, sid, cursor, limit );
+		
+		//-- the newest page is the first offset page, which warms the recent history
+		if ( cursor == null ) {
+			return coalescePage( "fetchUpdates", new Callable< ArrayList< DSUpdate > >() {
+				public ArrayList< DSUpdate > call() throws SQLException {
+					return readUpdates( jid, sid, limit, null );
+				}
+			}, jid, sid, limit, null );
+		}
+		
+		if ( recent != null ) {
+			ArrayList< DSUpdate > page = recent.getAfter( jid, sid, cursor, limit );
+			if ( page != null ) 
+				return page;
+		}
+		return coalescePage( "fetchUpdatesAfter", new Callable< ArrayList< DSUpdate > >() {
+			public ArrayList< DSUpdate > call() throws SQLException {
+				return seekCached( jid, sid, cursor, limit, true );
+			}
+		}, jid, sid, cursor.toToken(), limit );
+	}
+	
+	//////////////////////////////////
+
+	/**
+	 * Fetches the page of updates immediately newer than the supplied cursor,
+	 * returned newest first in the same way as {@link #fetchUpdatesAfter}.
+	 * @param cursor The position to go back from.
+	 * @param limit The maximum number of updates to return.
+	 */
+	public ArrayList< DSUpdate > fetchUpdatesBefore( final String jid, final String sid, final DSHistoryCursor cursor, final int limit ) 
+	throws SQLException {
+		
+		if ( updateStore != null ) 
+			return updateStore.fetchUpdatesBefore( jid, sid, cursor, limit );
+		
+		if ( recent != null ) {
+			ArrayList< DSUpdate > page = recent.getBefore( jid, sid, cursor, limit );
+			if ( page != null ) 
+				return page;
+		}
+		return coalescePage( "fetchUpdatesBefore", new Callable< ArrayList< DSUpdate > >() {
+			public ArrayList< DSUpdate > call() throws SQLException {
+				return seekCached( jid, sid, cursor, limit, false );
+			}
+		}, jid, sid, ( cursor == null ) ? null : cursor.toToken(), limit );
+	}
+	
+	//////////////////////////////////
+
+	/**
+	 * Streams a user's update history, oldest first, to the supplied visitor. 
+	 * Rows are read through a forward-only, read-only server-side cursor a fetch
+	 * size at a time, so however long the history only a bounded number of rows 
+	 * are held in memory. A pooled connection is held for the whole scan, so 
+	 * visitors should not be slow to return. <br/>
+	 * <br/>
+	 * A scan of every user's history is made in whatever order the updates
+	 * are stored, as sorting the whole table would cost far more than the 
+	 * scan, and cannot be restricted to a source.
+	 * @param jid 		The user whose history is scanned, or null to scan every user's.
+	 * @param sid 		The source to restrict the scan to, or null for all sources.
+	 * Must be null if the jid is.
+	 * @param visitor 	Receives each update in turn, and may stop the scan early.
+	 * @return long The number of updates visited.
+	 * @throws SQLException Thrown if the history cannot be read.
+	 * @throws IllegalArgumentException Thrown if a sid is given without a jid.
+	 */
+	public long scanUpdates( String jid, String sid, DSUpdateVisitor visitor ) 
+	throws SQLException {
+		
+		if ( jid == null && sid != null ) 
+			throw new IllegalArgumentException( "a scan restricted to a source must name a user" );
+		
+		if ( updateStore != null ) 
+			return updateStore.scanUpdates( jid, sid, visitor );
+		
+		String query = "SELECT * FROM " + DEFAULT_SYS_DB + "." + UPDATES_TABLE;
+		if ( jid != null ) {
+			query += " WHERE jid=?";
+			if ( sid != null ) query += " AND sid=?";
+			query += " ORDER BY ctime ASC, rtime ASC, sid ASC";
+		}
+		
+		long visited = 0;
+		DSPooledConnection c = pool.borrow();
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			//-- cursor-backed statements are not cached, as each holds a server-side cursor
+			stmt = c.getConnection().prepareStatement( 
+				query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY );
+			stmt.setFetchSize( scanFetchSize );
+			if ( jid != null ) {
+				stmt.setString( 1, jid );
+				if ( sid != null ) stmt.setString( 2, sid );
+			}
+			
+			rs = stmt.executeQuery();
+			while ( rs.next() ) {
+				DSUpdate u = readUpdate( rs );
+				if ( u == null ) continue;
+				visited++;
+				if ( !visitor.visit( rs.getString( "jid" ), u ) ) break;
+			}
+		} finally {
+			close( rs );
+			close( stmt );
+			pool.release( c );
+		}
+		
+		return visited;
+	}
+	
+	//////////////////////////////////
+
+	/**
+	 * Streams every update held by the catalog to the supplied visitor.
+	 * @see #scanUpdates(String, String, DSUpdateVisitor)
+	 */
+	public long scanUpdates( DSUpdateVisitor visitor ) 
+	throws SQLException {
+		return scanUpdates( null, null, visitor );
+	}
+	
+	//////////////////////////////////
+
+	/**
+	 * Seeks a page as {@link #seekUpdates}, caching it as read until a write
+	 * to the history, as offset pages are cached.
+	 */
+	private ArrayList< DSUpdate > seekCached( 
+		String jid, 
+		String sid, 
+		DSHistoryCursor cursor, 
+		int limit, 
+		boolean older ) 
+	throws SQLException {
+		
+		if ( historyCache == null ) 
+			return seekUpdates( jid, sid, cursor, limit, older );
+		
+		ArrayList< DSUpdate > page = historyCache.get( jid, sid, cursor, older, limit );
+		if ( page != null ) 
+			return page;
+		
+		long token = historyCache.begin( jid );
+		page = seekUpdates( jid, sid, cursor, limit, older );
+		historyCache.put( jid, sid, cursor, older, limit, token, page );
+		return page;
+	}
+	
+	//////////////////////////////////
+
+	private ArrayList< DSUpdate > seekUpdates( 
+		String jid, 
+		String sid, 
+		DSHistoryCursor cursor, 
+		int limit, 
+		boolean older ) 
+	throws SQLException {
+		
+		//-- on a partitioned table, look for the page close to the cursor first. 
+		//-- a full page found within a window must be the page sought
+		if ( partitionManager != null && ( older || cursor != null ) ) {
+			long from = ( cursor != null ) ? cursor.getCtime() : System.currentTimeMillis();
+			for ( long window : PRUNE_WINDOWS ) {
+				ArrayList< DSUpdate > updates = seekUpdates( 
+					jid, sid, cursor, limit, older, older ? from - window : from + window );
+				if ( updates.size() >= limit ) 
+					return updates;
+			}
+		}
+		return seekUpdates( jid, sid, cursor, limit, older, null );
+	}
+	
+	//////////////////////////////////
+
+	/**
+	 * @param bound If not null, the furthest ctime from the cursor to look at.
+	 */
+	private ArrayList< DSUpdate > seekUpdates( 
+		String jid, 
+		String sid, 
+		DSHistoryCursor cursor, 
+		int limit, 
+		boolean older,
+		Long bound ) 
+	throws SQLException {
+		
+		String cmp = older ? "<" : ">";
+		String dir = older ? "DESC" : "ASC";
+		
+		String query = "SELECT * FROM " + DEFAULT_SYS_DB + "." + UPDATES_TABLE + " WHERE jid=? "; 
+		if ( sid != null ) 
+			query += "AND sid=? ";
+		if ( cursor != null ) 
+			query += "AND ( ctime " + cmp + " ? OR ( ctime = ? AND ( rtime " + cmp + " ? OR ( rtime = ? AND sid " + cmp + " ? ) ) ) ) ";
+		if ( bound != null ) 
+			query += "AND ctime " + ( older ? ">=" : "<=" ) + " ? ";
+		query += "ORDER BY ctime " + dir + ", rtime " + dir + ", sid " + dir + " LIMIT ?";
+		
+		ArrayList< DSUpdate > updates = new ArrayList< DSUpdate >();
+		DSPooledConnection c = pool.borrow();
+		ResultSet rs = null;
+		try {
+			PreparedStatement stmt = c.prepare( query );
+			int i = 1;
+			stmt.setString( i++, jid );
+			if ( sid != null ) stmt.setString( i++, sid );
+			if ( cursor != null ) {
+				stmt.setLong( i++, cursor.getCtime() );
+				stmt.setLong( i++, cursor.getCtime() );
+				stmt.setLong( i++, cursor.getRtime() );
+				stmt.setLong( i++, cursor.getRtime() );
+				stmt.setString( i++, cursor.getSid() );
+			}
+			if ( bound != null ) stmt.setLong( i++, bound );
+			stmt.setInt( i++, limit );
+			
+			rs = stmt.executeQuery();
+			while ( rs.next() ) {
+				DSUpdate u = readUpdate( rs );
+				if ( u != null ) updates.add( u );
+			}
+		} finally {
+			close( rs );
+			pool.release( c );
+		}
+		
+		//-- pages are always presented newest first
+		if ( !older ) 
+			Collections.reverse( updates );
+		
+		return updates;
+	}
+
+	//////////////////////////////////
+
+	/**
+	 * Returns a client's record, from the client cache where possible. Users
+	 * rarely change, so a cached record is trusted until it expires or is
+	 * invalidated via {@link #invalidateClient(String)}.
+	 * @return DSClient The client, or null if the jid is not registered.
+	 * @throws SQLException 
+	 */
+	public DSClient fetchClient( String jid ) 
+	throws SQLException {
+		
+		DSClient client = clientCache.get( jid );
+		if ( client != null ) 
+			return client;
+		
+		//-- users are registered outside the catalog, so a jid the filter doesn't 
+		//-- know is still checked, but only once in a while
+		DSBloomFilter known = knownClients;
+		boolean unknown = known != null && !known.mightContain( jid );
+		if ( unknown && unknownClients.get( jid ) != null )
+			return null;
+		
+		DSPooledConnection c = pool.borrow();
+		ResultSet rs = null;
+		try {
+			PreparedStatement stmt = c.prepare( FETCH_CLIENT_QUERY );
+			stmt.setString( 1, jid );
+			rs = stmt.executeQuery();
+			if ( !rs.next() ) {
+				if ( unknown ) unknownClients.put( jid, Boolean.TRUE );
+				return null;
+			}
+			
+			client = readClient( rs );
+			clientCache.put( jid, client );
+			if ( unknown ) known.add( jid );
+			return client;
+			
+		} finally {
+			close( rs );
+			pool.release( c );
+		}
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Accepts an update received from a dataware source, on behalf of the XMPP
+	 * listener that received it. Where asynchronous ingest is enabled the update 
+	 * is queued for a worker to record, and the listener is free to carry on;
+	 * otherwise it is recorded on the caller's thread.
+	 */
+	public void ingestUpdate( String jid, String from, DSUpdate d ) {
+		
+		if ( ingestQueue != null && ingestQueue.submit( jid, from, d ) )
+			return;
+		insertUpdate( jid, from, d );
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Accepts a batch of updates received from a dataware source in a single
+	 * message, queued for a worker as one unit where asynchronous ingest is
+	 * enabled, and otherwise recorded on the caller's thread.
+	 * @param handler Told of the batch should it not be recorded, or null.
+	 */
+	public void ingestUpdates( String jid, String from, List< DSUpdate > updates, DSBatchRejectionHandler handler ) {
+		
+		if ( ingestQueue != null && ingestQueue.submit( jid, from, updates, handler ) )
+			return;
+		recordBatch( jid, from, updates, handler );
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Records a batch as {@link #insertBatch}, telling the handler if it is 
+	 * rejected or cannot be written at all.
+	 * @param handler Told of the batch should it not be recorded, or null.
+	 */
+	void recordBatch( String jid, String from, List< DSUpdate > updates, DSBatchRejectionHandler handler ) {
+		
+		boolean recorded;
+		try {
+			recorded = insertBatch( jid, from, updates ) == updates.size();
+		} catch ( SQLException e ) {
+			logger.severe( "--- DSDataManager: [" + jid + "] BATCH UPDATE FAILURE: " + e.getMessage() );
+			recorded = false;
+		}
+		
+		if ( !recorded && handler != null ) {
+			try {
+				handler.rejected( jid, from, updates );
+			} catch ( RuntimeException e ) {
+				logger.log( Level.WARNING, "--- DSDataManager: [" + jid + "] failed to report rejected batch from <" + from + ">", e );
+			}
+		}
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Records a batch of updates received from a dataware source in a single
+	 * message, as one unit: either every update is written or none is. The 
+	 * batch bypasses write-behind, being a batch already. Every update is 
+	 * received at the same time, other than where several share a creation 
+	 * time: as the key needs them to differ, each of those is given a received
+	 * time a millisecond before the next, the last being received now, so no
+	 * update is ever stamped with a time yet to come.
+	 * @return int The number of updates written.
+	 * @throws SQLException Thrown if the database cannot be reached at all.
+	 */
+	public int insertBatch( String jid, String from, List< DSUpdate > updates ) 
+	throws SQLException {
+		
+		//-- count the updates sharing each creation time
+		HashMap< Long, Integer > ties = new HashMap< Long, Integer >();
+		for ( DSUpdate d : updates ) {
+			Integer n = ties.get( d.getCtime() );
+			ties.put( d.getCtime(), ( n == null ) ? 1 : n + 1 );
+		}
+		
+		//-- then step each back from now by the number still to come after it
+		long now = System.currentTimeMillis();
+		ArrayList< DSPendingUpdate > batch = new ArrayList< DSPendingUpdate >( updates.size() );
+		for ( DSUpdate d : updates ) {
+			int later = ties.get( d.getCtime() ) - 1;
+			ties.put( d.getCtime(), later );
+			batch.add( new DSPendingUpdate( jid, from, d, now - later ) );
+		}
+		
+		return insertUpdates( batch, true );
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Records an update received from a dataware source. If write-behind ingest
+	 * is enabled the update is buffered and written as part of a later batch,
+	 * otherwise it is written immediately.
+	 */
+	public void insertUpdate( String jid, String from, DSUpdate d ) {
+
+		//-- appending to the embedded store is cheap enough not to need buffering
+		if ( updateStore != null ) {
+			updateStore.insertUpdate( jid, from, d );
+			return;
+		}
+		
+		if ( writeBehindQueue != null && writeBehindQueue.enqueue( jid, from, d ) )
+			return;
+		
+		DSPooledConnection c = null;
+		DSPendingUpdate p = null;
+		try {
+			c = pool.borrow();
+			c.getConnection().setAutoCommit( false );
+			p = new DSPendingUpdate( jid, from, d, System.currentTimeMillis() );
+			writeUpdate( c, p );
+			c.getConnection().commit();
+			counters.add( jid, from, 1 );
+			remember( p );
+
+		} catch ( SQLException e ) {
+			e.printStackTrace();
+			logger.severe( "--- DSDataManager: [" + jid + "] UPDATE FAILURE: " + e.getMessage() );
+		} finally {
+			pool.release( c );
+			flushDictionary();
+		}
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Writes a single update together with the increment of its counter. The
+	 * caller is responsible for the surrounding transaction.
+	 */
+	private void writeUpdate( DSPooledConnection c, DSPendingUpdate p ) 
+	throws SQLException {
+		
+		PreparedStatement stmt = c.prepare( INSERT_UPDATE_QUERY );
+		bindUpdate( stmt, p );
+		stmt.executeUpdate();
+		
+		PreparedStatement count = c.prepare( INCREMENT_COUNT_QUERY );
+		count.setString( 1, p.getJid() );
+		count.setString( 2, p.getSid() );
+		count.setLong( 3, 1 );
+		count.executeUpdate();
+	}
+
+	//////////////////////////////////
+	
+	/**
+	 * Writes a batch of updates in a single transaction using JDBC batching. 
+	 * Should the batch be rejected (for example because a single row clashes 
+	 * with an existing key) it is rolled back and the rows are retried one at a 
+	 * time, so that only the offending rows are lost.
+	 * @param batch The updates to be written.
+	 * @return int The number of updates successfully written.
+	 * @throws SQLException Thrown if the database cannot be reached at all.
+	 */
+	public int insertUpdates( List< DSPendingUpdate > batch ) 
+	throws SQLException {
+		return insertUpdates( batch, false );
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Writes a batch of updates in a single transaction using JDBC batching.
+	 * @param atomic 	If true, a rejected batch is rolled back and nothing is
+	 * written; otherwise its rows are retried one at a time. N.b. the embedded
+	 * update store appends each update in turn either way.
+	 * @return int The number of updates successfully written.
+	 * @throws SQLException Thrown if the database cannot be reached at all.
+	 */
+	public int insertUpdates( List< DSPendingUpdate > batch, boolean atomic ) 
+	throws SQLException {
+		
+		if ( batch.isEmpty() ) return 0;
+		
+		if ( updateStore != null ) 
+			return updateStore.insertUpdates( batch );
+		
+		//-- tally the counter increments the batch amounts to, per user and source
+		HashMap< String, HashMap< String, Long > > increments = new HashMap< String, HashMap< String, Long > >();
+		for ( DSPendingUpdate p : batch ) {
+			HashMap< String, Long > sids = increments.get( p.getJid() );
+			if ( sids == null ) {
+				sids = new HashMap< String, Long >();
+				increments.put( p.getJid(), sids );
+			}
+			Long n = sids.get( p.getSid() );
+			sids.put( p.getSid(), ( n == null ) ? 1L : n + 1 );
+		}
+		
+		DSPooledConnection c = pool.borrow();
+		try {
+			PreparedStatement stmt = c.prepare( INSERT_UPDATE_QUERY );
+			PreparedStatement count = c.prepare( INCREMENT_COUNT_QUERY );
+			c.getConnection().setAutoCommit( false );
+			try {
+				for ( DSPendingUpdate p : batch ) {
+					bindUpdate( stmt, p );
+					stmt.addBatch();
+				}
+				stmt.executeBatch();
+				
+				for ( Map.Entry< String, HashMap< String, Long > > u : increments.entrySet() ) {
+					for ( Map.Entry< String, Long > s : u.getValue().entrySet() ) {
+						count.setString( 1, u.getKey() );
+						count.setString( 2, s.getKey() );
+						count.setLong( 3, s.getValue() );
+						count.addBatch();
+					}
+				}
+				count.executeBatch();
+				c.getConnection().commit();
+				
+				for ( Map.Entry< String, HashMap< String, Long > > u : increments.entrySet() )
+					for ( Map.Entry< String, Long > s : u.getValue().entrySet() )
+						counters.add( u.getKey(), s.getKey(), s.getValue() );
+				for ( DSPendingUpdate p : batch )
+					remember( p );
+				return batch.size();
+				
+			} catch ( BatchUpdateException e ) {
+				c.getConnection().rollback();
+				if ( atomic ) {
+					logger.severe( "--- DSDataManager: [" + batch.get( 0 ).getJid() + "] batch of " + batch.size() + 
+						" updates from <" + batch.get( 0 ).getSid() + "> rejected (" + e.getMessage() + "). none written." );
+					return 0;
+				}
+				logger.warning( "--- DSDataManager: batch of " + batch.size() + 
+					" updates rejected (" + e.getMessage() + "). retrying individually." );
+			}
+			
+			//-- fall back to writing the rows one at a time, each with its counter
+			stmt.clearBatch();
+			count.clearBatch();
+			int written = 0;
+			for ( DSPendingUpdate p : batch ) {
+				try {
+					writeUpdate( c, p );
+					c.getConnection().commit();
+					counters.add( p.getJid(), p.getSid(), 1 );
+					remember( p );
+					written++;
+				} catch ( SQLException e ) {
+					c.getConnection().rollback();
+					logger.severe( "--- DSDataManager: [" + p.getJid() + "] UPDATE FAILURE: " + e.getMessage() );
+				}
+			}
+			return written;
+			
+		} finally {
+			pool.release( c );
+			flushDictionary();
 		}
-		
-		return clients;
 	}
 	
 	//////////////////////////////////
-
-	public int fetchUpdateTotal( String jid, String sid )
-	throws SQLException {		
-		Statement stmt = createStatement();
-		String query = "SELECT COUNT(1) total FROM " + DEFAULT_SYS_DB + "." + 
-			UPDATES_TABLE + " WHERE jid='" + jid + "' ";
-		if ( sid != null )
-			query += "AND sid = '" + sid + "'"; 
-		ResultSet rs = stmt.executeQuery( query );
+	
+	/**
+	 * Runs a read, sharing it with any identical read already in flight. Each
+	 * caller is handed the same result, which it should copy before changing.
+	 * @param method 	The name of the method making the read.
+	 * @param args 		Every argument affecting the result of the read.
+	 */
+	private < V > V coalesce( String method, Callable< V > read, Object ... args ) 
+	throws SQLException, DSFormatException {
 		
-		if ( rs.next() ) {
-			return rs.getInt( "total" );
-		}
-		else {
-			return 0;
+		try {
+			if ( flights == null ) 
+				return read.call();
+			
+			StringBuilder key = new StringBuilder( method );
+			for ( Object arg : args ) 
+				key.append( '\u0000' ).append( arg );
+			return flights.execute( key.toString(), read );
+			
+		} catch ( SQLException e ) {
+			throw e;
+		} catch ( DSFormatException e ) {
+			throw e;
+		} catch ( RuntimeException e ) {
+			throw e;
+		} catch ( Exception e ) {
+			throw new SQLException( e );
 		}
 	}
 	
 	//////////////////////////////////
-
-	public int fetchUpdateTotal( String jid )
-	throws SQLException {		
-		return fetchUpdateTotal( jid, null );
-	}
 	
-	//////////////////////////////////
-
 	/**
-	 * 
-	 * @return
-	 * @throws SQLException 
-	 * @throws JSONException 
+	 * Coalesces a read of a page of updates, handing the caller its own copy.
+	 * @see #coalesce(String, Callable, Object...)
 	 */
-	public ArrayList< DSUpdate > fetchUpdates( String jid, String sid ) 
-	throws SQLException, JSONException {
-		return fetchUpdates( jid, sid, null, null );
+	private ArrayList< DSUpdate > coalescePage( String method, Callable< ArrayList< DSUpdate > > read, Object ... args ) 
+	throws SQLException {
+		
+		try {
+			return new ArrayList< DSUpdate >( coalesce( method, read, args ) );
+		} catch ( DSFormatException e ) {
+			throw new SQLException( e );
+		}
 	}
 	
 	//////////////////////////////////
-
+	
 	/**
-	 * 
-	 * @return
-	 * @throws SQLException 
-	 * @throws JSONException 
+	 * Passes a committed update on to the history caches. Cached pages it 
+	 * affects are discarded, while the recent history has it added; the update
+	 * is only rebuilt, in the form it would be read back from the table, if
+	 * one of its recent histories is actually held.
 	 */
-	public ArrayList< DSUpdate > fetchUpdates( String jid, String sid, Integer limit, Integer offset  ) 
-	throws SQLException, JSONException {
+	private void remember( DSPendingUpdate p ) {
 		
-		ArrayList< DSUpdate > updates = new ArrayList< DSUpdate >();
-				
-		Statement stmt = createStatement();
-		String query = "";
-		query += "SELECT * FROM " + DEFAULT_SYS_DB + "." + UPDATES_TABLE + " "; 
-		query += "WHERE jid='" + jid + "' ";
-		if ( sid != null ) 
-			query += " AND sid='" + sid + "' ";
-		query += "ORDER BY ctime DESC ";
-
-		if ( limit != null ) query += " LIMIT " + limit;
-		if ( offset != null ) query += " OFFSET " + offset;
+		if ( historyCache != null ) 
+			historyCache.invalidate( p.getJid(), p.getSid() );
 		
-		ResultSet rs = stmt.executeQuery( query );
+		if ( recent == null ) return;
+		recent.touch( p.getJid() );
+		if ( !recent.isWarm( p.getJid(), p.getSid() ) ) return;
 		
-		while ( rs.next() ) {
+		DSUpdate d = p.getUpdate();
+		DSUpdate u;
+		try {
+			u = new DSUpdate( p.getSid(), d.getPrimaryTag(), d.getCrud() )
+			.setDescription( d.getDescription() )
+			.setTotal( d.getTotal() )
+			.setCtime( d.getCtime() )
+			.setFtime( d.getFtime() )
+			.setRtime( p.getRtime() )
+			.setSid( p.getSid() );
 			
-			DSUpdate u;
-			try {
-				u = new DSUpdate( 
-					rs.getString( "sid" ),
-					rs.getString( "primaryTag" ),
-					rs.getString( "crud" )
-				)
-				.setDescription( rs.getString( "description" ) )
-				.setTotal( rs.getLong( "total" ) )
-				.setCtime( rs.getLong( "ctime" ) )
-				.setFtime( rs.getLong( "ftime" ) )
-				.setRtime( rs.getLong( "rtime" ) )
-				.setSid( rs.getString( "sid" ) );
-				
-				try {
-					u.setTags( new JSONArray ( rs.getString( "tags" ) ) );
-				} catch ( Exception e ) {}
-				
-				try {
-					u.setMeta( new JSONObject( rs.getString( "meta" ) ) );
-				} catch ( Exception e ) {}
-				
-				updates.add( u );
-				
-			} catch ( DSFormatException e ) {
-				e.printStackTrace();
-			}
+		} catch ( DSFormatException e ) {
+			return;
 		}
 		
-		return updates;
+		u.setTagsJSON( d.getTagsJSON() ).setMetaJSON( d.getMetaJSON() );
+		if ( d.getLocation() != null ) 
+			u.setLocation( d.getLocation().getLat(), d.getLocation().getLon() );
+		recent.add( p.getJid(), p.getSid(), u );
 	}
-
+	
 	//////////////////////////////////
-
-	/**
-	 * 
-	 * @return
-	 * @throws SQLException 
-	 */
-	public DSClient fetchClient( String jid ) 
+	
+	private void bindUpdate( PreparedStatement stmt, DSPendingUpdate p ) 
 	throws SQLException {
 		
-		Statement stmt = createStatement();
-		String query = "SELECT * FROM " + DEFAULT_SYS_DB + "." + 
-			USERS_TABLE + " " +	"WHERE jid='" + jid + "'";
-		ResultSet rs = stmt.executeQuery( query );
+		DSUpdate d = p.getUpdate();
+		stmt.setString( 1, p.getJid() );
+		stmt.setString( 2, p.getSid() );
+		stmt.setString( 4, d.getDescription() );
+		stmt.setString( 5, d.getCrud() );
+		stmt.setLong( 6, d.getTotal() );
+		stmt.setLong( 9, d.getCtime() );
+		stmt.setLong( 10, p.getRtime() );
+		stmt.setString( 11, d.getPrimaryTag() );
+		stmt.setLong( 12, d.getFtime() );
 		
-		if ( rs.next() ) {
-			
-			return new DSClient( 
-				rs.getString( "jid" ),
-				rs.getString( "firstname" ),
-				rs.getString( "lastname" ),
-				rs.getString( "email" ),
-				rs.getLong( "ctime" ),
-				rs.getLong( "atime" ),
-				rs.getString( "host" ), 
-				rs.getString( "service" ),
-				rs.getString( "user" ),
-				rs.getString( "pass" ) );
+		//-- in binary, the location, meta and tags all go in the payload instead
+		if ( encodePayloads && codec != null ) {
+			stmt.setString( 3, "" );
+			stmt.setString( 7, "" );
+			stmt.setString( 8, "" );
+			stmt.setBytes( 13, codec.encode( d ) );
+		} else {
+			stmt.setString( 3, d.getLocationJSON() );
+			stmt.setString( 7, d.getMetaJSON() );
+			stmt.setString( 8, d.getTagsJSON() );
+			stmt.setNull( 13, Types.BLOB );
 		}
-		
-		return null;
 	}
 	
 	//////////////////////////////////
 	
-	public void insertUpdate( String jid, String from, DSUpdate d ) {
-
+	/**
+	 * Numbers any strings the payload encoding has noted since the last flush.
+	 * Called once the writer has released its connection.
+	 */
+	private void flushDictionary() {
+		
+		if ( codec == null || !codec.getDictionary().hasPending() ) return;
 		try {
-		   PreparedStatement stmt = conn.prepareStatement(
-				  "INSERT INTO " + DEFAULT_SYS_DB + "." + UPDATES_TABLE + " " +
-				  "( jid, sid, loc, description, crud, total, meta, tags, ctime, rtime, primaryTag, ftime  ) " +
-				  "VALUES ( ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ? ) "
-		   );
-		   
-		   stmt.setString( 1, jid );
-		   stmt.setString( 2, from );
-		   stmt.setString( 3, d.getLocationJSON() );
-		   stmt.setString( 4, d.getDescription() );
-		   stmt.setString( 5, d.getCrud() );
-		   stmt.setLong( 6, d.getTotal() );
-		   stmt.setString( 7, d.getMetaJSON() );
-		   stmt.setString( 8, d.getTagsJSON() );
-		   stmt.setLong( 9, d.getCtime() );
-		   stmt.setLong( 10, System.currentTimeMillis() );
-		   stmt.setString( 11, d.getPrimaryTag() );
-		   stmt.setLong( 12, d.getFtime() );
-		   
-		   stmt.executeUpdate();
-
-			
+			codec.getDictionary().flush();
 		} catch ( SQLException e ) {
-			e.printStackTrace();
-			logger.severe( "--- DSDataManager: [" + jid + "] UPDATE FAILURE: " + e.getMessage() );
+			logger.warning( "--- DSDataManager: unable to extend payload dictionary - " + e.getMessage() );
 		}
 	}
 
@@ -646,22 +2194,30 @@ public class DSDataManager {
 	
 	public String getSubStatus( String jid, String sid ) {
 
+		if ( subIndex.isLoaded() ) {
+			DSSubscriptionIndex.Subscription sub = subIndex.getSub( jid, sid );
+			return ( sub == null ) ? null : sub.getStatus();
+		}
+		
 		String subscriptionStatus = null;
+		DSPooledConnection c = null;
+		ResultSet rs = null;
 		try {
-			Statement stmt = createStatement();
-			String query = "SELECT subscriptionStatus " +
-				"FROM " + SUBSCRIPTIONS_TABLE + " " + 
-				"WHERE sid='" + sid + "' " +
-				"AND jid='" + jid + "'";
-			
-			ResultSet rs = stmt.executeQuery( query );
+			c = pool.borrow();
+			PreparedStatement stmt = c.prepare( SUB_STATUS_QUERY );
+			stmt.setString( 1, sid );
+			stmt.setString( 2, jid );
 			
+			rs = stmt.executeQuery();
 			if ( rs.next() ) 
 				subscriptionStatus = rs.getString( "subscriptionStatus" );
 
 		} catch ( SQLException e ) {
 			
 			logger.log( Level.SEVERE, "+++ DSDataManager: SQL Meltdown in getSubscriptionStatus - ", e.getMessage() );
+		} finally {
+			close( rs );
+			pool.release( c );
 		}
 		
 		return subscriptionStatus; 
@@ -675,20 +2231,25 @@ public class DSDataManager {
 		Status status ) 
 	{
 
+		DSPooledConnection c = null;
 		try {
-			Statement stmt = createStatement();
-			String query =
-				"UPDATE " + SUBSCRIPTIONS_TABLE + " " + 
-				"SET subscriptionStatus='" + status + "' " +
-				"WHERE sid='" + sid + "' " +
-				"AND jid='" + jid + "'";
+			long mtime = System.currentTimeMillis();
+			c = pool.borrow();
+			PreparedStatement stmt = c.prepare( SET_SUB_STATUS_QUERY );
+			stmt.setString( 1, status.toString() );
+			stmt.setLong( 2, mtime );
+			stmt.setString( 3, sid );
+			stmt.setString( 4, jid );
 			
-			stmt.executeUpdate( query );
+			stmt.executeUpdate();
+			subIndex.setSubStatus( jid, sid, status, mtime );
 			logger.finer( "--- DSDataManager: [" + jid + "] Changed Subscription <" + sid + "> to " + status );
 			
 		} catch ( SQLException e ) {
 			logger.log( Level.SEVERE, "+++ DSDataManager: SQL Meltdown in setSubStatus - ", e.getMessage() );
-		} 
+		} finally {
+			pool.release( c );
+		}
 	}
 	
 	//////////////////////////////////
@@ -726,26 +2287,29 @@ public class DSDataManager {
 			logger.fine( "--- DSDataManager: [" + jid + "] source recognized <" + vCard.getNamespace() + ">.");
 		
 		//-- that done insert the subscription proper
+		DSPooledConnection c = null;
 		try {
 			
-		   PreparedStatement stmt = conn.prepareStatement(
-				"INSERT INTO " + DEFAULT_SYS_DB + "." + SUBSCRIPTIONS_TABLE + " " +
-				"(sid, jid, subscriptionStatus, ctime, mtime ) VALUES (?, ?, ?, ?, ?)"
-		   );
+		   c = pool.borrow();
+		   PreparedStatement stmt = c.prepare( INSERT_SUB_QUERY );
+		   long now = System.currentTimeMillis();
 
 		   stmt.setString( 1, sid );
 		   stmt.setString( 2, jid );
 		   stmt.setString( 3, status.toString() );
-		   stmt.setLong( 4, System.currentTimeMillis() );
-		   stmt.setLong( 5, System.currentTimeMillis() );
+		   stmt.setLong( 4, now );
+		   stmt.setLong( 5, now );
 		   
 		   stmt.executeUpdate();
+		   subIndex.putSub( jid, sid, new DSSubscriptionIndex.Subscription( status.toString(), now, now ) );
 
 			logger.fine( "--- DSDataManager: [" + jid + "] new subscription registered to <" + vCard.getNamespace() +">" );
 			
 		} catch ( SQLException e ) {
 			logger.log( Level.SEVERE, "+++ DSDataManager:  [" + jid + "] SQL Meltdown in insertSub - ", e.getMessage() );
-		} 
+		} finally {
+			pool.release( c );
+		}
 	}
 	
 	//////////////////////////////////
@@ -753,22 +2317,27 @@ public class DSDataManager {
 	public void insertSource( DSVCard vCard ) 
 	throws DSFormatException, SQLException {
 
-		PreparedStatement stmt = conn.prepareStatement(
-			"INSERT into datasphere.ds_sys_sources " +
-			"( sid, namespace, name, url, avatar, orgname, orgunit, description ) " +
-			"VALUES ( ?, ?, ?, ?, ?, ?, ?, ? ) "
-		);
-	   
-	   stmt.setString( 1, vCard.getSid() );
-	   stmt.setString( 2, vCard.getNamespace() );
-	   stmt.setString( 3, vCard.getNickName() );
-	   stmt.setString( 4, vCard.getUrl() );
-	   stmt.setBoolean( 5, vCard.hasAvatar() );
-	   stmt.setString( 6, vCard.getOrgName() );
-	   stmt.setString( 7,  vCard.getOrgUnit() );
-	   stmt.setString( 8, vCard.getDesc() );
-			   
-	   stmt.executeUpdate();
+		DSPooledConnection c = pool.borrow();
+		try {
+		   PreparedStatement stmt = c.prepare( INSERT_SOURCE_QUERY );
+		   
+		   stmt.setString( 1, vCard.getSid() );
+		   stmt.setString( 2, vCard.getNamespace() );
+		   stmt.setString( 3, vCard.getNickName() );
+		   stmt.setString( 4, vCard.getUrl() );
+		   stmt.setBoolean( 5, vCard.hasAvatar() );
+		   stmt.setString( 6, vCard.getOrgName() );
+		   stmt.setString( 7,  vCard.getOrgUnit() );
+		   stmt.setString( 8, vCard.getDesc() );
+				   
+		   stmt.executeUpdate();
+		   
+		   DSBloomFilter known = knownSources;
+		   if ( known != null ) known.add( vCard.getSid() );
+		} finally {
+			sourceCache.invalidate( vCard.getSid() );
+			pool.release( c );
+		}
 	}
 
 	//////////////////////////////////
@@ -779,24 +2348,43 @@ public class DSDataManager {
 		)
 	throws SQLException {
 		
-		Statement stmt = createStatement();
-		String query = 
-			"SELECT * FROM " + DEFAULT_SYS_DB + "." + SUBSCRIPTIONS_TABLE + " b " +
-			"INNER JOIN " + DEFAULT_SYS_DB + "." + SOURCES_TABLE + " s ON s.sid = b.sid " +
-			"WHERE b.jid='" + jid + "' AND b.sid='" + sid + "'";
-
-		ResultSet rs = stmt.executeQuery( query );
-				
-		if ( rs.next() ) {
+		if ( subIndex.isLoaded() ) {
+			DSSubscriptionIndex.Subscription sub = subIndex.getSub( jid, sid );
+			if ( sub == null ) 
+				return null;
 			
-			return new DSSub( 
-				rs.getString( "sid" ),
-				rs.getString( "jid" ),
-				rs.getString( "subscriptionStatus" ),
-				rs.getLong( "ctime" ),
-				rs.getLong( "mtime" ),
-				rs.getString( "namespace" )
-			);
+			//-- as with the join, a subscription is only visible alongside its source
+			try {
+				DSVCard source = fetchSource( sid );
+				return ( source == null ) ? null : 
+					new DSSub( sid, jid, sub.getStatus(), sub.getCtime(), sub.getMtime(), source.getNamespace() );
+			} catch ( DSFormatException e ) {
+				return null;
+			}
+		}
+		
+		DSPooledConnection c = pool.borrow();
+		ResultSet rs = null;
+		try {
+			PreparedStatement stmt = c.prepare( FETCH_SUB_QUERY );
+			stmt.setString( 1, jid );
+			stmt.setString( 2, sid );
+	
+			rs = stmt.executeQuery();
+			if ( rs.next() ) {
+				
+				return new DSSub( 
+					rs.getString( "sid" ),
+					rs.getString( "jid" ),
+					rs.getString( "subscriptionStatus" ),
+					rs.getLong( "ctime" ),
+					rs.getLong( "mtime" ),
+					rs.getString( "namespace" )
+				);
+			}
+		} finally {
+			close( rs );
+			pool.release( c );
 		}
 		
 		return null;
@@ -810,91 +2398,177 @@ public class DSDataManager {
 		)
 	throws SQLException {
 		
-		Statement stmt = createStatement();
-		String query = 
-			"DELETE FROM " + DEFAULT_SYS_DB + "." + SUBSCRIPTIONS_TABLE + " " +
-			"WHERE jid='" + jid + "' " +
-			"AND sid='" + sid + "'";
-
-		stmt.executeUpdate( query );
+		DSPooledConnection c = pool.borrow();
+		try {
+			PreparedStatement stmt = c.prepare( DELETE_SUB_QUERY );
+			stmt.setString( 1, jid );
+			stmt.setString( 2, sid );
+			stmt.executeUpdate();
+			subIndex.removeSub( jid, sid );
+		} finally {
+			pool.release( c );
+		}
 	}
 	
 	//////////////////////////////////
 	
 
+	/**
+	 * Returns the sources a user subscribes to. The subscribed sids come from
+	 * the subscription index (or, before it is loaded, the subscriptions table); 
+	 * their vCards come from the source cache, with any not yet cached loaded 
+	 * together in a single query.
+	 * @param statuses If any are given, only subscriptions with one of these statuses are included.
+	 */
 	public ArrayList< DSVCard > fetchSources( 
-			String jid, 
-			DSSub.Status ... statuses ) 
+			final String jid, 
+			final DSSub.Status ... statuses ) 
 	throws SQLException, DSFormatException {
 		
-		Statement stmt = createStatement();
-		String query = 
-			"SELECT * FROM " + 
-			DEFAULT_SYS_DB + "." + SUBSCRIPTIONS_TABLE + " b, " +
-			DEFAULT_SYS_DB + "." + SOURCES_TABLE + " s " +
-			"WHERE b.jid='" + jid + "' " +
-			"AND b.sid=s.sid ";
-
-		if ( statuses.length > 0 ) {
-			String str = "";
-			for ( DSSub.Status status : statuses )  
-				str += "'" + status.toString() + "',";
-			str = str.substring( 0, str.length() - 1 );
-			query += "AND b.subscriptionStatus IN (" + str + ")";
+		return new ArrayList< DSVCard >( coalesce( "fetchSources", new Callable< ArrayList< DSVCard > >() {
+			public ArrayList< DSVCard > call() throws SQLException, DSFormatException {
+				return readSources( jid, statuses );
+			}
+		}, jid, Arrays.toString( statuses ) ) );
+	}
+	
+	//////////////////////////////////
+	
+	private ArrayList< DSVCard > readSources( String jid, DSSub.Status ... statuses ) 
+	throws SQLException, DSFormatException {
+		
+		ArrayList< String > sids = subIndex.isLoaded() ? 
+			subIndex.getSids( jid, statuses ) : fetchSids( jid, statuses );
+		
+		//-- pick up what we can from the cache, noting what we can't
+		HashMap< String, DSVCard > found = new HashMap< String, DSVCard >();
+		ArrayList< String > missing = new ArrayList< String >();
+		for ( String sid : sids ) {
+			DSVCard vCard = sourceCache.get( sid );
+			if ( vCard != null ) found.put( sid, vCard );
+			else missing.add( sid );
 		}
 		
+		if ( !missing.isEmpty() ) 
+			found.putAll( loadSources( missing ) );
+		
+		//-- as with the join this replaces, subscriptions to unknown sources are omitted
 		ArrayList< DSVCard > sources = new ArrayList< DSVCard >();
-		ResultSet rs = stmt.executeQuery( query );
+		for ( String sid : sids ) {
+			DSVCard vCard = found.get( sid );
+			if ( vCard != null ) sources.add( vCard );
+		}
+		return sources;
+	}
+	
+	//////////////////////////////////
+	
+	private ArrayList< String > fetchSids( String jid, DSSub.Status ... statuses ) 
+	throws SQLException {
 		
-		while ( rs.next() ) {
-			
-			DSVCard vCard = new DSVCard(
-				rs.getString( "sid" ),
-				rs.getString( "namespace" ),
-				rs.getString( "name" )
-			);
+		String query = 
+			"SELECT sid FROM " + DEFAULT_SYS_DB + "." + SUBSCRIPTIONS_TABLE + " " +
+			"WHERE jid=? ";
+
+		if ( statuses.length > 0 ) 
+			query += "AND subscriptionStatus IN (" + placeholders( statuses.length ) + ")";
+		
+		ArrayList< String > sids = new ArrayList< String >();
+		DSPooledConnection c = pool.borrow();
+		ResultSet rs = null;
+		try {
+			PreparedStatement stmt = c.prepare( query );
+			stmt.setString( 1, jid );
+			for ( int i = 0; i < statuses.length; i++ )
+				stmt.setString( i + 2, statuses[ i ].toString() );
 			
-			vCard.setURL( rs.getString( "url") );
-			vCard.setAvatar( rs.getBoolean( "avatar") );
-			vCard.setOrgName( rs.getString( "orgname") );
-			vCard.setOrgUnit( rs.getString( "orgunit") );
-			vCard.setDesc( rs.getString( "description" ) );
+			rs = stmt.executeQuery();
+			while ( rs.next() ) 
+				sids.add( rs.getString( "sid" ) );
 			
-			sources.add( vCard );
+		} finally {
+			close( rs );
+			pool.release( c );
 		}
+		return sids;
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Reads the vCards of the given sources in a single query, adding them to the source cache.
+	 */
+	private HashMap< String, DSVCard > loadSources( List< String > sids ) 
+	throws SQLException, DSFormatException {
 		
+		HashMap< String, DSVCard > sources = new HashMap< String, DSVCard >();
+		DSPooledConnection c = pool.borrow();
+		ResultSet rs = null;
+		try {
+			PreparedStatement stmt = c.prepare( 
+				"SELECT * FROM " + DEFAULT_SYS_DB + "." + SOURCES_TABLE + " " +
+				"WHERE sid IN (" + placeholders( sids.size() ) + ")" );
+			for ( int i = 0; i < sids.size(); i++ )
+				stmt.setString( i + 1, sids.get( i ) );
+			
+			rs = stmt.executeQuery();
+			while ( rs.next() ) {
+				DSVCard vCard = readSource( rs );
+				sourceCache.put( vCard.getSid(), vCard );
+				sources.put( vCard.getSid(), vCard );
+			}
+		} finally {
+			close( rs );
+			pool.release( c );
+		}
 		return sources;
 	}
 	
 	//////////////////////////////////
 	
+	private static String placeholders( int n ) {
+		StringBuilder str = new StringBuilder();
+		for ( int i = 0; i < n; i++ )  
+			str.append( ( i == 0 ) ? "?" : ",?" );
+		return str.toString();
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Returns a source's vCard, from the source cache where possible.
+	 * N.b. cached vCards are shared between callers, and must not be modified.
+	 * @return DSVCard The vCard, or null if the source is not registered.
+	 */
 	public DSVCard fetchSource( String sid )
 	throws SQLException, DSFormatException {
 
-		Statement stmt = createStatement();
-		String query = 
-			"SELECT * FROM " + DEFAULT_SYS_DB + "." + SOURCES_TABLE + " " +
-			"WHERE sid='" + sid + "'";
-		ResultSet rs = stmt.executeQuery( query );
-
-		if ( rs.next() ) {
-			
-			DSVCard vCard = new DSVCard(
-				rs.getString( "sid" ),
-				rs.getString( "namespace" ),
-				rs.getString( "name" )
-			);
+		DSVCard vCard = sourceCache.get( sid );
+		if ( vCard != null ) 
+			return vCard;
+		
+		//-- sources are only ever registered through insertSource, so the filter is definitive
+		DSBloomFilter known = knownSources;
+		if ( known != null && !known.mightContain( sid ) )
+			return null;
+		
+		DSPooledConnection c = pool.borrow();
+		ResultSet rs = null;
+		try {
+			PreparedStatement stmt = c.prepare( FETCH_SOURCE_QUERY );
+			stmt.setString( 1, sid );
+			rs = stmt.executeQuery();
+			if ( !rs.next() ) 
+				return null;
 			
-			vCard.setURL( rs.getString( "url") );
-			vCard.setAvatar( rs.getBoolean( "avatar" ) );
-			vCard.setOrgName( rs.getString( "orgname") );
-			vCard.setOrgUnit( rs.getString( "orgunit") );
-			vCard.setDesc( rs.getString( "description" ) );
-
+			vCard = readSource( rs );
+			sourceCache.put( sid, vCard );
 			return vCard;
+			
+		} finally {
+			close( rs );
+			pool.release( c );
 		}
-
-		return null;
 	}
 
 	//////////////////////////////////
@@ -902,12 +2576,17 @@ public class DSDataManager {
 	public String fetchNamespace( String sid ) 
 	throws SQLException {
 		
-		Statement stmt = createStatement();
-		String query = 
-			"SELECT namespace FROM " + DEFAULT_SYS_DB + "." + SUBSCRIPTIONS_TABLE + " " +
-			"WHERE sid='" + sid + "'";
-		ResultSet rs = stmt.executeQuery( query );
-		return 	( rs.next() ) ? rs.getString( "namespace" ) :  null;
+		DSPooledConnection c = pool.borrow();
+		ResultSet rs = null;
+		try {
+			PreparedStatement stmt = c.prepare( FETCH_NAMESPACE_QUERY );
+			stmt.setString( 1, sid );
+			rs = stmt.executeQuery();
+			return 	( rs.next() ) ? rs.getString( "namespace" ) :  null;
+		} finally {
+			close( rs );
+			pool.release( c );
+		}
 	}
 
 	//////////////////////////////////
@@ -915,22 +2594,26 @@ public class DSDataManager {
 	public void updatePolicy( String jid, String sid, Status status ) 
 	throws SQLException {
 	
-		Statement stmt = createStatement(); 
-		String delete = 	
-			"DELETE FROM " + POLICIES_TABLE + " " + 
-			"WHERE sid='" + sid + "' " +
-			"AND jid='" + jid + "'";
-	 	stmt.addBatch( delete );
-		
-	 	String insert = 	
-			"INSERT INTO " + POLICIES_TABLE + " " + 
-			"VALUES(" +
-			"'" + sid + "'," +
-			"'" + jid + "'," +
-			"'" + status + "')";
-	 	stmt.addBatch( insert );
-	 	
-		stmt.executeBatch();
+		DSPooledConnection c = pool.borrow();
+		try {
+			c.getConnection().setAutoCommit( false );
+			
+			PreparedStatement delete = c.prepare( DELETE_POLICY_QUERY );
+			delete.setString( 1, sid );
+			delete.setString( 2, jid );
+			delete.executeUpdate();
+			
+			PreparedStatement insert = c.prepare( INSERT_POLICY_QUERY );
+			insert.setString( 1, sid );
+			insert.setString( 2, jid );
+			insert.setString( 3, status.toString() );
+			insert.executeUpdate();
+			
+			c.getConnection().commit();
+			subIndex.putPolicy( jid, sid, status );
+		} finally {
+			pool.release( c );
+		}
 	}
 
 	//////////////////////////////////
@@ -938,12 +2621,16 @@ public class DSDataManager {
 	public void resetPolicy( String jid, String sid ) 
 	throws SQLException {
 		
-		Statement stmt = createStatement(); 
-		String delete = 	
-			"DELETE FROM " + POLICIES_TABLE + " " + 
-			"WHERE sid='" + sid + "' " +
-			"AND jid='" + jid + "'";
-	 	stmt.executeUpdate( delete );
+		DSPooledConnection c = pool.borrow();
+		try {
+			PreparedStatement stmt = c.prepare( DELETE_POLICY_QUERY );
+			stmt.setString( 1, sid );
+			stmt.setString( 2, jid );
+		 	stmt.executeUpdate();
+		 	subIndex.removePolicy( jid, sid );
+		} finally {
+			pool.release( c );
+		}
 	}
 
 	//////////////////////////////////
@@ -951,17 +2638,147 @@ public class DSDataManager {
 	public Status fetchPolicy( String jid, String sid ) 
 	throws SQLException {
 		
-		Statement stmt = createStatement();
-		String query = 
-			"SELECT * FROM " + DEFAULT_SYS_DB + "." + POLICIES_TABLE + " " +
-			"WHERE sid='" + sid + "'";
+		if ( subIndex.isLoaded() ) 
+			return subIndex.getPolicy( jid, sid );
 		
-		ResultSet rs = stmt.executeQuery( query );
-
-		if ( rs.next() ) {	
-			return Status.get( rs.getString( "status" ) );
+		DSPooledConnection c = pool.borrow();
+		ResultSet rs = null;
+		try {
+			PreparedStatement stmt = c.prepare( FETCH_POLICY_QUERY );
+			stmt.setString( 1, jid );
+			stmt.setString( 2, sid );
+			rs = stmt.executeQuery();
+	
+			if ( rs.next() ) {	
+				return Status.get( rs.getString( "status" ) );
+			}
+		} finally {
+			close( rs );
+			pool.release( c );
 		}
 
 		return null;
 	}
+	
+	//////////////////////////////////
+	
+	private DSClient readClient( ResultSet rs ) 
+	throws SQLException {
+		
+		return new DSClient( 
+			rs.getString( "jid" ),
+			rs.getString( "firstname" ),
+			rs.getString( "lastname" ),
+			rs.getString( "email" ),
+			rs.getLong( "ctime" ),
+			rs.getLong( "atime" ),
+			rs.getString( "host" ), 
+			rs.getString( "service" ),
+			rs.getString( "user" ),
+			rs.getString( "pass" ) );
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Maps the current row of an updates table result set onto a DSUpdate.
+	 * @return DSUpdate The update, or null if the row is malformed.
+	 */
+	private DSUpdate readUpdate( ResultSet rs ) 
+	throws SQLException {
+		return readUpdate( rs, ALL_FIELDS );
+	}
+	
+	//////////////////////////////////
+	
+	/**
+	 * Maps the current row of a projected updates table result set onto a 
+	 * DSUpdate, setting only the fields that were read.
+	 * @return DSUpdate The update, or null if the row is malformed.
+	 */
+	private DSUpdate readUpdate( ResultSet rs, EnumSet< DSUpdateField > fields ) 
+	throws SQLException {
+		
+		DSUpdate u;
+		try {
+			u = new DSUpdate( 
+				rs.getString( "sid" ),
+				rs.getString( "primaryTag" ),
+				rs.getString( "crud" )
+			)
+			.setCtime( rs.getLong( "ctime" ) )
+			.setRtime( rs.getLong( "rtime" ) )
+			.setSid( rs.getString( "sid" ) );
+			
+		} catch ( DSFormatException e ) {
+			e.printStackTrace();
+			return null;
+		}
+		
+		if ( fields.contains( DSUpdateField.DESCRIPTION ) ) u.setDescription( rs.getString( "description" ) );
+		if ( fields.contains( DSUpdateField.TOTAL ) ) u.setTotal( rs.getLong( "total" ) );
+		if ( fields.contains( DSUpdateField.FTIME ) ) u.setFtime( rs.getLong( "ftime" ) );
+		
+		if ( !inPayload( fields ) ) 
+			return u;
+		
+		//-- rows written in binary carry everything in the payload...
+		byte[] payload = rs.getBytes( "payload" );
+		if ( payload != null && codec != null ) {
+			try {
+				codec.decode( payload, u );
+			} catch ( IOException e ) {
+				logger.warning( "--- DSDataManager: unreadable payload from <" + u.getSid() + "> - " + e.getMessage() );
+			}
+			return u;
+		}
+		
+		//-- ...otherwise tags and meta are left as read, to be decoded only if they are used
+		if ( fields.contains( DSUpdateField.TAGS ) ) u.setTagsJSON( rs.getString( "tags" ) );
+		if ( fields.contains( DSUpdateField.META ) ) u.setMetaJSON( rs.getString( "meta" ) );
+		if ( fields.contains( DSUpdateField.LOCATION ) ) readLocation( u, rs.getString( "loc" ) );
+		return u;
+	}
+	
+	//////////////////////////////////
+	
+	private DSVCard readSource( ResultSet rs ) 
+	throws SQLException, DSFormatException {
+		
+		DSVCard vCard = new DSVCard(
+			rs.getString( "sid" ),
+			rs.getString( "namespace" ),
+			rs.getString( "name" )
+		);
+		
+		vCard.setURL( rs.getString( "url") );
+		vCard.setAvatar( rs.getBoolean( "avatar" ) );
+		vCard.setOrgName( rs.getString( "orgname") );
+		vCard.setOrgUnit( rs.getString( "orgunit") );
+		vCard.setDesc( rs.getString( "description" ) );
+		
+		return vCard;
+	}
+	
+	//////////////////////////////////
+	
+	private static void close( ResultSet rs ) {
+		if ( rs == null ) return;
+		try {
+			rs.close();
+		} catch ( SQLException e ) {
+			logger.log( Level.WARNING, "+++ DSDataManager: unable to close result set - ", e );
+		}
+	}
+	
+	//////////////////////////////////
+	
+	private static void close( Statement stmt ) {
+		if ( stmt == null ) return;
+		try {
+			stmt.close();
+		} catch ( SQLException e ) {
+			logger.log( Level.WARNING, "+++ DSDataManager: unable to close statement - ", e );
+		}
+	}
 }
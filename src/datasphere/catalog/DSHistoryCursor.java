@@ -0,0 +1,113 @@
+package datasphere.catalog;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import datasphere.dataware.DSUpdate;
+
+/**
+ * A continuation token marking a position in a user's update history. 
+ * Histories are ordered newest first by (ctime, rtime, sid) - the sid telling
+ * apart updates from different sources that share both times in a history
+ * spanning sources - so a cursor taken 
+ * from the last update on a page lets {@link DSDataManager} seek directly 
+ * to the following page, rather than counting its way past every earlier 
+ * row with an OFFSET. Cursors travel through URLs in the form produced by 
+ * {@link #toToken()}.
+ *
+ * @author James Goulding
+ * @version 2010-12-15
+ */
+public class DSHistoryCursor {
+
+	private final long ctime;
+	private final long rtime;
+	private final String sid;
+
+	///////////////////////////////
+
+	public DSHistoryCursor( long ctime, long rtime, String sid ) {
+		this.ctime = ctime;
+		this.rtime = rtime;
+		this.sid = ( sid == null ) ? "" : sid;
+	}
+
+	///////////////////////////////
+
+	public static DSHistoryCursor of( DSUpdate u ) {
+		return new DSHistoryCursor( u.getCtime(), u.getRtime(), u.getSid() );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @param token A token previously produced by {@link #toToken()}.
+	 * @return DSHistoryCursor The cursor, or null if the token is absent or malformed.
+	 */
+	public static DSHistoryCursor parse( String token ) {
+
+		if ( token == null ) return null;
+
+		int split = token.indexOf( '_' );
+		int second = ( split <= 0 ) ? -1 : token.indexOf( '_', split + 1 );
+		if ( second < 0 ) return null;
+
+		try {
+			return new DSHistoryCursor(
+				Long.parseLong( token.substring( 0, split ) ),
+				Long.parseLong( token.substring( split + 1, second ) ),
+				token.substring( second + 1 ) );
+		} catch ( NumberFormatException e ) {
+			return null;
+		}
+	}
+
+	///////////////////////////////
+
+	public long getCtime() {
+		return ctime;
+	}
+
+	///////////////////////////////
+
+	public long getRtime() {
+		return rtime;
+	}
+
+	///////////////////////////////
+
+	public String getSid() {
+		return sid;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return String The cursor as ctime_rtime_sid. The sid may hold characters
+	 * that must be escaped before the token is placed in a URL.
+	 */
+	public String toToken() {
+		return ctime + "_" + rtime + "_" + sid;
+	}
+
+	///////////////////////////////
+
+	@Override
+	public String toString() {
+		return toToken();
+	}
+}
@@ -0,0 +1,332 @@
+package datasphere.catalog;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import datasphere.dataware.DSUpdate;
+
+/**
+ * Decouples the receipt of updates from their persistence. The XMPP packet
+ * listeners hand each update to {@link #submit} and return straight away,
+ * leaving a pool of worker threads to pass it on to
+ * {@link DSDataManager#insertUpdate(String, String, DSUpdate)}, so that a slow
+ * database no longer stalls a bot's whole XMPP stream. <br/>
+ * <br/>
+ * The queue is bounded. Once full, it either blocks the submitting thread
+ * until a worker catches up, or sheds the update, counting it as lost,
+ * according to its policy. Queue depth and the time updates spend waiting
+ * for a worker are kept for tuning. N.b. with more than one worker, updates
+ * may be written in a different order to that received; as histories are
+ * ordered by creation time this only matters to the order of rtimes. A batch
+ * of updates received in one message is queued, and written, as one task.
+ *
+ * @author James Goulding
+ * @version 2010-12-20
+ */
+public class DSIngestQueue {
+
+	private static Logger logger = Logger.getLogger( DSCatalog.class.getName() );
+
+	/**
+	 * What becomes of an update submitted while the queue is full.
+	 */
+	public enum Policy {
+		BLOCK,
+		SHED;
+
+		public static Policy get( String p ) {
+			for ( Policy policy : values() ) {
+				if ( policy.toString().equalsIgnoreCase( p ) )
+					return policy;
+			}
+			return null;
+		}
+	}
+
+	private final DSDataManager db;
+	private final int workers;
+	private final int capacity;
+	private final Policy policy;
+	private final LinkedBlockingQueue< Task > queue;
+	private final ArrayList< Thread > threads = new ArrayList< Thread >();
+	private volatile boolean running = false;
+
+	//-- queue statistics
+	private long accepted = 0;
+	private long processed = 0;
+	private long shed = 0;
+	private long blocked = 0;
+	private int maxDepth = 0;
+	private long lastWaitTime = 0;
+	private long maxWaitTime = 0;
+	private long totalWaitTime = 0;
+
+	///////////////////////////////
+
+	private static class Task {
+		final String jid;
+		final String sid;
+		final DSUpdate update;
+		final List< DSUpdate > batch;
+		final DSBatchRejectionHandler handler;
+		final long queued = System.nanoTime();
+		Task( String jid, String sid, DSUpdate update, List< DSUpdate > batch, DSBatchRejectionHandler handler ) {
+			this.jid = jid;
+			this.sid = sid;
+			this.update = update;
+			this.batch = batch;
+			this.handler = handler;
+		}
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @param db 		The manager the workers write updates through.
+	 * @param workers 	The number of worker threads.
+	 * @param capacity 	The number of waiting updates at which the queue is full.
+	 * @param policy 	Whether to block or shed once the queue is full.
+	 */
+	public DSIngestQueue(
+		DSDataManager db,
+		int workers,
+		int capacity,
+		Policy policy )
+	{
+		this.db = db;
+		this.workers = Math.max( 1, workers );
+		this.capacity = Math.max( 1, capacity );
+		this.policy = ( policy == null ) ? Policy.BLOCK : policy;
+		this.queue = new LinkedBlockingQueue< Task >( this.capacity );
+	}
+
+	///////////////////////////////
+
+	public synchronized void start() {
+
+		if ( running ) return;
+		running = true;
+
+		for ( int i = 0; i < workers; i++ ) {
+			Thread t = new Thread( "DSIngestQueue-worker-" + i ) {
+				public void run() {
+					work();
+				}
+			};
+			t.setDaemon( true );
+			t.start();
+			threads.add( t );
+		}
+		logger.info( "--- DSIngestQueue: Starting ingest queue " +
+			"(" + workers + " workers, capacity " + capacity + ", " + policy.toString().toLowerCase() + " when full)... [SUCCESS]" );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Stops accepting updates, and waits for the workers to write everything
+	 * still queued.
+	 */
+	public void stop() {
+
+		synchronized ( this ) {
+			if ( !running ) return;
+			running = false;
+		}
+
+		for ( Thread t : threads ) {
+			try {
+				t.join();
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		threads.clear();
+
+		//-- anything submitted as the workers finished is written here
+		Task task;
+		while ( ( task = queue.poll() ) != null )
+			write( task );
+
+		logger.info( "--- DSIngestQueue: Stopping ingest queue... [SUCCESS] " + this );
+	}
+
+	///////////////////////////////
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Queues an update to be written by a worker.
+	 * @return boolean False if the queue is not running, in which case the
+	 * caller is responsible for writing the update itself. An update shed
+	 * because the queue is full has been dealt with, and returns true.
+	 */
+	public boolean submit( String jid, String sid, DSUpdate update ) {
+		return submit( new Task( jid, sid, update, null, null ) );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Queues a batch of updates, to be written by a worker as one unit. The
+	 * batch takes up a single place in the queue.
+	 * @param handler Told of the batch should it not be recorded: by the worker,
+	 * or by the submitting thread should the batch be shed.
+	 * @return boolean As for {@link #submit(String, String, DSUpdate)}.
+	 */
+	public boolean submit( String jid, String sid, List< DSUpdate > batch, DSBatchRejectionHandler handler ) {
+		return submit( new Task( jid, sid, null, batch, handler ) );
+	}
+
+	///////////////////////////////
+
+	private boolean submit( Task task ) {
+
+		if ( !running ) return false;
+
+		if ( !queue.offer( task ) ) {
+
+			if ( policy == Policy.SHED ) {
+				int size = ( task.batch == null ) ? 1 : task.batch.size();
+				long n;
+				synchronized ( this ) {
+					n = ( shed += size );
+				}
+				if ( n == size || ( n - size ) / 1000 != n / 1000 )
+					logger.warning( "--- DSIngestQueue: queue full. " + n + " updates shed so far" );
+				
+				//-- a shed batch is rejected as any other, so that its sender may resend it
+				if ( task.handler != null ) {
+					try {
+						task.handler.rejected( task.jid, task.sid, task.batch );
+					} catch ( RuntimeException e ) {
+						logger.log( Level.WARNING, "--- DSIngestQueue: [" + task.jid + "] failed to report shed batch from <" + task.sid + ">", e );
+					}
+				}
+				return true;
+			}
+
+			synchronized ( this ) {
+				blocked++;
+			}
+			try {
+				while ( !queue.offer( task, 100, TimeUnit.MILLISECONDS ) ) {
+					if ( !running ) return false;
+				}
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		int depth = queue.size();
+		synchronized ( this ) {
+			accepted++;
+			if ( depth > maxDepth ) maxDepth = depth;
+		}
+		return true;
+	}
+
+	///////////////////////////////
+
+	private void work() {
+
+		while ( true ) {
+
+			Task task;
+			try {
+				task = queue.poll( 100, TimeUnit.MILLISECONDS );
+			} catch ( InterruptedException e ) {
+				return;
+			}
+
+			if ( task == null ) {
+				if ( !running ) return;
+				continue;
+			}
+
+			long waited = ( System.nanoTime() - task.queued ) / 1000000;
+			synchronized ( this ) {
+				lastWaitTime = waited;
+				maxWaitTime = Math.max( maxWaitTime, waited );
+				totalWaitTime += waited;
+			}
+
+			try {
+				write( task );
+			} catch ( RuntimeException e ) {
+				logger.log( Level.SEVERE, "--- DSIngestQueue: [" + task.jid + "] update from <" + task.sid + "> FAILED - ", e );
+			}
+
+			synchronized ( this ) {
+				processed++;
+			}
+		}
+	}
+
+	///////////////////////////////
+
+	private void write( Task task ) {
+
+		if ( task.batch == null ) 
+			db.insertUpdate( task.jid, task.sid, task.update );
+		else
+			db.recordBatch( task.jid, task.sid, task.batch, task.handler );
+	}
+
+	///////////////////////////////
+
+	public int getDepth() 						{ return queue.size(); }
+	public int getCapacity() 					{ return capacity; }
+	public synchronized int getMaxDepth() 		{ return maxDepth; }
+	public synchronized long getAcceptedCount() { return accepted; }
+	public synchronized long getProcessedCount(){ return processed; }
+	public synchronized long getShedCount() 	{ return shed; }
+	public synchronized long getBlockedCount() 	{ return blocked; }
+	public synchronized long getLastWaitTime() 	{ return lastWaitTime; }
+	public synchronized long getMaxWaitTime() 	{ return maxWaitTime; }
+
+	public synchronized double getAverageWaitTime() {
+		return ( processed == 0 ) ? 0 : ( double ) totalWaitTime / processed;
+	}
+
+	///////////////////////////////
+
+	@Override
+	public String toString() {
+		return "ingest[depth=" + getDepth() + "/" + capacity +
+			", max depth=" + getMaxDepth() +
+			", accepted=" + getAcceptedCount() +
+			", processed=" + getProcessedCount() +
+			", shed=" + getShedCount() +
+			", blocked=" + getBlockedCount() +
+			", wait ms(last/avg/max)=" + getLastWaitTime() + "/" +
+				Math.round( getAverageWaitTime() ) + "/" + getMaxWaitTime() + "]";
+	}
+}
@@ -1,5 +1,7 @@
 package datasphere.catalog;
 
+import java.util.Arrays;
+
 public class DSMain {
 	
 	/**
@@ -9,11 +11,16 @@ public class DSMain {
 	public static void main( String[] args ) 
 	throws Exception {
 
-		//-- create a database connection
-		DSDataManager dbm = new DSDataManager( 
-			"jdbc:mysql://127.0.0.1:3306", 
-			new com.mysql.jdbc.Driver() 
-		);
+		//-- create a database connection, or hold everything in memory if requested
+		DSDataManager dbm;
+		if ( Arrays.asList( args ).contains( "-m" ) || Arrays.asList( args ).contains( "--memory" ) ) {
+			dbm = new DSMemoryDataManager();
+		} else {
+			dbm = new DSDataManager( 
+				"jdbc:mysql://127.0.0.1:3306", 
+				new com.mysql.jdbc.Driver() 
+			);
+		}
 		
 		//-- create an instance of the catalog
 		DSCatalog catalog = new DSCatalog( dbm );
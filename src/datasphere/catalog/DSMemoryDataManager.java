@@ -0,0 +1,405 @@
+package datasphere.catalog;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import datasphere.catalog.DSSub.Status;
+import datasphere.catalog.store.DSMemoryUpdateStore;
+import datasphere.catalog.xmpp.DSClientBot;
+import datasphere.catalog.xmpp.DSVCard;
+import datasphere.dataware.DSException;
+import datasphere.dataware.DSFormatException;
+import datasphere.dataware.DSUpdate;
+
+/**
+ * A DSDataManager that keeps all of the catalog's state on the heap, for load
+ * testing the HTTP and XMPP layers without a database behind them. Selected
+ * by starting the catalog with the --memory flag. <br/>
+ * <br/>
+ * Updates are held in a {@link DSMemoryUpdateStore}, a concurrent sorted map
+ * per user and per source. Clients, sources, subscriptions and policies are
+ * held in hash maps keyed as the corresponding system tables are. The test
+ * account that {@link DSDataManager#createSystemTables()} would insert is
+ * registered from the outset, and further clients may be added with
+ * {@link #insertClient(DSClient)}. Nothing survives a restart.
+ *
+ * @author James Goulding
+ * @version 2010-12-18
+ */
+public class DSMemoryDataManager 
+extends DSDataManager {
+
+	private static Logger logger = Logger.getLogger( DSCatalog.class.getName() );
+	
+	private final DSMemoryUpdateStore updates = new DSMemoryUpdateStore();
+	private final ConcurrentHashMap< String, DSClient > clients = new ConcurrentHashMap< String, DSClient >();
+	private final ConcurrentHashMap< String, DSVCard > sources = new ConcurrentHashMap< String, DSVCard >();
+	private final ConcurrentHashMap< String, ConcurrentHashMap< String, DSSub > > subscriptions = 
+		new ConcurrentHashMap< String, ConcurrentHashMap< String, DSSub > >();
+	private final ConcurrentHashMap< String, Status > policies = new ConcurrentHashMap< String, Status >();
+	
+	///////////////////////////////
+	
+	public DSMemoryDataManager() {
+		super( "memory:", null );
+		
+		long now = System.currentTimeMillis();
+		insertClient( new DSClient(
+			"mydatasphere@jabber.org",
+			"my",
+			"datasphere",
+			"mydatasphere@gmail.com",
+			now,
+			now,
+			"jabber.org",
+			"jabber.org",
+			"mydatasphere",
+			"mydatasphere" ) );
+	}
+	
+	///////////////////////////////
+	
+	/**
+	 * Registers a client, as if it had been added to the users table.
+	 */
+	public void insertClient( DSClient client ) {
+		clients.put( client.getJid(), client );
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public void connect() 
+	throws DSException {
+		logger.info( "--- DSMemoryDataManager: Holding catalog state in memory (no persistence)... [SUCCESS]" );
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public void disconnect() {
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public void checkSystemTables() 
+	throws DSException {
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public void createSystemTables() 
+	throws DSException {
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public void clearSystemTables() 
+	throws DSException {
+		clients.clear();
+		sources.clear();
+		subscriptions.clear();
+		policies.clear();
+		try {
+			updates.clearUpdates();
+		} catch ( SQLException e ) {
+			throw new DSException( e );
+		}
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public void clearConnections() 
+	throws SQLException {
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public void clearUpdates() 
+	throws SQLException {
+		updates.clearUpdates();
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public void rebuildUpdateCounts() 
+	throws DSException {
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public ArrayList< String > getAllConnections() {
+		return new ArrayList< String >();
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public Map< String, DSClientBot > fetchClientBots() 
+	throws SQLException {
+		Map< String, DSClientBot > bots = new HashMap< String, DSClientBot >();
+		for ( DSClient client : clients.values() ) 
+			bots.put( client.getJid(), new DSClientBot( client ) );
+		return bots;
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public DSClient fetchClient( String jid ) 
+	throws SQLException {
+		return clients.get( jid );
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public int fetchUpdateTotal( String jid, String sid )
+	throws SQLException {
+		return updates.fetchUpdateTotal( jid, sid );
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public ArrayList< DSUpdate > fetchUpdates( String jid, String sid, Integer limit, Integer offset ) 
+	throws SQLException {
+		return updates.fetchUpdates( jid, sid, limit, offset );
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public ArrayList< DSUpdate > fetchUpdates( String jid, String sid, Integer limit, Integer offset, EnumSet< DSUpdateField > fields ) 
+	throws SQLException {
+		return updates.fetchUpdates( jid, sid, limit, offset );
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public ArrayList< DSUpdate > fetchUpdatesAfter( String jid, String sid, DSHistoryCursor cursor, int limit ) 
+	throws SQLException {
+		return updates.fetchUpdatesAfter( jid, sid, cursor, limit );
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public ArrayList< DSUpdate > fetchUpdatesBefore( String jid, String sid, DSHistoryCursor cursor, int limit ) 
+	throws SQLException {
+		return updates.fetchUpdatesBefore( jid, sid, cursor, limit );
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public long scanUpdates( String jid, String sid, DSUpdateVisitor visitor ) 
+	throws SQLException {
+		if ( jid == null && sid != null ) 
+			throw new IllegalArgumentException( "a scan restricted to a source must name a user" );
+		return updates.scanUpdates( jid, sid, visitor );
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public void insertUpdate( String jid, String from, DSUpdate d ) {
+		updates.insertUpdate( jid, from, d );
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public int insertUpdates( List< DSPendingUpdate > batch, boolean atomic ) 
+	throws SQLException {
+		return updates.insertUpdates( batch );
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public String getSubStatus( String jid, String sid ) {
+		DSSub sub = sub( jid, sid );
+		return ( sub == null ) ? null : sub.getSubscriptionStatus();
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public void setSubStatus( String jid, String sid, Status status ) {
+		ConcurrentHashMap< String, DSSub > subs = subscriptions.get( jid );
+		if ( subs == null ) return;
+		
+		DSSub sub = subs.get( sid );
+		if ( sub != null ) 
+			subs.put( sid, new DSSub( sid, jid, status.toString(), sub.getCtime(), System.currentTimeMillis(), sub.getNamespace() ) );
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public void insertSub( DSVCard vCard, String jid, Status status, String sid ) 
+	throws SQLException, DSFormatException {
+		
+		//-- we require that the namespace is non-null
+		if ( vCard == null )
+			throw new DSFormatException();
+
+		if ( sources.get( vCard.getSid() ) == null ) 
+			insertSource( vCard );
+		
+		if ( sid == null ) sid = vCard.getSid();
+		
+		ConcurrentHashMap< String, DSSub > subs = subscriptions.get( jid );
+		if ( subs == null ) {
+			ConcurrentHashMap< String, DSSub > fresh = new ConcurrentHashMap< String, DSSub >();
+			subs = subscriptions.putIfAbsent( jid, fresh );
+			if ( subs == null ) subs = fresh;
+		}
+		
+		long now = System.currentTimeMillis();
+		subs.put( sid, new DSSub( sid, jid, status.toString(), now, now, vCard.getNamespace() ) );
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public void insertSource( DSVCard vCard ) 
+	throws DSFormatException, SQLException {
+		sources.put( vCard.getSid(), vCard );
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public DSSub fetchSub( String jid, String sid )
+	throws SQLException {
+		
+		//-- as in the database, a subscription is only visible alongside its source
+		DSSub sub = sub( jid, sid );
+		DSVCard source = sources.get( sid );
+		if ( sub == null || source == null ) return null;
+		
+		return new DSSub( sid, jid, sub.getSubscriptionStatus(), sub.getCtime(), sub.getMtime(), source.getNamespace() );
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public void deleteSub( String jid, String sid )
+	throws SQLException {
+		ConcurrentHashMap< String, DSSub > subs = subscriptions.get( jid );
+		if ( subs != null ) subs.remove( sid );
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public ArrayList< DSVCard > fetchSources( String jid, DSSub.Status ... statuses ) 
+	throws SQLException, DSFormatException {
+		
+		ArrayList< DSVCard > result = new ArrayList< DSVCard >();
+		ConcurrentHashMap< String, DSSub > subs = subscriptions.get( jid );
+		if ( subs == null ) return result;
+		
+		for ( DSSub sub : subs.values() ) {
+			if ( statuses.length > 0 && !hasAny( sub, statuses ) ) continue;
+			DSVCard source = sources.get( sub.getSid() );
+			if ( source != null ) result.add( source );
+		}
+		return result;
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public DSVCard fetchSource( String sid )
+	throws SQLException, DSFormatException {
+		return sources.get( sid );
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public String fetchNamespace( String sid ) 
+	throws SQLException {
+		DSVCard source = sources.get( sid );
+		return ( source == null ) ? null : source.getNamespace();
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public void updatePolicy( String jid, String sid, Status status ) 
+	throws SQLException {
+		policies.put( policyKey( jid, sid ), status );
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public void resetPolicy( String jid, String sid ) 
+	throws SQLException {
+		policies.remove( policyKey( jid, sid ) );
+	}
+	
+	///////////////////////////////
+	
+	@Override
+	public Status fetchPolicy( String jid, String sid ) 
+	throws SQLException {
+		return policies.get( policyKey( jid, sid ) );
+	}
+	
+	///////////////////////////////
+	
+	private DSSub sub( String jid, String sid ) {
+		ConcurrentHashMap< String, DSSub > subs = subscriptions.get( jid );
+		return ( subs == null ) ? null : subs.get( sid );
+	}
+	
+	///////////////////////////////
+	
+	private static boolean hasAny( DSSub sub, DSSub.Status[] statuses ) {
+		for ( DSSub.Status s : statuses )
+			if ( s.toString().equalsIgnoreCase( sub.getSubscriptionStatus() ) ) return true;
+		return false;
+	}
+	
+	///////////////////////////////
+	
+	private static String policyKey( String jid, String sid ) {
+		return jid + '\n' + sid;
+	}
+}
@@ -0,0 +1,301 @@
+package datasphere.catalog;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import datasphere.dataware.DSException;
+
+/**
+ * Keeps the updates table range partitioned by month of creation time (ctime).
+ * Each month's updates live in their own partition, named pYYYYMM, so that
+ * recent-history reads bounded on ctime only touch the partitions they need,
+ * and expiring old history is a matter of dropping whole partitions rather
+ * than deleting rows one by one. <br/>
+ * <br/>
+ * When first applied to an unpartitioned table, everything older than the
+ * current month is placed in a single catch-all partition, and a MAXVALUE
+ * partition catches anything beyond the months created so far. A background
+ * task then runs daily, splitting new months out of the MAXVALUE partition
+ * ahead of time and dropping the partitions that have fallen outside the
+ * retention period. As dropping partitions removes updates behind the
+ * back of the maintained counts, the counts are rebuilt afterwards. <br/>
+ * <br/>
+ * N.b. converting an existing table rebuilds it, blocking writes for the
+ * duration, so on a large deployment this is best done in a maintenance window.
+ *
+ * @author James Goulding
+ * @version 2010-12-17
+ */
+public class DSPartitionManager {
+
+	private static Logger logger = Logger.getLogger( DSCatalog.class.getName() );
+
+	private static final long MAINTENANCE_PERIOD = 24 * 60 * 60 * 1000L;
+	private static final String MAX_PARTITION = "pmax";
+	private static final String OLD_PARTITION = "pold";
+
+	private final DSDataManager manager;
+	private final DSConnectionPool pool;
+	private final String db;
+	private final String table;
+	private final int ahead;
+	private final int retention;
+	private Timer maintenance = null;
+
+	///////////////////////////////
+
+	/**
+	 * @param manager 		The data manager whose update counts are rebuilt after a drop.
+	 * @param pool 			The pool through which the partitions are managed.
+	 * @param db 			The name of the database holding the table.
+	 * @param table 		The table to be partitioned, keyed on its ctime column.
+	 * @param ahead 		The number of future months to keep partitions ready for.
+	 * @param retention 	The number of past months of updates to keep (0 keeps all).
+	 */
+	public DSPartitionManager(
+		DSDataManager manager,
+		DSConnectionPool pool,
+		String db,
+		String table,
+		int ahead,
+		int retention )
+	{
+		this.manager = manager;
+		this.pool = pool;
+		this.db = db;
+		this.table = table;
+		this.ahead = Math.max( 1, ahead );
+		this.retention = Math.max( 0, retention );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Partitions the table if it is not already partitioned, then brings its
+	 * partitions up to date.
+	 * @throws DSException Thrown if the table cannot be partitioned.
+	 */
+	public void open()
+	throws DSException {
+
+		try {
+			if ( getPartitions().isEmpty() )
+				partition();
+			maintain();
+		} catch ( SQLException e ) {
+			logger.severe( "--- DSPartitionManager: Partitioning " + table + "... [FAILED]" );
+			throw new DSException( e );
+		}
+
+		maintenance = new Timer( "DSPartitionManager-maintenance", true );
+		maintenance.schedule( new TimerTask() {
+			public void run() {
+				try {
+					maintain();
+				} catch ( Exception e ) {
+					logger.log( Level.SEVERE, "--- DSPartitionManager: partition maintenance FAILED - ", e );
+				}
+			}
+		}, MAINTENANCE_PERIOD, MAINTENANCE_PERIOD );
+	}
+
+	///////////////////////////////
+
+	public void close() {
+		if ( maintenance != null ) {
+			maintenance.cancel();
+			maintenance = null;
+		}
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return LinkedHashMap The table's partitions, in order, mapped to the
+	 * (exclusive) upper bound of their ctime range, or Long.MAX_VALUE for the
+	 * MAXVALUE partition. Empty if the table is not partitioned.
+	 */
+	public LinkedHashMap< String, Long > getPartitions()
+	throws SQLException {
+
+		LinkedHashMap< String, Long > partitions = new LinkedHashMap< String, Long >();
+		DSPooledConnection c = pool.borrow();
+		ResultSet rs = null;
+		try {
+			PreparedStatement stmt = c.prepare(
+				"SELECT PARTITION_NAME, PARTITION_DESCRIPTION FROM information_schema.PARTITIONS " +
+				"WHERE TABLE_SCHEMA=? AND TABLE_NAME=? AND PARTITION_NAME IS NOT NULL " +
+				"ORDER BY PARTITION_ORDINAL_POSITION" );
+			stmt.setString( 1, db );
+			stmt.setString( 2, table );
+			rs = stmt.executeQuery();
+			while ( rs.next() ) {
+				String bound = rs.getString( 2 );
+				partitions.put( rs.getString( 1 ),
+					"MAXVALUE".equalsIgnoreCase( bound ) ? Long.MAX_VALUE : Long.parseLong( bound ) );
+			}
+		} finally {
+			if ( rs != null ) rs.close();
+			pool.release( c );
+		}
+		return partitions;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Creates and drops partitions as the calendar moves on. Run daily once
+	 * the manager is open, but may also be called directly.
+	 */
+	public synchronized void maintain()
+	throws SQLException {
+
+		LinkedHashMap< String, Long > partitions = getPartitions();
+		if ( partitions.isEmpty() ) return;
+
+		//-- split the months we will soon need out of the MAXVALUE partition
+		long last = 0;
+		for ( Long bound : partitions.values() )
+			if ( bound != Long.MAX_VALUE ) last = Math.max( last, bound );
+
+		long horizon = monthStart( System.currentTimeMillis(), ahead + 1 );
+		if ( last < horizon ) {
+			StringBuilder sql = new StringBuilder( "ALTER TABLE `" + db + "`.`" + table + "` " +
+				"REORGANIZE PARTITION " + MAX_PARTITION + " INTO (" );
+			for ( long start = Math.max( last, monthStart( System.currentTimeMillis(), 0 ) );
+					start < horizon; start = monthStart( start, 1 ) )
+				sql.append( monthPartition( start ) ).append( ", " );
+			sql.append( "PARTITION " + MAX_PARTITION + " VALUES LESS THAN MAXVALUE)" );
+			execute( sql.toString() );
+			logger.info( "--- DSPartitionManager: Creating partitions of " + table + " up to " + name( monthStart( horizon, -1 ) ) + "... [SUCCESS]" );
+		}
+
+		if ( retention == 0 ) return;
+
+		//-- drop every partition wholly older than the retention period,
+		//-- always leaving at least one partition below MAXVALUE in place
+		long cutoff = monthStart( System.currentTimeMillis(), -retention );
+		ArrayList< String > expired = new ArrayList< String >();
+		int remaining = partitions.size() - 1;
+		for ( Map.Entry< String, Long > p : partitions.entrySet() ) {
+			if ( p.getValue() <= cutoff && remaining > 1 ) {
+				expired.add( p.getKey() );
+				remaining--;
+			}
+		}
+
+		if ( expired.isEmpty() ) return;
+
+		StringBuilder names = new StringBuilder();
+		for ( String p : expired ) {
+			if ( names.length() > 0 ) names.append( ", " );
+			names.append( p );
+		}
+		execute( "ALTER TABLE `" + db + "`.`" + table + "` DROP PARTITION " + names );
+		logger.info( "--- DSPartitionManager: Dropping expired partitions of " + table + " [" + names + "]... [SUCCESS]" );
+
+		try {
+			manager.rebuildUpdateCounts();
+		} catch ( DSException e ) {
+			logger.log( Level.WARNING, "--- DSPartitionManager: update counts may now overstate history - ", e );
+		}
+	}
+
+	///////////////////////////////
+
+	private void partition()
+	throws SQLException {
+
+		long start = System.currentTimeMillis();
+		long current = monthStart( start, 0 );
+
+		StringBuilder sql = new StringBuilder( "ALTER TABLE `" + db + "`.`" + table + "` " +
+			"PARTITION BY RANGE (ctime) (" );
+		sql.append( "PARTITION " + OLD_PARTITION + " VALUES LESS THAN (" + current + "), " );
+		sql.append( monthPartition( current ) ).append( ", " );
+		sql.append( "PARTITION " + MAX_PARTITION + " VALUES LESS THAN MAXVALUE)" );
+
+		logger.info( "--- DSPartitionManager: Partitioning " + table + " by month. This may take some time..." );
+		execute( sql.toString() );
+		logger.info( "--- DSPartitionManager: Partitioning " + table + " in " + ( System.currentTimeMillis() - start ) + "ms... [SUCCESS]" );
+	}
+
+	///////////////////////////////
+
+	private void execute( String sql )
+	throws SQLException {
+
+		DSPooledConnection c = pool.borrow();
+		Statement stmt = null;
+		try {
+			stmt = c.createStatement();
+			stmt.execute( sql );
+		} finally {
+			if ( stmt != null ) stmt.close();
+			pool.release( c );
+		}
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return String The definition of the partition holding the month starting at start.
+	 */
+	private static String monthPartition( long start ) {
+		return "PARTITION " + name( start ) + " VALUES LESS THAN (" + monthStart( start, 1 ) + ")";
+	}
+
+	///////////////////////////////
+
+	private static String name( long start ) {
+		Calendar cal = Calendar.getInstance( TimeZone.getTimeZone( "UTC" ) );
+		cal.setTimeInMillis( start );
+		int month = cal.get( Calendar.MONTH ) + 1;
+		return "p" + cal.get( Calendar.YEAR ) + ( month < 10 ? "0" : "" ) + month;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return long The start (UTC) of the month lying offset months from the one containing time.
+	 */
+	private static long monthStart( long time, int offset ) {
+		Calendar cal = Calendar.getInstance( TimeZone.getTimeZone( "UTC" ) );
+		cal.setTimeInMillis( time );
+		cal.set( Calendar.DAY_OF_MONTH, 1 );
+		cal.set( Calendar.HOUR_OF_DAY, 0 );
+		cal.set( Calendar.MINUTE, 0 );
+		cal.set( Calendar.SECOND, 0 );
+		cal.set( Calendar.MILLISECOND, 0 );
+		cal.add( Calendar.MONTH, offset );
+		return cal.getTimeInMillis();
+	}
+}
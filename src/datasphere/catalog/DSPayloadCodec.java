@@ -0,0 +1,369 @@
+package datasphere.catalog;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import datasphere.dataware.DSUpdate;
+
+/**
+ * Encodes the tags, meta data and location of an update into a single compact
+ * binary payload, in place of the three JSON text columns. <br/>
+ * <br/>
+ * The payload opens with a flags byte saying which of the three are present
+ * and whether the rest is deflated. Counts and lengths are varints. Tags and
+ * meta keys are written as their number in the {@link DSTagDictionary} where
+ * they have one, and in full otherwise, distinguished by the low bit of the
+ * varint that leads each; meta values are always written in full. A string
+ * written in full is led by its length plus one, zero standing for null, so
+ * that an update decodes exactly as it was encoded, nulls and empty maps
+ * included. The location is a pair of doubles. A body longer than the deflate threshold
+ * is deflated, prefixed by its original length, if that makes it smaller.
+ *
+ * @author James Goulding
+ * @version 2010-12-20
+ */
+public class DSPayloadCodec {
+
+	private static final int DEFLATED = 0x01;
+	private static final int HAS_TAGS = 0x02;
+	private static final int HAS_META = 0x04;
+	private static final int HAS_LOC = 0x08;
+
+	//-- the largest body inflated, and the most a deflated byte may expand to
+	private static final int MAX_BODY = 64 * 1024 * 1024;
+	private static final int MAX_INFLATION = 1032;
+
+	private final DSTagDictionary dictionary;
+	private final int deflateThreshold;
+
+	///////////////////////////////
+
+	/**
+	 * @param dictionary 		The numbering of recurring strings.
+	 * @param deflateThreshold 	The body length, in bytes, above which deflating is tried.
+	 */
+	public DSPayloadCodec( DSTagDictionary dictionary, int deflateThreshold ) {
+		this.dictionary = dictionary;
+		this.deflateThreshold = deflateThreshold;
+	}
+
+	///////////////////////////////
+
+	public DSTagDictionary getDictionary() {
+		return dictionary;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return byte[] The payload holding the update's tags, meta data and location.
+	 */
+	public byte[] encode( DSUpdate u ) {
+
+		ArrayList< String > tags = u.getTags();
+		Map< String, String > meta = u.getMeta();
+		DSUpdate.Coordinate loc = u.getLocation();
+
+		int flags = 0;
+		Buffer body = new Buffer();
+
+		if ( tags != null ) {
+			flags |= HAS_TAGS;
+			body.varint( tags.size() );
+			for ( String tag : tags )
+				writeTerm( body, tag );
+		}
+
+		if ( meta != null ) {
+			flags |= HAS_META;
+			body.varint( meta.size() );
+			for ( Map.Entry< String, String > m : meta.entrySet() ) {
+				writeTerm( body, m.getKey() );
+				body.string( m.getValue() );
+			}
+		}
+
+		if ( loc != null ) {
+			flags |= HAS_LOC;
+			body.fixed( Double.doubleToLongBits( loc.getLat() ) );
+			body.fixed( Double.doubleToLongBits( loc.getLon() ) );
+		}
+
+		Buffer out = new Buffer();
+		byte[] raw = body.toByteArray();
+		byte[] deflated = ( raw.length > deflateThreshold ) ? deflate( raw ) : null;
+
+		if ( deflated != null && deflated.length + 5 < raw.length ) {
+			out.write( flags | DEFLATED );
+			out.varint( raw.length );
+			out.write( deflated, 0, deflated.length );
+		} else {
+			out.write( flags );
+			out.write( raw, 0, raw.length );
+		}
+		return out.toByteArray();
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Sets the tags, meta data and location held in a payload on an update.
+	 * Every count and length read is checked against the bytes that remain,
+	 * so a corrupt payload is reported as such rather than allocated.
+	 * @throws IOException Thrown if the payload is malformed or refers to an unknown string.
+	 */
+	public void decode( byte[] payload, DSUpdate u )
+	throws IOException {
+
+		if ( payload.length == 0 )
+			throw new IOException( "empty payload" );
+
+		int flags = payload[ 0 ] & 0xff;
+		Reader in = new Reader( payload, 1 );
+
+		if ( ( flags & DEFLATED ) != 0 ) {
+			long length = in.varint();
+			long most = Math.min( MAX_BODY, ( long ) ( payload.length - in.pos ) * MAX_INFLATION );
+			if ( length < 0 || length > most )
+				throw new IOException( "implausible inflated length " + length );
+			in = new Reader( inflate( payload, in.pos, ( int ) length ), 0 );
+		}
+
+		if ( ( flags & HAS_TAGS ) != 0 ) {
+			int n = in.count();
+			ArrayList< String > tags = new ArrayList< String >( n );
+			for ( int i = 0; i < n; i++ )
+				tags.add( readTerm( in ) );
+			u.setTags( tags );
+		}
+
+		if ( ( flags & HAS_META ) != 0 ) {
+			int n = in.count();
+			HashMap< String, String > meta = new HashMap< String, String >();
+			for ( int i = 0; i < n; i++ ) {
+				String key = readTerm( in );
+				meta.put( key, in.string() );
+			}
+			u.setMeta( meta );
+		}
+
+		if ( ( flags & HAS_LOC ) != 0 ) {
+			double lat = Double.longBitsToDouble( in.fixed() );
+			double lon = Double.longBitsToDouble( in.fixed() );
+			u.setLocation( lat, lon );
+		}
+	}
+
+	///////////////////////////////
+
+	private void writeTerm( Buffer out, String term ) {
+
+		int id = ( term == null ) ? -1 : dictionary.idOf( term );
+		if ( id >= 0 ) {
+			out.varint( ( ( long ) id << 1 ) | 1 );
+		} else if ( term == null ) {
+			out.varint( 0 );
+		} else {
+			byte[] b = utf8( term );
+			out.varint( ( long ) ( b.length + 1 ) << 1 );
+			out.write( b, 0, b.length );
+		}
+	}
+
+	///////////////////////////////
+
+	private String readTerm( Reader in )
+	throws IOException {
+
+		long v = in.varint();
+		if ( ( v & 1 ) == 0 )
+			return ( v == 0 ) ? null : in.utf8( ( v >>> 1 ) - 1 );
+
+		if ( ( v >>> 1 ) > Integer.MAX_VALUE )
+			throw new IOException( "unknown dictionary term " + ( v >>> 1 ) );
+		try {
+			String term = dictionary.termOf( ( int ) ( v >>> 1 ) );
+			if ( term == null )
+				throw new IOException( "unknown dictionary term " + ( v >>> 1 ) );
+			return term;
+		} catch ( SQLException e ) {
+			throw new IOException( "dictionary unavailable: " + e.getMessage() );
+		}
+	}
+
+	///////////////////////////////
+
+	private static byte[] deflate( byte[] raw ) {
+
+		Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+		try {
+			deflater.setInput( raw );
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream( raw.length );
+			byte[] chunk = new byte[ 1024 ];
+			while ( !deflater.finished() ) {
+				int n = deflater.deflate( chunk );
+				out.write( chunk, 0, n );
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	///////////////////////////////
+
+	private static byte[] inflate( byte[] payload, int offset, int length )
+	throws IOException {
+
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput( payload, offset, payload.length - offset );
+			byte[] raw = new byte[ length ];
+			int n = 0;
+			while ( n < length && !inflater.finished() ) {
+				int read = inflater.inflate( raw, n, length - n );
+				if ( read == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) )
+					break;
+				n += read;
+			}
+			if ( n != length )
+				throw new IOException( "truncated payload" );
+			return raw;
+		} catch ( DataFormatException e ) {
+			throw new IOException( "corrupt payload: " + e.getMessage() );
+		} finally {
+			inflater.end();
+		}
+	}
+
+	///////////////////////////////
+
+	private static byte[] utf8( String s ) {
+		try {
+			return ( s == null ) ? new byte[ 0 ] : s.getBytes( "UTF-8" );
+		} catch ( IOException e ) {
+			throw new RuntimeException( e );
+		}
+	}
+
+	///////////////////////////////
+
+	/**
+	 * A byte array output stream with varint, fixed and string writers.
+	 */
+	private static class Buffer extends ByteArrayOutputStream {
+
+		Buffer() {
+			super( 128 );
+		}
+
+		void varint( long v ) {
+			while ( ( v & ~0x7fL ) != 0 ) {
+				write( ( int ) ( ( v & 0x7f ) | 0x80 ) );
+				v >>>= 7;
+			}
+			write( ( int ) v );
+		}
+
+		void fixed( long v ) {
+			for ( int i = 56; i >= 0; i -= 8 )
+				write( ( int ) ( v >>> i ) & 0xff );
+		}
+
+		void string( String s ) {
+			if ( s == null ) {
+				varint( 0 );
+				return;
+			}
+			byte[] b = utf8( s );
+			varint( b.length + 1 );
+			write( b, 0, b.length );
+		}
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Reads varints, fixed longs and strings back from a byte array.
+	 */
+	private static class Reader {
+
+		final byte[] buf;
+		int pos;
+
+		Reader( byte[] buf, int pos ) {
+			this.buf = buf;
+			this.pos = pos;
+		}
+
+		long varint()
+		throws IOException {
+			long v = 0;
+			for ( int shift = 0; shift < 64; shift += 7 ) {
+				if ( pos >= buf.length ) throw new IOException( "truncated payload" );
+				int b = buf[ pos++ ] & 0xff;
+				v |= ( long ) ( b & 0x7f ) << shift;
+				if ( ( b & 0x80 ) == 0 ) return v;
+			}
+			throw new IOException( "malformed varint" );
+		}
+
+		long fixed()
+		throws IOException {
+			if ( pos + 8 > buf.length ) throw new IOException( "truncated payload" );
+			long v = 0;
+			for ( int i = 0; i < 8; i++ )
+				v = ( v << 8 ) | ( buf[ pos++ ] & 0xff );
+			return v;
+		}
+
+		/**
+		 * Reads the number of items to follow, each of which takes at least a byte.
+		 */
+		int count()
+		throws IOException {
+			long n = varint();
+			if ( n < 0 || n > buf.length - pos ) throw new IOException( "implausible count " + n );
+			return ( int ) n;
+		}
+
+		String string()
+		throws IOException {
+			long v = varint();
+			return ( v == 0 ) ? null : utf8( v - 1 );
+		}
+
+		String utf8( long length )
+		throws IOException {
+			if ( length < 0 || length > buf.length - pos ) throw new IOException( "truncated payload" );
+			String s = new String( buf, pos, ( int ) length, "UTF-8" );
+			pos += ( int ) length;
+			return s;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package datasphere.catalog;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import datasphere.dataware.DSUpdate;
+
+/**
+ * An update that has been received for a user but not yet written to the
+ * updates table, together with the jid it was addressed to, the sid of the
+ * dataware that sent it, and the time it was received.
+ *
+ * @author James Goulding
+ * @version 2010-12-14
+ */
+public class DSPendingUpdate {
+
+	private final String jid;
+	private final String sid;
+	private final DSUpdate update;
+	private final long rtime;
+
+	///////////////////////////////
+
+	public DSPendingUpdate( String jid, String sid, DSUpdate update, long rtime ) {
+		this.jid = jid;
+		this.sid = sid;
+		this.update = update;
+		this.rtime = rtime;
+	}
+
+	///////////////////////////////
+
+	public String getJid() {
+		return jid;
+	}
+
+	///////////////////////////////
+
+	public String getSid() {
+		return sid;
+	}
+
+	///////////////////////////////
+
+	public DSUpdate getUpdate() {
+		return update;
+	}
+
+	///////////////////////////////
+
+	public long getRtime() {
+		return rtime;
+	}
+}
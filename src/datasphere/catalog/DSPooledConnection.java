@@ -0,0 +1,215 @@
+package datasphere.catalog;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A single physical JDBC connection owned by a {@link DSConnectionPool}.
+ * Besides the connection itself the object records the bookkeeping the pool
+ * needs for idle eviction and leak detection. Instances are handed out by
+ * {@link DSConnectionPool#borrow()} and must always be given back via
+ * {@link DSConnectionPool#release(DSPooledConnection)}, typically in a
+ * finally block. <br/>
+ * <br/>
+ * Each pooled connection also keeps a small LRU cache of the prepared statements
+ * issued through {@link #prepare(String)}, keyed by their SQL text. As the pool
+ * requests server-side prepared statements, a cache hit means MySQL does not have
+ * to parse and plan the query again. Cached statements belong to the connection 
+ * and are closed with it, or when they fall out of the cache.
+ *
+ * @author James Goulding
+ * @version 2010-12-14
+ */
+public class DSPooledConnection {
+
+	private final Connection conn;
+	private final long created;
+	private long lastUsed;
+	private long borrowed;
+	private Throwable borrower;
+	private boolean leakReported;
+	
+	private static final int STATEMENT_CACHE_SIZE = 64;
+	private final Map< String, PreparedStatement > statements;
+	private long statementHits = 0;
+	private long statementMisses = 0;
+
+	///////////////////////////////
+
+	DSPooledConnection( Connection conn ) {
+		this.conn = conn;
+		this.created = System.currentTimeMillis();
+		this.lastUsed = created;
+		this.statements = new LinkedHashMap< String, PreparedStatement >( 16, 0.75f, true ) {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry( Map.Entry< String, PreparedStatement > eldest ) {
+				if ( size() <= STATEMENT_CACHE_SIZE ) return false;
+				closeQuietly( eldest.getValue() );
+				return true;
+			}
+		};
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return Connection The underlying JDBC connection. This must never
+	 * be closed directly - hand the pooled connection back to the pool instead.
+	 */
+	public Connection getConnection() {
+		return conn;
+	}
+
+	///////////////////////////////
+
+	public Statement createStatement()
+	throws SQLException {
+		return conn.createStatement();
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Returns a prepared statement for the supplied SQL, reusing the one cached
+	 * from a previous call where possible. Any parameters left over from that
+	 * previous use are cleared. The statement must not be closed by the caller,
+	 * although its result sets should be.
+	 */
+	public PreparedStatement prepare( String sql )
+	throws SQLException {
+
+		PreparedStatement stmt = statements.get( sql );
+		if ( stmt != null ) {
+			statementHits++;
+			stmt.clearParameters();
+			return stmt;
+		}
+
+		statementMisses++;
+		stmt = conn.prepareStatement( sql );
+		statements.put( sql, stmt );
+		return stmt;
+	}
+
+	///////////////////////////////
+
+	public long getStatementHits() {
+		return statementHits;
+	}
+
+	///////////////////////////////
+
+	public long getStatementMisses() {
+		return statementMisses;
+	}
+
+	///////////////////////////////
+
+	public long getCreated() {
+		return created;
+	}
+
+	///////////////////////////////
+
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	///////////////////////////////
+
+	public long getBorrowed() {
+		return borrowed;
+	}
+
+	///////////////////////////////
+
+	Throwable getBorrower() {
+		return borrower;
+	}
+
+	///////////////////////////////
+
+	void markBorrowed( Throwable borrower ) {
+		this.borrowed = System.currentTimeMillis();
+		this.borrower = borrower;
+		this.leakReported = false;
+	}
+
+	///////////////////////////////
+
+	void markReturned() {
+		this.lastUsed = System.currentTimeMillis();
+		this.borrowed = 0;
+		this.borrower = null;
+	}
+
+	///////////////////////////////
+
+	boolean isLeakReported() {
+		return leakReported;
+	}
+
+	///////////////////////////////
+
+	void setLeakReported() {
+		this.leakReported = true;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Restores the connection to the state the pool hands it out in,
+	 * rolling back anything a careless borrower left uncommitted.
+	 */
+	void reset()
+	throws SQLException {
+		if ( !conn.getAutoCommit() ) {
+			conn.rollback();
+			conn.setAutoCommit( true );
+		}
+	}
+
+	///////////////////////////////
+
+	void close() {
+		for ( PreparedStatement stmt : statements.values() )
+			closeQuietly( stmt );
+		statements.clear();
+		try {
+			conn.close();
+		} catch ( SQLException e ) {
+			//-- nothing more we can do with a broken connection
+		}
+	}
+
+	///////////////////////////////
+
+	private static void closeQuietly( Statement stmt ) {
+		try {
+			stmt.close();
+		} catch ( SQLException e ) {
+			//-- the statement is being discarded regardless
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package datasphere.catalog;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import datasphere.dataware.DSException;
+
+/**
+ * Brings the system tables up to the schema version expected by this build of
+ * the catalog. Each change to the schema after the tables first created by
+ * {@link DSDataManager#createSystemTables()} is registered here as a numbered
+ * migration; the highest version applied so far is recorded in the schema table,
+ * and on startup any later migrations are applied in order. <br/>
+ * <br/>
+ * Index builds are requested as online operations (ALGORITHM=INPLACE, LOCK=NONE),
+ * so that an existing deployment keeps accepting updates while they run. Servers
+ * too old to understand that clause get a plain ALTER TABLE instead.
+ *
+ * @author James Goulding
+ * @version 2010-12-15
+ */
+public class DSSchemaManager {
+
+	private static Logger logger = Logger.getLogger( DSCatalog.class.getName() );
+
+	public static final String SCHEMA_TABLE = "ds_sys_schema";
+
+	private static final String ONLINE = ", ALGORITHM=INPLACE, LOCK=NONE";
+
+	//-- mysql error codes we need to recognise
+	private static final int ER_DUP_FIELDNAME = 1060;
+	private static final int ER_DUP_KEYNAME = 1061;
+	private static final int ER_PARSE_ERROR = 1064;
+
+	private final DSConnectionPool pool;
+	private final String db;
+	private final List< Migration > migrations = new ArrayList< Migration >();
+
+	///////////////////////////////
+
+	/**
+	 * A numbered, described set of statements that moves the schema on by one version.
+	 */
+	public static class Migration {
+
+		private final int version;
+		private final String description;
+		private final String[] statements;
+		private final boolean online;
+
+		public Migration( int version, String description, boolean online, String ... statements ) {
+			this.version = version;
+			this.description = description;
+			this.online = online;
+			this.statements = statements;
+		}
+
+		public int getVersion() 			{ return version; }
+		public String getDescription() 		{ return description; }
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @param pool 	The pool through which the migrations are applied.
+	 * @param db	The name of the database holding the system tables.
+	 */
+	public DSSchemaManager( DSConnectionPool pool, String db ) {
+		this.pool = pool;
+		this.db = db;
+
+		register( new Migration( 1,
+			"history indexes on ds_sys_updates", true,
+			"ALTER TABLE `" + db + "`.`ds_sys_updates` " +
+			"ADD INDEX `idx_updates_jid_ctime` (`jid`, `ctime`, `rtime`), " +
+			"ADD INDEX `idx_updates_jid_sid_ctime` (`jid`, `sid`, `ctime`, `rtime`)" ) );
+
+		register( new Migration( 2,
+			"jid index on ds_sys_subscriptions", true,
+			"ALTER TABLE `" + db + "`.`ds_sys_subscriptions` " +
+			"ADD INDEX `idx_subscriptions_jid` (`jid`, `subscriptionStatus`)" ) );
+
+		register( new Migration( 3,
+			"key ds_sys_policies by jid and sid", true,
+			"ALTER TABLE `" + db + "`.`ds_sys_policies` " +
+			"DROP PRIMARY KEY, ADD PRIMARY KEY (`jid`, `sid`)" ) );
+
+		register( new Migration( 4,
+			"maintained update counts in ds_sys_update_counts", false,
+			"CREATE TABLE IF NOT EXISTS `" + db + "`.`ds_sys_update_counts` (" +
+			"`jid` varchar(256) CHARACTER SET latin1 COLLATE latin1_bin NOT NULL," +
+			"`sid` varchar(256) NOT NULL," +
+			"`total` bigint(20) unsigned NOT NULL," +
+			"PRIMARY KEY (`jid`, `sid`)" +
+			")",
+			"INSERT INTO `" + db + "`.`ds_sys_update_counts` ( jid, sid, total ) " +
+			"SELECT jid, sid, COUNT(1) FROM `" + db + "`.`ds_sys_updates` GROUP BY jid, sid " +
+			"ON DUPLICATE KEY UPDATE total = VALUES( total )" ) );
+
+		register( new Migration( 5,
+			"include ctime in the ds_sys_updates key, as partitioning by ctime requires", true,
+			"ALTER TABLE `" + db + "`.`ds_sys_updates` " +
+			"DROP PRIMARY KEY, ADD PRIMARY KEY (`jid`, `sid`, `rtime`, `ctime`)" ) );
+
+		register( new Migration( 6,
+			"binary payload column on ds_sys_updates", true,
+			"ALTER TABLE `" + db + "`.`ds_sys_updates` " +
+			"ADD COLUMN `payload` mediumblob NULL" ) );
+
+		register( new Migration( 7,
+			"payload term dictionary in " + DSTagDictionary.DICTIONARY_TABLE, false,
+			"CREATE TABLE IF NOT EXISTS `" + db + "`.`" + DSTagDictionary.DICTIONARY_TABLE + "` (" +
+			"`id` int(10) unsigned NOT NULL AUTO_INCREMENT," +
+			"`term` varchar(256) CHARACTER SET utf8 COLLATE utf8_bin NOT NULL," +
+			"PRIMARY KEY (`id`)," +
+			"UNIQUE KEY `idx_dictionary_term` (`term`)" +
+			")" ) );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Adds a migration to those applied by {@link #migrate()}. Versions must be
+	 * registered in ascending order.
+	 */
+	public void register( Migration m ) {
+		if ( !migrations.isEmpty() && migrations.get( migrations.size() - 1 ).getVersion() >= m.getVersion() )
+			throw new IllegalArgumentException( "Schema migration " + m.getVersion() + " registered out of order" );
+		migrations.add( m );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return int The version this build of the catalog expects the schema to be at.
+	 */
+	public int getLatestVersion() {
+		return migrations.isEmpty() ? 0 : migrations.get( migrations.size() - 1 ).getVersion();
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return int The version the schema is currently at (0 if it has never been migrated).
+	 */
+	public int getVersion()
+	throws SQLException {
+
+		DSPooledConnection c = pool.borrow();
+		Statement stmt = null;
+		try {
+			stmt = c.createStatement();
+			ensureSchemaTable( stmt );
+			ResultSet rs = stmt.executeQuery( "SELECT MAX(version) FROM `" + db + "`.`" + SCHEMA_TABLE + "`" );
+			try {
+				return rs.next() ? rs.getInt( 1 ) : 0;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			if ( stmt != null ) stmt.close();
+			pool.release( c );
+		}
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Applies, in order, every registered migration newer than the current schema version.
+	 * @throws DSException Thrown if a migration fails. Migrations applied before
+	 * the failure remain recorded, so a later run will resume from that point.
+	 */
+	public void migrate()
+	throws DSException {
+
+		try {
+			int current = getVersion();
+			int latest = getLatestVersion();
+
+			if ( current >= latest ) {
+				logger.info( "--- DSSchemaManager: Checking schema version (v" + current + ")... [SUCCESS]" );
+				return;
+			}
+
+			logger.info( "--- DSSchemaManager: Upgrading schema from v" + current + " to v" + latest + "..." );
+			for ( Migration m : migrations ) {
+				if ( m.getVersion() > current )
+					apply( m );
+			}
+
+		} catch ( SQLException e ) {
+			logger.severe( "--- DSSchemaManager: Upgrading schema... [FAILED]" );
+			throw new DSException( e );
+		}
+	}
+
+	///////////////////////////////
+
+	private void apply( Migration m )
+	throws SQLException {
+
+		long start = System.currentTimeMillis();
+		DSPooledConnection c = pool.borrow();
+		Statement stmt = null;
+		try {
+			stmt = c.createStatement();
+			for ( String sql : m.statements )
+				execute( stmt, sql, m.online );
+
+			PreparedStatement record = c.prepare(
+				"INSERT INTO `" + db + "`.`" + SCHEMA_TABLE + "` ( version, description, applied ) VALUES ( ?, ?, ? )" );
+			record.setInt( 1, m.getVersion() );
+			record.setString( 2, m.getDescription() );
+			record.setLong( 3, System.currentTimeMillis() );
+			record.executeUpdate();
+
+			logger.info( "--- DSSchemaManager: Applying migration v" + m.getVersion() + " (" + m.getDescription() + ") " +
+				"in " + ( System.currentTimeMillis() - start ) + "ms... [SUCCESS]" );
+
+		} catch ( SQLException e ) {
+			logger.severe( "--- DSSchemaManager: Applying migration v" + m.getVersion() + " (" + m.getDescription() + ")... [FAILED]" );
+			throw e;
+
+		} finally {
+			if ( stmt != null ) stmt.close();
+			pool.release( c );
+		}
+	}
+
+	///////////////////////////////
+
+	private void execute( Statement stmt, String sql, boolean online )
+	throws SQLException {
+
+		try {
+			stmt.execute( online ? sql + ONLINE : sql );
+
+		} catch ( SQLException e ) {
+
+			//-- older servers don't support online DDL, so fall back to a plain alter
+			if ( online && e.getErrorCode() == ER_PARSE_ERROR ) {
+				logger.fine( "--- DSSchemaManager: online DDL unsupported, retrying as a blocking ALTER" );
+				execute( stmt, sql, false );
+			}
+
+			//-- an index left behind by an interrupted earlier run is as good as a new one
+			else if ( e.getErrorCode() == ER_DUP_KEYNAME ) {
+				logger.fine( "--- DSSchemaManager: index already present - " + e.getMessage() );
+			}
+
+			//-- likewise a column
+			else if ( e.getErrorCode() == ER_DUP_FIELDNAME ) {
+				logger.fine( "--- DSSchemaManager: column already present - " + e.getMessage() );
+			}
+
+			else throw e;
+		}
+	}
+
+	///////////////////////////////
+
+	private void ensureSchemaTable( Statement stmt )
+	throws SQLException {
+		stmt.execute(
+			"CREATE TABLE IF NOT EXISTS `" + db + "`.`" + SCHEMA_TABLE + "` (" +
+			"`version` int(10) unsigned NOT NULL," +
+			"`description` varchar(256) NOT NULL," +
+			"`applied` bigint(20) unsigned NOT NULL," +
+			"PRIMARY KEY (`version`)" +
+			")" );
+	}
+}
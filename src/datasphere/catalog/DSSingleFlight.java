@@ -0,0 +1,105 @@
+package datasphere.catalog;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent identical reads. The first caller to ask for a given
+ * key runs the read; any caller asking for the same key while it is still
+ * running waits for, and is handed, that same result (or exception) rather
+ * than issuing a query of its own. Nothing is kept once the read completes,
+ * but a caller joining a read is handed what that read saw, so may miss a
+ * write committed after the read began, even one committed before the caller
+ * asked. Reads that must see a caller's own writes should not be coalesced. <br/>
+ * <br/>
+ * Results are shared between callers, so a caller that may change what it
+ * is handed should take a copy.
+ *
+ * @author James Goulding
+ * @version 2010-12-19
+ */
+public class DSSingleFlight {
+
+	private final ConcurrentHashMap< String, FutureTask< ? > > inflight = new ConcurrentHashMap< String, FutureTask< ? > >();
+
+	private final AtomicLong runs = new AtomicLong();
+	private final AtomicLong shared = new AtomicLong();
+
+	///////////////////////////////
+
+	/**
+	 * Runs the read, or joins an identical read already in flight.
+	 * @param key 	Identifies the read, including every argument that affects its result.
+	 * @return V The result of the read.
+	 * @throws Exception Whatever the read threw.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public < V > V execute( String key, Callable< V > read )
+	throws Exception {
+
+		FutureTask< V > task = new FutureTask< V >( read );
+		FutureTask< V > existing = ( FutureTask< V > ) inflight.putIfAbsent( key, task );
+
+		if ( existing != null ) {
+			shared.incrementAndGet();
+			return get( existing );
+		}
+
+		runs.incrementAndGet();
+		try {
+			task.run();
+		} finally {
+			inflight.remove( key, task );
+		}
+		return get( task );
+	}
+
+	///////////////////////////////
+
+	private static < V > V get( FutureTask< V > task )
+	throws Exception {
+
+		try {
+			return task.get();
+
+		} catch ( ExecutionException e ) {
+			Throwable cause = e.getCause();
+			if ( cause instanceof Exception ) throw ( Exception ) cause;
+			if ( cause instanceof Error ) throw ( Error ) cause;
+			throw e;
+		}
+	}
+
+	///////////////////////////////
+
+	public int getInflightCount() 	{ return inflight.size(); }
+	public long getRunCount() 		{ return runs.get(); }
+	public long getSharedCount() 	{ return shared.get(); }
+
+	///////////////////////////////
+
+	@Override
+	public String toString() {
+		return "singleflight[inflight=" + getInflightCount() + ", runs=" + getRunCount() + ", shared=" + getSharedCount() + "]";
+	}
+}
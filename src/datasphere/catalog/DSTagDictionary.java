@@ -0,0 +1,188 @@
+package datasphere.catalog;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Numbers the strings that recur across updates - tags, and the keys of meta
+ * data - so that the binary payload encoding can store each as a small
+ * integer. The numbering is kept in the dictionary table, and entries are
+ * never changed or removed once written, so a number read back from any
+ * payload always means the same string. <br/>
+ * <br/>
+ * Strings are never numbered on the write path itself, as a number handed
+ * out inside a transaction that then rolled back would be lost. Instead an
+ * unnumbered string is written out in full and noted, and noted strings are
+ * numbered by {@link #flush()}, called once the writer has released its
+ * connection; later updates then use the number. The dictionary is bounded,
+ * beyond which strings are always written in full.
+ *
+ * @author James Goulding
+ * @version 2010-12-20
+ */
+public class DSTagDictionary {
+
+	private static Logger logger = Logger.getLogger( DSCatalog.class.getName() );
+
+	public static final String DICTIONARY_TABLE = "ds_sys_dictionary";
+
+	//-- the longest string worth numbering, and the most noted at once
+	private static final int MAX_TERM_LENGTH = 256;
+	private static final int MAX_PENDING = 1024;
+
+	private final DSConnectionPool pool;
+	private final String db;
+	private final int maxSize;
+
+	private final ConcurrentHashMap< String, Integer > ids = new ConcurrentHashMap< String, Integer >();
+	private final ConcurrentHashMap< Integer, String > terms = new ConcurrentHashMap< Integer, String >();
+	private final ConcurrentHashMap< String, Boolean > pending = new ConcurrentHashMap< String, Boolean >();
+
+	///////////////////////////////
+
+	/**
+	 * @param pool 		The pool through which the dictionary table is read and written.
+	 * @param db 		The name of the database holding the dictionary table.
+	 * @param maxSize 	The most strings the dictionary will number.
+	 */
+	public DSTagDictionary( DSConnectionPool pool, String db, int maxSize ) {
+		this.pool = pool;
+		this.db = db;
+		this.maxSize = maxSize;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Reads every numbered string from the dictionary table.
+	 */
+	public void load()
+	throws SQLException {
+
+		DSPooledConnection c = pool.borrow();
+		ResultSet rs = null;
+		try {
+			PreparedStatement stmt = c.prepare( "SELECT id, term FROM `" + db + "`.`" + DICTIONARY_TABLE + "`" );
+			rs = stmt.executeQuery();
+			while ( rs.next() )
+				learn( rs.getInt( "id" ), rs.getString( "term" ) );
+		} finally {
+			if ( rs != null ) rs.close();
+			pool.release( c );
+		}
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return int The string's number, or -1 if it has none yet (in which
+	 * case it is noted, to be numbered by the next flush).
+	 */
+	public int idOf( String term ) {
+
+		Integer id = ids.get( term );
+		if ( id != null ) return id;
+
+		if ( term.length() <= MAX_TERM_LENGTH && ids.size() + pending.size() < maxSize && pending.size() < MAX_PENDING )
+			pending.put( term, Boolean.TRUE );
+		return -1;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return String The string with the supplied number, or null if there
+	 * is none, even after re-reading the table (for numbers written by
+	 * another catalog since this one loaded).
+	 */
+	public String termOf( int id )
+	throws SQLException {
+
+		String term = terms.get( id );
+		if ( term == null ) {
+			load();
+			term = terms.get( id );
+		}
+		return term;
+	}
+
+	///////////////////////////////
+
+	public boolean hasPending() {
+		return !pending.isEmpty();
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Numbers every noted string, each in its own committed statement. Must
+	 * not be called while holding a connection from the same pool.
+	 */
+	public synchronized void flush()
+	throws SQLException {
+
+		if ( pending.isEmpty() ) return;
+
+		ArrayList< String > batch = new ArrayList< String >( pending.keySet() );
+		DSPooledConnection c = pool.borrow();
+		ResultSet rs = null;
+		try {
+			PreparedStatement insert = c.prepare(
+				"INSERT IGNORE INTO `" + db + "`.`" + DICTIONARY_TABLE + "` ( term ) VALUES ( ? )" );
+			PreparedStatement select = c.prepare(
+				"SELECT id FROM `" + db + "`.`" + DICTIONARY_TABLE + "` WHERE term=?" );
+
+			for ( String term : batch ) {
+				insert.setString( 1, term );
+				insert.executeUpdate();
+
+				select.setString( 1, term );
+				rs = select.executeQuery();
+				if ( rs.next() )
+					learn( rs.getInt( "id" ), term );
+				rs.close();
+				rs = null;
+				pending.remove( term );
+			}
+			logger.fine( "--- DSTagDictionary: numbered " + batch.size() + " new terms (" + ids.size() + " in all)" );
+
+		} finally {
+			if ( rs != null ) rs.close();
+			pool.release( c );
+		}
+	}
+
+	///////////////////////////////
+
+	private void learn( int id, String term ) {
+		terms.put( id, term );
+		ids.put( term, id );
+	}
+
+	///////////////////////////////
+
+	public int getSize() {
+		return ids.size();
+	}
+}
@@ -0,0 +1,157 @@
+package datasphere.catalog;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of the per-(jid, sid) update totals held in the update
+ * counts table. Totals are loaded a whole jid at a time, and once loaded are
+ * kept current by the insert paths adding to them after each commit, so that
+ * a pagination total is a map lookup. <br/>
+ * <br/>
+ * A write that commits while its jid is being loaded may be counted twice or
+ * not at all, so entries expire after a time-to-live and are then reloaded
+ * from the (transactionally maintained) table. The number of cached jids is
+ * bounded; beyond it arbitrary entries are dropped.
+ *
+ * @author James Goulding
+ * @version 2010-12-16
+ */
+public class DSUpdateCounters {
+
+	private final int maxSize;
+	private final long ttl;
+	private final ConcurrentHashMap< String, Entry > entries = new ConcurrentHashMap< String, Entry >();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	///////////////////////////////
+
+	private static class Entry {
+		final long loaded = System.currentTimeMillis();
+		final ConcurrentHashMap< String, AtomicLong > totals = new ConcurrentHashMap< String, AtomicLong >();
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @param maxSize 	The maximum number of jids whose totals are cached.
+	 * @param ttl 		The number of milliseconds for which loaded totals are trusted.
+	 */
+	public DSUpdateCounters( int maxSize, long ttl ) {
+		this.maxSize = Math.max( 1, maxSize );
+		this.ttl = ttl;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return Long The total for the jid (across all its sids if sid is null),
+	 * or null if the jid's totals are not cached.
+	 */
+	public Long get( String jid, String sid ) {
+
+		Entry e = entries.get( jid );
+		if ( e == null || System.currentTimeMillis() - e.loaded > ttl ) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+
+		if ( sid != null ) {
+			AtomicLong total = e.totals.get( sid );
+			return ( total == null ) ? 0L : total.get();
+		}
+
+		long sum = 0;
+		for ( AtomicLong total : e.totals.values() )
+			sum += total.get();
+		return sum;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Caches the complete set of totals for a jid, as read from the counts table.
+	 */
+	public void put( String jid, Map< String, Long > totals ) {
+
+		Entry e = new Entry();
+		for ( Map.Entry< String, Long > t : totals.entrySet() )
+			e.totals.put( t.getKey(), new AtomicLong( t.getValue() ) );
+
+		if ( entries.size() >= maxSize && !entries.containsKey( jid ) ) {
+			Iterator< String > i = entries.keySet().iterator();
+			if ( i.hasNext() ) {
+				i.next();
+				i.remove();
+			}
+		}
+		entries.put( jid, e );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Adds to a cached total following a committed write. Jids whose totals
+	 * are not cached are ignored, as they will be read afresh when next needed.
+	 */
+	public void add( String jid, String sid, long delta ) {
+
+		Entry e = entries.get( jid );
+		if ( e == null ) return;
+
+		AtomicLong total = e.totals.get( sid );
+		if ( total == null ) {
+			AtomicLong fresh = new AtomicLong();
+			total = e.totals.putIfAbsent( sid, fresh );
+			if ( total == null ) total = fresh;
+		}
+		total.addAndGet( delta );
+	}
+
+	///////////////////////////////
+
+	public void invalidate( String jid ) {
+		entries.remove( jid );
+	}
+
+	///////////////////////////////
+
+	public void clear() {
+		entries.clear();
+	}
+
+	///////////////////////////////
+
+	public int getSize() 			{ return entries.size(); }
+	public long getHitCount() 		{ return hits.get(); }
+	public long getMissCount() 		{ return misses.get(); }
+
+	///////////////////////////////
+
+	@Override
+	public String toString() {
+		return "counters[jids=" + getSize() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + "]";
+	}
+}
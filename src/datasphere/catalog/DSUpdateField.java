@@ -0,0 +1,72 @@
+package datasphere.catalog;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.EnumSet;
+
+/**
+ * The optional fields of an update, as named when asking
+ * {@link DSDataManager#fetchUpdates(String, String, Integer, Integer, EnumSet)}
+ * for only some of them. The sid, primary tag, crud, ctime and rtime of an
+ * update are always read, as they identify and order it; fields that are
+ * not asked for are left unset in the updates returned.
+ *
+ * @author James Goulding
+ * @version 2010-12-20
+ */
+public enum DSUpdateField {
+
+	DESCRIPTION( "description" ),
+	TOTAL( "total" ),
+	FTIME( "ftime" ),
+	TAGS( "tags" ),
+	META( "meta" ),
+	LOCATION( "loc" );
+
+	//-- the columns read whatever fields are asked for
+	public static final String REQUIRED_COLUMNS = "sid, primaryTag, crud, ctime, rtime";
+
+	private final String column;
+
+	///////////////////////////////
+
+	private DSUpdateField( String column ) {
+		this.column = column;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return String The column of the updates table holding the field.
+	 */
+	public String getColumn() {
+		return column;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return String The select list reading the required columns and those of the supplied fields.
+	 */
+	public static String columns( EnumSet< DSUpdateField > fields ) {
+		StringBuilder columns = new StringBuilder( REQUIRED_COLUMNS );
+		for ( DSUpdateField f : fields )
+			columns.append( ", " ).append( f.getColumn() );
+		return columns.toString();
+	}
+}
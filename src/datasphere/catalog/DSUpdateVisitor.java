@@ -0,0 +1,39 @@
+package datasphere.catalog;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import datasphere.dataware.DSUpdate;
+
+/**
+ * Callback through which {@link DSDataManager#scanUpdates} hands over the rows
+ * of an update history one at a time, as they are streamed from the database.
+ * Nothing is retained between calls, so a visitor that does not itself keep
+ * the updates can walk any number of them in constant memory.
+ *
+ * @author James Goulding
+ * @version 2010-12-16
+ */
+public interface DSUpdateVisitor {
+
+	/**
+	 * @param jid 		The user the update belongs to.
+	 * @param update 	The next update in the scan.
+	 * @return boolean True to continue the scan, false to stop it early.
+	 */
+	public boolean visit( String jid, DSUpdate update );
+}
@@ -0,0 +1,274 @@
+package datasphere.catalog;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import datasphere.dataware.DSUpdate;
+
+/**
+ * Write-behind buffer for incoming updates. Rather than each update costing
+ * its own autocommitted INSERT, updates are queued here and a background thread
+ * hands them to {@link DSDataManager#insertUpdates(java.util.List)} in batches,
+ * each written in a single transaction. A batch is flushed as soon as it reaches
+ * the batch size, or once its oldest update has waited for the flush interval. <br/>
+ * <br/>
+ * The buffer is bounded: once it holds its full capacity, callers of
+ * {@link #enqueue(String, String, DSUpdate)} block until the flusher catches up.
+ * Batch size and flush latency statistics are kept for tuning purposes.
+ *
+ * @author James Goulding
+ * @version 2010-12-14
+ */
+public class DSWriteBehindQueue
+implements Runnable {
+
+	private static Logger logger = Logger.getLogger( DSCatalog.class.getName() );
+
+	private final DSDataManager db;
+	private final int batchSize;
+	private final long flushInterval;
+	private final int capacity;
+
+	private final Object lock = new Object();
+	private ArrayList< DSPendingUpdate > buffer = new ArrayList< DSPendingUpdate >();
+	private long oldest = 0;
+	private boolean running = false;
+	private Thread flusher = null;
+
+	//-- flush statistics
+	private long flushes = 0;
+	private long flushed = 0;
+	private long failed = 0;
+	private long blocked = 0;
+	private int lastBatchSize = 0;
+	private int maxBatchSize = 0;
+	private long lastFlushTime = 0;
+	private long maxFlushTime = 0;
+	private long totalFlushTime = 0;
+
+	///////////////////////////////
+
+	/**
+	 * @param db 				The manager whose batch insert is used to flush.
+	 * @param batchSize 		The number of buffered updates that triggers a flush.
+	 * @param flushInterval 	The longest an update is buffered (ms) before a flush.
+	 * @param capacity 			The number of buffered updates at which callers block.
+	 */
+	public DSWriteBehindQueue(
+		DSDataManager db,
+		int batchSize,
+		long flushInterval,
+		int capacity )
+	{
+		this.db = db;
+		this.batchSize = Math.max( 1, batchSize );
+		this.flushInterval = Math.max( 1, flushInterval );
+		this.capacity = Math.max( this.batchSize, capacity );
+	}
+
+	///////////////////////////////
+
+	public void start() {
+		synchronized ( lock ) {
+			if ( running ) return;
+			running = true;
+		}
+		flusher = new Thread( this, "DSWriteBehindQueue-flusher" );
+		flusher.setDaemon( true );
+		flusher.start();
+		logger.info( "--- DSWriteBehindQueue: Starting write-behind ingest " +
+			"(batch " + batchSize + ", interval " + flushInterval + "ms)... [SUCCESS]" );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Stops accepting updates, flushes everything still buffered and waits
+	 * for the flusher thread to finish.
+	 */
+	public void stop() {
+		synchronized ( lock ) {
+			if ( !running ) return;
+			running = false;
+			lock.notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+		logger.info( "--- DSWriteBehindQueue: Stopping write-behind ingest... [SUCCESS] " + this );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Buffers an update for writing. The update's received time is taken now,
+	 * not when it eventually reaches the database.
+	 * @return boolean False if the queue is not running, in which case the
+	 * caller is responsible for writing the update itself.
+	 */
+	public boolean enqueue( String jid, String sid, DSUpdate d ) {
+
+		DSPendingUpdate p = new DSPendingUpdate( jid, sid, d, System.currentTimeMillis() );
+
+		synchronized ( lock ) {
+
+			boolean waited = false;
+			while ( running && buffer.size() >= capacity ) {
+				if ( !waited ) {
+					blocked++;
+					waited = true;
+				}
+				try {
+					lock.wait();
+				} catch ( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+
+			if ( !running )
+				return false;
+
+			if ( buffer.isEmpty() )
+				oldest = p.getRtime();
+
+			buffer.add( p );
+
+			//-- only wake the flusher when its deadline or trigger changes
+			if ( buffer.size() == 1 || buffer.size() == batchSize )
+				lock.notifyAll();
+		}
+		return true;
+	}
+
+	///////////////////////////////
+
+	public void run() {
+
+		while ( true ) {
+
+			ArrayList< DSPendingUpdate > batch;
+
+			synchronized ( lock ) {
+				try {
+					while ( running && buffer.size() < batchSize ) {
+						if ( buffer.isEmpty() ) {
+							lock.wait();
+						} else {
+							long remaining = oldest + flushInterval - System.currentTimeMillis();
+							if ( remaining <= 0 ) break;
+							lock.wait( remaining );
+						}
+					}
+				} catch ( InterruptedException e ) {
+					running = false;
+				}
+
+				if ( buffer.isEmpty() ) {
+					if ( !running ) return;
+					continue;
+				}
+
+				batch = buffer;
+				buffer = new ArrayList< DSPendingUpdate >( batchSize );
+				lock.notifyAll();
+			}
+
+			flush( batch );
+		}
+	}
+
+	///////////////////////////////
+
+	private void flush( ArrayList< DSPendingUpdate > batch ) {
+
+		long start = System.nanoTime();
+		int written = 0;
+		try {
+			written = db.insertUpdates( batch );
+		} catch ( SQLException e ) {
+			logger.log( Level.SEVERE, "--- DSWriteBehindQueue: flush of " + batch.size() + " updates FAILED - ", e );
+		}
+		long elapsed = ( System.nanoTime() - start ) / 1000000;
+
+		synchronized ( this ) {
+			flushes++;
+			flushed += written;
+			failed += batch.size() - written;
+			lastBatchSize = batch.size();
+			maxBatchSize = Math.max( maxBatchSize, lastBatchSize );
+			lastFlushTime = elapsed;
+			maxFlushTime = Math.max( maxFlushTime, elapsed );
+			totalFlushTime += elapsed;
+		}
+
+		if ( logger.isLoggable( Level.FINEST ) )
+			logger.finest( "--- DSWriteBehindQueue: flushed " + written + "/" + batch.size() + " updates in " + elapsed + "ms" );
+	}
+
+	///////////////////////////////
+
+	public int getDepth() {
+		synchronized ( lock ) {
+			return buffer.size();
+		}
+	}
+
+	public synchronized long getFlushCount() 		{ return flushes; }
+	public synchronized long getFlushedCount() 		{ return flushed; }
+	public synchronized long getFailedCount() 		{ return failed; }
+	public synchronized int getLastBatchSize() 		{ return lastBatchSize; }
+	public synchronized int getMaxBatchSize() 		{ return maxBatchSize; }
+	public synchronized long getLastFlushTime() 	{ return lastFlushTime; }
+	public synchronized long getMaxFlushTime() 		{ return maxFlushTime; }
+
+	public long getBlockedCount() {
+		synchronized ( lock ) {
+			return blocked;
+		}
+	}
+
+	public synchronized double getAverageBatchSize() {
+		return ( flushes == 0 ) ? 0 : ( double ) ( flushed + failed ) / flushes;
+	}
+
+	public synchronized double getAverageFlushTime() {
+		return ( flushes == 0 ) ? 0 : ( double ) totalFlushTime / flushes;
+	}
+
+	///////////////////////////////
+
+	@Override
+	public String toString() {
+		return "write-behind[depth=" + getDepth() +
+			", flushes=" + getFlushCount() +
+			", flushed=" + getFlushedCount() +
+			", failed=" + getFailedCount() +
+			", blocked=" + getBlockedCount() +
+			", batch(last/avg/max)=" + getLastBatchSize() + "/" +
+				Math.round( getAverageBatchSize() ) + "/" + getMaxBatchSize() +
+			", latency ms(last/avg/max)=" + getLastFlushTime() + "/" +
+				Math.round( getAverageFlushTime() ) + "/" + getMaxFlushTime() + "]";
+	}
+}
@@ -0,0 +1,149 @@
+package datasphere.catalog.cache;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over a set of string keys, such as the jids of the users
+ * table or the sids of the sources table. {@link #mightContain} never answers
+ * false for a key that has been added, so a false answer lets a lookup of an
+ * unknown key be rejected without a query; a true answer may, rarely, be
+ * wrong, and the lookup then proceeds as usual. Keys cannot be removed, so
+ * keys deleted from the table only ever cost a query. <br/>
+ * <br/>
+ * The filter is sized for an expected number of keys and false positive rate.
+ * Adding more keys than expected still works, at a rising false positive rate.
+ * Bits are set with compare-and-set, so adds and lookups need no locking.
+ * Until the caller has added every existing key and called {@link #setLoaded()},
+ * {@link #isLoaded()} is false and the filter should not be consulted.
+ *
+ * @author James Goulding
+ * @version 2010-12-19
+ */
+public class DSBloomFilter {
+
+	private final String name;
+	private final AtomicLongArray bits;
+	private final long size;
+	private final int hashes;
+	private final AtomicLong keys = new AtomicLong();
+	private final AtomicLong rejections = new AtomicLong();
+	private volatile boolean loaded = false;
+
+	///////////////////////////////
+
+	/**
+	 * @param name 			A name identifying the filter in its statistics.
+	 * @param expected 		The number of keys the filter is sized for.
+	 * @param fpp 			The false positive rate sought at that number of keys.
+	 */
+	public DSBloomFilter( String name, long expected, double fpp ) {
+
+		expected = Math.max( 1, expected );
+		fpp = Math.min( 0.5, Math.max( 1e-9, fpp ) );
+
+		long m = ( long ) Math.ceil( -expected * Math.log( fpp ) / ( Math.log( 2 ) * Math.log( 2 ) ) );
+		int words = ( int ) Math.min( Integer.MAX_VALUE, ( m + 63 ) / 64 );
+
+		this.name = name;
+		this.bits = new AtomicLongArray( words );
+		this.size = words * 64L;
+		this.hashes = Math.max( 1, ( int ) Math.round( ( double ) size / expected * Math.log( 2 ) ) );
+	}
+
+	///////////////////////////////
+
+	public void add( String key ) {
+
+		long h = hash( key );
+		int h1 = ( int ) h;
+		int h2 = ( int ) ( h >>> 32 );
+		for ( int i = 0; i < hashes; i++ ) {
+			long bit = ( ( h1 + i * h2 ) & 0x7fffffffL ) % size;
+			int word = ( int ) ( bit >>> 6 );
+			long mask = 1L << bit;
+			for ( ;; ) {
+				long current = bits.get( word );
+				if ( ( current & mask ) != 0 || bits.compareAndSet( word, current, current | mask ) )
+					break;
+			}
+		}
+		keys.incrementAndGet();
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return boolean False if the key has certainly never been added.
+	 */
+	public boolean mightContain( String key ) {
+
+		long h = hash( key );
+		int h1 = ( int ) h;
+		int h2 = ( int ) ( h >>> 32 );
+		for ( int i = 0; i < hashes; i++ ) {
+			long bit = ( ( h1 + i * h2 ) & 0x7fffffffL ) % size;
+			if ( ( bits.get( ( int ) ( bit >>> 6 ) ) & ( 1L << bit ) ) == 0 ) {
+				rejections.incrementAndGet();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	///////////////////////////////
+
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	///////////////////////////////
+
+	public void setLoaded() {
+		loaded = true;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * 64 bit FNV-1a over the key's characters, whose two halves seed the
+	 * double hashing that picks each key's bits.
+	 */
+	private static long hash( String key ) {
+		long h = 0xcbf29ce484222325L;
+		for ( int i = 0; i < key.length(); i++ ) {
+			h ^= key.charAt( i );
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	///////////////////////////////
+
+	public long getKeyCount() 			{ return keys.get(); }
+	public long getRejectionCount() 	{ return rejections.get(); }
+
+	///////////////////////////////
+
+	@Override
+	public String toString() {
+		return name + "[bits=" + size + ", hashes=" + hashes + ", keys=" + getKeyCount() + ", rejections=" + getRejectionCount() + "]";
+	}
+}
@@ -0,0 +1,181 @@
+package datasphere.catalog.cache;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, in-process read-through cache. Entries are evicted least recently
+ * used first once the cache holds its maximum number of entries, and expire
+ * a fixed time after they were loaded, so that changes made behind the
+ * catalog's back are eventually picked up. Hit, miss, eviction and expiry
+ * counts are kept for tuning. <br/>
+ * <br/>
+ * All access is synchronized on the cache. Loading a missing value is left 
+ * to the caller, outside the lock, so a slow load never holds up other readers.
+ *
+ * @author James Goulding
+ * @version 2010-12-18
+ */
+public class DSCache< K, V > {
+
+	private final String name;
+	private final int maxSize;
+	private final long ttl;
+	private final LinkedHashMap< K, Cached< V > > entries;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long expiries = 0;
+
+	///////////////////////////////
+
+	private static class Cached< V > {
+		final V value;
+		final long loaded;
+		Cached( V value ) {
+			this.value = value;
+			this.loaded = System.currentTimeMillis();
+		}
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @param name 		A name identifying the cache in its statistics.
+	 * @param maxSize 	The maximum number of entries held.
+	 * @param ttl 		The number of milliseconds an entry is trusted for (0 for ever).
+	 */
+	public DSCache( String name, int maxSize, long ttl ) {
+		this.name = name;
+		this.maxSize = Math.max( 1, maxSize );
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap< K, Cached< V > >( 16, 0.75f, true ) {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry( Map.Entry< K, Cached< V > > eldest ) {
+				if ( size() <= DSCache.this.maxSize ) return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return V The cached value, or null if it is absent or has expired.
+	 */
+	public synchronized V get( K key ) {
+
+		Cached< V > e = entries.get( key );
+		if ( e != null && expired( e ) ) {
+			entries.remove( key );
+			expiries++;
+			e = null;
+		}
+
+		if ( e == null ) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return e.value;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return V The cached value, or null if it is absent or has expired. Unlike
+	 * {@link #get} the lookup is not counted in the statistics, for use by 
+	 * writers keeping a cached value current.
+	 */
+	public synchronized V peek( K key ) {
+
+		Cached< V > e = entries.get( key );
+		return ( e == null || expired( e ) ) ? null : e.value;
+	}
+
+	///////////////////////////////
+
+	public synchronized void put( K key, V value ) {
+		entries.put( key, new Cached< V >( value ) );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Discards a single entry, for use when the underlying value is known to have changed.
+	 */
+	public synchronized void invalidate( K key ) {
+		entries.remove( key );
+	}
+
+	///////////////////////////////
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Discards every expired entry. Expired entries are otherwise only discarded
+	 * when next looked up, or when evicted to make room.
+	 */
+	public synchronized void purge() {
+		Iterator< Cached< V > > i = entries.values().iterator();
+		while ( i.hasNext() ) {
+			if ( expired( i.next() ) ) {
+				i.remove();
+				expiries++;
+			}
+		}
+	}
+
+	///////////////////////////////
+
+	private boolean expired( Cached< V > e ) {
+		return ttl > 0 && System.currentTimeMillis() - e.loaded > ttl;
+	}
+
+	///////////////////////////////
+
+	public synchronized int getSize() 			{ return entries.size(); }
+	public synchronized long getHitCount() 		{ return hits; }
+	public synchronized long getMissCount() 	{ return misses; }
+	public synchronized long getEvictionCount() { return evictions; }
+	public synchronized long getExpiryCount() 	{ return expiries; }
+
+	public synchronized double getHitRate() {
+		return ( hits + misses == 0 ) ? 0 : ( double ) hits / ( hits + misses );
+	}
+
+	///////////////////////////////
+
+	@Override
+	public synchronized String toString() {
+		return name + "[size=" + entries.size() + "/" + maxSize +
+			", hits=" + hits +
+			", misses=" + misses +
+			", evictions=" + evictions +
+			", expiries=" + expiries + "]";
+	}
+}
@@ -0,0 +1,188 @@
+package datasphere.catalog.cache;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import datasphere.catalog.DSHistoryCursor;
+import datasphere.dataware.DSUpdate;
+
+/**
+ * Caches pages of update history exactly as read from the database, keyed by
+ * user, source, limit and either offset or cursor and direction, so that 
+ * repeated views of a history that has not changed skip the database 
+ * entirely. <br/>
+ * <br/>
+ * Pages are grouped by the history they belong to, and a write for a user
+ * and source discards every page of that user's history and of its history
+ * of that source, so a cached page is never stale. As with {@link DSRecentUpdates}
+ * a page read while a write commits is only cached if no write has touched
+ * the user (or another user sharing its stripe) since the read began. The
+ * number of histories cached, and of pages cached per history, are bounded.
+ *
+ * @author James Goulding
+ * @version 2010-12-19
+ */
+public class DSHistoryCache {
+
+	private static final int STRIPES = 64;
+
+	private final int maxPages;
+	private final DSCache< String, ConcurrentHashMap< String, ArrayList< DSUpdate > > > histories;
+	private final AtomicLong[] versions = new AtomicLong[ STRIPES ];
+
+	///////////////////////////////
+
+	/**
+	 * @param maxSize 	The maximum number of histories whose pages are cached.
+	 * @param maxPages 	The maximum number of pages cached for each history.
+	 * @param ttl 		The number of milliseconds a history's pages are trusted for (0 for ever).
+	 */
+	public DSHistoryCache( int maxSize, int maxPages, long ttl ) {
+		this.maxPages = Math.max( 1, maxPages );
+		this.histories = new DSCache< String, ConcurrentHashMap< String, ArrayList< DSUpdate > > >( "history", maxSize, ttl );
+		for ( int i = 0; i < STRIPES; i++ )
+			versions[ i ] = new AtomicLong();
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return ArrayList A copy of the cached page, or null if it is not cached.
+	 */
+	public ArrayList< DSUpdate > get( String jid, String sid, int limit, int offset ) {
+		return get( jid, sid, limit + ":" + offset );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @param older True for the page older than the cursor, false for the page newer.
+	 * @return ArrayList A copy of the cached page, or null if it is not cached.
+	 */
+	public ArrayList< DSUpdate > get( String jid, String sid, DSHistoryCursor cursor, boolean older, int limit ) {
+		return get( jid, sid, pageKey( cursor, older, limit ) );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return long A token to be handed back to {@link #put} once a page has been read.
+	 */
+	public long begin( String jid ) {
+		return stripe( jid ).get();
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Caches a page read from the database, provided no write has been made
+	 * for the user since the supplied token was taken.
+	 */
+	public void put( String jid, String sid, int limit, int offset, long token, ArrayList< DSUpdate > page ) {
+		put( jid, sid, limit + ":" + offset, token, page );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Caches a page read from the database by cursor, provided no write has 
+	 * been made for the user since the supplied token was taken.
+	 */
+	public void put( String jid, String sid, DSHistoryCursor cursor, boolean older, int limit, long token, ArrayList< DSUpdate > page ) {
+		put( jid, sid, pageKey( cursor, older, limit ), token, page );
+	}
+
+	///////////////////////////////
+
+	private ArrayList< DSUpdate > get( String jid, String sid, String pageKey ) {
+
+		ConcurrentHashMap< String, ArrayList< DSUpdate > > pages = histories.get( key( jid, sid ) );
+		if ( pages == null ) return null;
+
+		ArrayList< DSUpdate > page = pages.get( pageKey );
+		return ( page == null ) ? null : new ArrayList< DSUpdate >( page );
+	}
+
+	///////////////////////////////
+
+	private void put( String jid, String sid, String pageKey, long token, ArrayList< DSUpdate > page ) {
+
+		String key = key( jid, sid );
+		ConcurrentHashMap< String, ArrayList< DSUpdate > > pages = histories.peek( key );
+		if ( pages == null ) {
+			pages = new ConcurrentHashMap< String, ArrayList< DSUpdate > >();
+			histories.put( key, pages );
+		}
+
+		if ( pages.size() >= maxPages )
+			pages.clear();
+		pages.put( pageKey, new ArrayList< DSUpdate >( page ) );
+
+		//-- re-checked after the put, so that a write racing it is sure to see the page and remove it
+		if ( stripe( jid ).get() != token )
+			pages.remove( pageKey );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Discards every cached page a write for the user and source could have
+	 * changed. To be called once the write has committed.
+	 */
+	public void invalidate( String jid, String sid ) {
+		stripe( jid ).incrementAndGet();
+		histories.invalidate( key( jid, null ) );
+		histories.invalidate( key( jid, sid ) );
+	}
+
+	///////////////////////////////
+
+	public void clear() {
+		for ( AtomicLong v : versions )
+			v.incrementAndGet();
+		histories.clear();
+	}
+
+	///////////////////////////////
+
+	private AtomicLong stripe( String jid ) {
+		return versions[ ( jid.hashCode() & 0x7fffffff ) % STRIPES ];
+	}
+
+	///////////////////////////////
+
+	private static String pageKey( DSHistoryCursor cursor, boolean older, int limit ) {
+		return limit + ( older ? ">" : "<" ) + ( ( cursor == null ) ? "" : cursor.toToken() );
+	}
+
+	///////////////////////////////
+
+	private static String key( String jid, String sid ) {
+		return ( sid == null ) ? jid : jid + '\n' + sid;
+	}
+
+	///////////////////////////////
+
+	@Override
+	public String toString() {
+		return histories.toString();
+	}
+}
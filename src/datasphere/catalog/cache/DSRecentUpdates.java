@@ -0,0 +1,311 @@
+package datasphere.catalog.cache;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import datasphere.catalog.DSHistoryCursor;
+import datasphere.dataware.DSUpdate;
+
+/**
+ * Holds the most recent updates of each user's history (and of each user's
+ * history of a single source), newest first, so that the first pages of a
+ * history, whether asked for by offset or by a cursor falling among the 
+ * updates held, can be served without a sorted query. <br/>
+ * <br/>
+ * A history is warmed lazily, by the caller reading its newest updates from
+ * the database and handing them to {@link #warm}, and is then kept current by
+ * the insert paths passing each committed update to {@link #add}. Each history
+ * holds at most a fixed depth of updates; one holding fewer is known to be
+ * complete. Updates for histories that are not warm are ignored, as the next
+ * read will load them afresh, so a writer need only build the update to be
+ * added when {@link #isWarm} says it is wanted. <br/>
+ * <br/>
+ * A write committing while a history is being read from the database could
+ * be missed by that read, so a warm only takes effect if no write has touched
+ * the user (or another user sharing its stripe) since the read began. The
+ * number of histories held is bounded by the memory budget divided by the
+ * depth, beyond which the least recently used are dropped.
+ *
+ * @author James Goulding
+ * @version 2010-12-19
+ */
+public class DSRecentUpdates {
+
+	private static final int STRIPES = 64;
+
+	private final int depth;
+	private final DSCache< String, Ring > rings;
+	private final AtomicLong[] versions = new AtomicLong[ STRIPES ];
+
+	///////////////////////////////
+
+	/**
+	 * The newest updates of a single history, ordered as the updates table
+	 * is read: by ctime, then rtime, then sid, all descending.
+	 */
+	private static class Ring {
+
+		final LinkedList< DSUpdate > updates = new LinkedList< DSUpdate >();
+		boolean complete;
+
+		Ring( List< DSUpdate > newest, boolean complete ) {
+			this.updates.addAll( newest );
+			this.complete = complete;
+		}
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @param depth 	The number of updates held for each history.
+	 * @param budget 	The total number of updates held across all histories.
+	 */
+	public DSRecentUpdates( int depth, int budget ) {
+		this.depth = Math.max( 1, depth );
+		this.rings = new DSCache< String, Ring >( "recent", Math.max( 1, budget / this.depth ), 0 );
+		for ( int i = 0; i < STRIPES; i++ )
+			versions[ i ] = new AtomicLong();
+	}
+
+	///////////////////////////////
+
+	public int getDepth() {
+		return depth;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return ArrayList The requested page of the history, or null if it
+	 * cannot be answered from memory, either because the history is not warm
+	 * or because the page reaches beyond the updates held.
+	 */
+	public ArrayList< DSUpdate > get( String jid, String sid, int limit, int offset ) {
+
+		Ring r = rings.get( key( jid, sid ) );
+		if ( r == null ) return null;
+
+		synchronized ( r ) {
+			if ( offset + limit > r.updates.size() && !r.complete )
+				return null;
+
+			ArrayList< DSUpdate > page = new ArrayList< DSUpdate >( limit );
+			int end = Math.min( offset + limit, r.updates.size() );
+			if ( offset < end )
+				page.addAll( r.updates.subList( offset, end ) );
+			return page;
+		}
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @param cursor The position to continue from, or null for the newest page.
+	 * @return ArrayList The page of the history immediately older than the cursor, 
+	 * or null if it cannot be answered from memory.
+	 */
+	public ArrayList< DSUpdate > getAfter( String jid, String sid, DSHistoryCursor cursor, int limit ) {
+
+		Ring r = rings.get( key( jid, sid ) );
+		if ( r == null ) return null;
+
+		synchronized ( r ) {
+			int start = 0;
+			if ( cursor != null ) {
+				for ( DSUpdate u : r.updates ) {
+					if ( compare( u, cursor ) < 0 ) break;
+					start++;
+				}
+			}
+			if ( start + limit > r.updates.size() && !r.complete )
+				return null;
+
+			ArrayList< DSUpdate > page = new ArrayList< DSUpdate >( limit );
+			int end = Math.min( start + limit, r.updates.size() );
+			if ( start < end )
+				page.addAll( r.updates.subList( start, end ) );
+			return page;
+		}
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @param cursor The position to go back from.
+	 * @return ArrayList The page of the history immediately newer than the cursor,
+	 * newest first, or null if it cannot be answered from memory.
+	 */
+	public ArrayList< DSUpdate > getBefore( String jid, String sid, DSHistoryCursor cursor, int limit ) {
+
+		if ( cursor == null ) return null;
+		Ring r = rings.get( key( jid, sid ) );
+		if ( r == null ) return null;
+
+		synchronized ( r ) {
+			int end = 0;
+			for ( DSUpdate u : r.updates ) {
+				if ( compare( u, cursor ) <= 0 ) break;
+				end++;
+			}
+
+			//-- unless something held is at or past the cursor, newer updates may lie beyond the ring
+			if ( end == r.updates.size() && !r.complete )
+				return null;
+
+			ArrayList< DSUpdate > page = new ArrayList< DSUpdate >( limit );
+			page.addAll( r.updates.subList( Math.max( 0, end - limit ), end ) );
+			return page;
+		}
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return long A token to be handed back to {@link #warm} once the newest
+	 * updates of one of the user's histories have been read.
+	 */
+	public long begin( String jid ) {
+		return stripe( jid ).get();
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Installs a history read from the database, provided no update has been
+	 * added for the user since the supplied token was taken.
+	 * @param newest The newest updates of the history (up to the depth), newest first.
+	 */
+	public void warm( String jid, String sid, long token, List< DSUpdate > newest ) {
+
+		if ( stripe( jid ).get() != token ) return;
+		String key = key( jid, sid );
+		rings.put( key, new Ring( newest, newest.size() < depth ) );
+
+		//-- re-checked after the put, as a write touching the user between the check 
+		//-- and the put would otherwise have found the history cold and left it stale
+		if ( stripe( jid ).get() != token )
+			rings.invalidate( key );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Notes that an update has been committed for the user, so that any warm
+	 * of its histories already under way is abandoned. To be called for every
+	 * committed update, before {@link #isWarm}.
+	 */
+	public void touch( String jid ) {
+		stripe( jid ).incrementAndGet();
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return boolean True if either of the histories the update would join is warm,
+	 * and so would be affected by {@link #add}.
+	 */
+	public boolean isWarm( String jid, String sid ) {
+		return rings.peek( key( jid, null ) ) != null || rings.peek( key( jid, sid ) ) != null;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Adds a committed update to the user's history, and to its history
+	 * of the update's source, wherever they are warm.
+	 */
+	public void add( String jid, String sid, DSUpdate u ) {
+		add( rings.peek( key( jid, null ) ), u );
+		add( rings.peek( key( jid, sid ) ), u );
+	}
+
+	///////////////////////////////
+
+	private void add( Ring r, DSUpdate u ) {
+
+		if ( r == null ) return;
+
+		synchronized ( r ) {
+
+			//-- find the update's place, which for a live update is nearly always the head
+			ListIterator< DSUpdate > i = r.updates.listIterator();
+			while ( i.hasNext() ) {
+				if ( newer( u, i.next() ) ) {
+					i.previous();
+					break;
+				}
+			}
+
+			//-- an update older than everything held is only kept by a complete history
+			if ( !i.hasNext() && !r.complete && r.updates.size() >= depth )
+				return;
+
+			i.add( u );
+			if ( r.updates.size() > depth ) {
+				r.updates.removeLast();
+				r.complete = false;
+			}
+		}
+	}
+
+	///////////////////////////////
+
+	public void clear() {
+		for ( AtomicLong v : versions )
+			v.incrementAndGet();
+		rings.clear();
+	}
+
+	///////////////////////////////
+
+	private static boolean newer( DSUpdate a, DSUpdate b ) {
+		return compare( a, DSHistoryCursor.of( b ) ) > 0;
+	}
+
+	///////////////////////////////
+
+	private static int compare( DSUpdate u, DSHistoryCursor c ) {
+		if ( u.getCtime() != c.getCtime() ) return ( u.getCtime() < c.getCtime() ) ? -1 : 1;
+		if ( u.getRtime() != c.getRtime() ) return ( u.getRtime() < c.getRtime() ) ? -1 : 1;
+		return ( ( u.getSid() == null ) ? "" : u.getSid() ).compareTo( c.getSid() );
+	}
+
+	///////////////////////////////
+
+	private AtomicLong stripe( String jid ) {
+		return versions[ ( jid.hashCode() & 0x7fffffff ) % STRIPES ];
+	}
+
+	///////////////////////////////
+
+	private static String key( String jid, String sid ) {
+		return ( sid == null ) ? jid : jid + '\n' + sid;
+	}
+
+	///////////////////////////////
+
+	@Override
+	public String toString() {
+		return rings.toString();
+	}
+}
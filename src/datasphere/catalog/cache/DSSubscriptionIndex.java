@@ -0,0 +1,213 @@
+package datasphere.catalog.cache;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import datasphere.catalog.DSSub;
+import datasphere.catalog.DSSub.Status;
+
+/**
+ * An in-memory copy of the subscriptions and policies tables, keyed by jid
+ * and then sid, so that the subscription checks made on every presence stanza
+ * and source page are hash lookups. <br/>
+ * <br/>
+ * Unlike {@link DSCache} the index is authoritative rather than a cache:
+ * it is loaded in full at startup, and every change to either table is written
+ * through to it once the database has accepted the change. It therefore
+ * assumes the catalog is the only writer of those tables. Until it has been
+ * loaded, {@link #isLoaded()} is false and callers should use the database.
+ *
+ * @author James Goulding
+ * @version 2010-12-18
+ */
+public class DSSubscriptionIndex {
+
+	private final ConcurrentHashMap< String, ConcurrentHashMap< String, Subscription > > subscriptions = 
+		new ConcurrentHashMap< String, ConcurrentHashMap< String, Subscription > >();
+	
+	private final ConcurrentHashMap< String, ConcurrentHashMap< String, Status > > policies = 
+		new ConcurrentHashMap< String, ConcurrentHashMap< String, Status > >();
+	
+	private volatile boolean loaded = false;
+
+	///////////////////////////////
+
+	/**
+	 * A single row of the subscriptions table. Immutable, so that it can be 
+	 * handed to readers while writers replace it.
+	 */
+	public static class Subscription {
+		
+		private final String status;
+		private final long ctime;
+		private final long mtime;
+		
+		public Subscription( String status, long ctime, long mtime ) {
+			this.status = status;
+			this.ctime = ctime;
+			this.mtime = mtime;
+		}
+		
+		public String getStatus() 	{ return status; }
+		public long getCtime() 		{ return ctime; }
+		public long getMtime() 		{ return mtime; }
+	}
+
+	///////////////////////////////
+
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Marks the index as holding the full contents of both tables.
+	 */
+	public void setLoaded() {
+		loaded = true;
+	}
+
+	///////////////////////////////
+
+	public Subscription getSub( String jid, String sid ) {
+		ConcurrentHashMap< String, Subscription > subs = subscriptions.get( jid );
+		return ( subs == null ) ? null : subs.get( sid );
+	}
+
+	///////////////////////////////
+
+	public void putSub( String jid, String sid, Subscription sub ) {
+		forJid( subscriptions, jid ).put( sid, sub );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Changes the status and modification time of an existing subscription, 
+	 * as an UPDATE would. Subscriptions not in the index are left absent.
+	 * @param mtime The modification time written to the table.
+	 */
+	public void setSubStatus( String jid, String sid, Status status, long mtime ) {
+		ConcurrentHashMap< String, Subscription > subs = subscriptions.get( jid );
+		if ( subs == null ) return;
+		
+		Subscription sub = subs.get( sid );
+		if ( sub != null ) 
+			subs.put( sid, new Subscription( status.toString(), sub.getCtime(), mtime ) );
+	}
+
+	///////////////////////////////
+
+	public void removeSub( String jid, String sid ) {
+		ConcurrentHashMap< String, Subscription > subs = subscriptions.get( jid );
+		if ( subs != null ) subs.remove( sid );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return ArrayList The sids a user subscribes to, restricted to 
+	 * subscriptions with one of the supplied statuses if any are given.
+	 */
+	public ArrayList< String > getSids( String jid, DSSub.Status ... statuses ) {
+		
+		ArrayList< String > sids = new ArrayList< String >();
+		ConcurrentHashMap< String, Subscription > subs = subscriptions.get( jid );
+		if ( subs == null ) return sids;
+		
+		for ( Map.Entry< String, Subscription > e : subs.entrySet() ) {
+			if ( statuses.length == 0 || hasAny( e.getValue(), statuses ) ) 
+				sids.add( e.getKey() );
+		}
+		return sids;
+	}
+
+	///////////////////////////////
+
+	public Status getPolicy( String jid, String sid ) {
+		ConcurrentHashMap< String, Status > p = policies.get( jid );
+		return ( p == null ) ? null : p.get( sid );
+	}
+
+	///////////////////////////////
+
+	public void putPolicy( String jid, String sid, Status status ) {
+		forJid( policies, jid ).put( sid, status );
+	}
+
+	///////////////////////////////
+
+	public void removePolicy( String jid, String sid ) {
+		ConcurrentHashMap< String, Status > p = policies.get( jid );
+		if ( p != null ) p.remove( sid );
+	}
+
+	///////////////////////////////
+
+	public void clearSubs() {
+		subscriptions.clear();
+	}
+
+	///////////////////////////////
+
+	public void clear() {
+		subscriptions.clear();
+		policies.clear();
+		loaded = false;
+	}
+
+	///////////////////////////////
+
+	@Override
+	public String toString() {
+		int subs = 0;
+		for ( ConcurrentHashMap< String, Subscription > s : subscriptions.values() ) 
+			subs += s.size();
+		int pols = 0;
+		for ( ConcurrentHashMap< String, Status > p : policies.values() ) 
+			pols += p.size();
+		return "subscription-index[loaded=" + loaded + ", subscriptions=" + subs + ", policies=" + pols + "]";
+	}
+
+	///////////////////////////////
+
+	private static < V > ConcurrentHashMap< String, V > forJid( 
+		ConcurrentHashMap< String, ConcurrentHashMap< String, V > > map, 
+		String jid ) 
+	{
+		ConcurrentHashMap< String, V > m = map.get( jid );
+		if ( m == null ) {
+			ConcurrentHashMap< String, V > fresh = new ConcurrentHashMap< String, V >();
+			m = map.putIfAbsent( jid, fresh );
+			if ( m == null ) m = fresh;
+		}
+		return m;
+	}
+
+	///////////////////////////////
+
+	private static boolean hasAny( Subscription sub, DSSub.Status[] statuses ) {
+		for ( DSSub.Status s : statuses )
+			if ( s.toString().equalsIgnoreCase( sub.getStatus() ) ) return true;
+		return false;
+	}
+}
@@ -3,14 +3,21 @@ package datasphere.catalog.http;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Map;
 
+import org.json.JSONException;
+import org.restlet.data.Form;
 import org.restlet.data.MediaType;
 import org.restlet.representation.Representation;
 import org.restlet.representation.StringRepresentation;
 import org.restlet.resource.ServerResource;
 
 
+import datasphere.catalog.DSCatalog;
+import datasphere.catalog.DSHistoryCursor;
+import datasphere.dataware.DSUpdate;
 import freemarker.template.TemplateException;
 
 public class DSServerResource 
@@ -32,6 +39,39 @@ extends ServerResource {
 
 		return result;
 	}
+	
+	///////////////////////////////////
+	
+	/**
+	 * Fetches the updates for the page described by the paginator. Where the 
+	 * request carries an "after" or "before" continuation token (as written into
+	 * the paginator's prev / next links) the page is found by seeking from that 
+	 * token, as is the first page. Only direct jumps to a numbered page fall 
+	 * back to an offset query.
+	 */
+	protected ArrayList< DSUpdate > fetchHistoryPage( 
+		Form form, 
+		Paginator p, 
+		String jid, 
+		String sid ) 
+	throws SQLException, JSONException {
+		
+		DSHistoryCursor after = DSHistoryCursor.parse( form.getFirstValue( "after" ) );
+		DSHistoryCursor before = DSHistoryCursor.parse( form.getFirstValue( "before" ) );
+		
+		ArrayList< DSUpdate > updates;
+		if ( after != null ) 
+			updates = DSCatalog.db.fetchUpdatesAfter( jid, sid, after, p.limit );
+		else if ( before != null ) 
+			updates = DSCatalog.db.fetchUpdatesBefore( jid, sid, before, p.limit );
+		else if ( p.offset == 0 )
+			updates = DSCatalog.db.fetchUpdatesAfter( jid, sid, null, p.limit );
+		else
+			updates = DSCatalog.db.fetchUpdates( jid, sid, p.limit, p.offset );
+		
+		p.setUpdates( updates );
+		return updates;
+	}
 
 }
 
@@ -4,8 +4,10 @@ import java.io.IOException;
 import java.net.BindException;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
+import java.util.logging.Filter;
 import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
 import org.restlet.Component;
@@ -13,6 +15,7 @@ import org.restlet.data.Protocol;
 import org.restlet.resource.Directory;
 
 import datasphere.catalog.DSCatalog;
+import datasphere.dataware.DSAsyncHandler;
 import datasphere.dataware.DSLogFormatter;
 import freemarker.template.Configuration;
 import freemarker.template.DefaultObjectWrapper;
@@ -38,12 +41,20 @@ public class DSWebServer extends Component {
 	    fileHandler = new FileHandler( "logs/http%g.log", true );     
 	    fileHandler.setFormatter( new DSLogFormatter() );
 	    
+	    //-- fetches of static resources (icons, stylesheets) swamp the access log, so are left out
+	    fileHandler.setFilter( new Filter() {
+	    	public boolean isLoggable( LogRecord record ) {
+	    		String message = record.getMessage();
+	    		return message == null || message.indexOf( "/static/" ) < 0;
+	    	}
+	    } );
+	    
 	    Handler webHandler = new ConsoleHandler();
 	    webHandler.setFormatter( new DSWebLogFormatter() );
 	    webHandler.setLevel( Level.FINEST );
 	    //--weblogger.addHandler( webHandler );
 	    
-	    weblogger.addHandler( fileHandler );
+	    weblogger.addHandler( new DSAsyncHandler( fileHandler ) );
 	    weblogger.setUseParentHandlers( false );
 	    weblogger.setLevel( Level.INFO );
 	}
@@ -1,5 +1,12 @@
 package datasphere.catalog.http;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.List;
+
+import datasphere.catalog.DSHistoryCursor;
+import datasphere.dataware.DSUpdate;
+
 public class Paginator {
 	
 	public int currentPage;
@@ -10,6 +17,10 @@ public class Paginator {
 	public int limit;
 	public String parameters;
 	
+	//-- continuation tokens for the updates either side of this page
+	public String prevToken;
+	public String nextToken;
+	
 	/**
 	 * 
 	 * @param currentPage
@@ -49,6 +60,20 @@ public class Paginator {
 		}
 	}  
 	
+	/**
+	 * Records the updates displayed on this page so that the prev and next 
+	 * links can carry keyset continuation tokens rather than bare offsets.
+	 */
+	public void setUpdates( List< DSUpdate > updates ) {
+		if ( updates == null || updates.isEmpty() ) {
+			prevToken = null;
+			nextToken = null;
+		} else {
+			prevToken = DSHistoryCursor.of( updates.get( 0 ) ).toToken();
+			nextToken = DSHistoryCursor.of( updates.get( updates.size() - 1 ) ).toToken();
+		}
+	}
+	
 	/**
 	 * 
 	 */
@@ -57,7 +82,7 @@ public class Paginator {
 		if  ( totalPages == 0 ) return "";
 		else {
 			if  ( currentPage > 0 )
-				str += "<li class='pageDir'><a href='?page=" + (currentPage - 1) + "&" + parameters + "'>&#171; prev </a></li>";
+				str += "<li class='pageDir'><a href='?page=" + (currentPage - 1) + seekHTML( "before", prevToken ) + "&" + parameters + "'>&#171; prev </a></li>";
 			
 			str += numberHTML(0);
 				
@@ -81,13 +106,22 @@ public class Paginator {
 		 		str += numberHTML( finalPage );
 		
 		 	if ( currentPage < finalPage )
-				str += "<li class='pageDir'><a href='?page=" + (currentPage + 1) + "&" + parameters + "'>next &#187;</a></li>";
+				str += "<li class='pageDir'><a href='?page=" + (currentPage + 1) + seekHTML( "after", nextToken ) + "&" + parameters + "'>next &#187;</a></li>";
 		}
 		
 		str += "</ul>";
 		return str;
 	}
 	
+	private String seekHTML( String direction, String token ) {
+		if ( token == null ) return "";
+		try {
+			return "&" + direction + "=" + URLEncoder.encode( token, "UTF-8" );
+		} catch ( UnsupportedEncodingException e ) {
+			return "";
+		}
+	}
+	
 	private String numberHTML( int i ) {
 		if ( i == currentPage )
 			return "<li class='currentNum'>" + ( i + 1 ) + "</li>";
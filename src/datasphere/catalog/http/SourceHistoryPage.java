@@ -136,11 +136,11 @@ extends DSServerResource {
 				"jid=" + user.getJid() + "&sid=" + sub.getSid()
 			);
 			//-- fetch the appropriate updates to display
-			ArrayList< DSUpdate > updates = DSCatalog.db.fetchUpdates(
-				user.getJid(),
-				sub.getSid(),
-				p.limit, 
-				p.offset 
+			ArrayList< DSUpdate > updates = fetchHistoryPage( 
+				form, 
+				p, 
+				user.getJid(), 
+				sub.getSid() 
 			);
 			data.put( "updates", updates );
 			data.put( "paginator", p );
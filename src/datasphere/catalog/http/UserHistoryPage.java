@@ -35,8 +35,8 @@ extends DSServerResource {
 			
 			//-- grab relevent get information from the request
 			int page = 0;
+			Form form = getRequest().getResourceRef().getQueryAsForm();
 			try {
-				Form form = getRequest().getResourceRef().getQueryAsForm();
 				this.jid = form.getFirstValue( "jid" );
 				page = Integer.parseInt( form.getFirstValue( "page" ) );
 			} catch ( NumberFormatException  e ) {}
@@ -75,12 +75,7 @@ extends DSServerResource {
 			);
 			
 			//-- fetch the appropriate updates to display
-			ArrayList< DSUpdate > updates = DSCatalog.db.fetchUpdates(
-				jid,
-				null,
-				p.limit, 
-				p.offset
-			);
+			ArrayList< DSUpdate > updates = fetchHistoryPage( form, p, jid, null );
 
 			//-- pack all the data ready for HTML processing
 			data.put( "user", user );
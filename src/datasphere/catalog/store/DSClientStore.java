@@ -0,0 +1,49 @@
+package datasphere.catalog.store;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Map;
+
+import datasphere.catalog.DSClient;
+import datasphere.catalog.xmpp.DSClientBot;
+
+/**
+ * Persistence of the catalog's registered users (clients) and of the
+ * connections currently held open on their behalf.
+ *
+ * @author James Goulding
+ * @version 2010-12-17
+ */
+public interface DSClientStore {
+
+	public DSClient fetchClient( String jid ) 
+	throws SQLException;
+	
+	/**
+	 * @return Map A bot for every registered user, keyed by jid.
+	 */
+	public Map< String, DSClientBot > fetchClientBots() 
+	throws SQLException;
+	
+	/**
+	 * @return ArrayList The jids currently connected to by the system.
+	 */
+	public ArrayList< String > getAllConnections();
+}
@@ -0,0 +1,56 @@
+package datasphere.catalog.store;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/**
+ * The position of an update within a time-ordered history: its creation time,
+ * then its received time, then its sid, then a sequence number that serves 
+ * only to tell apart updates sharing all three. Used to key the sorted history indexes of the
+ * embedded update stores.
+ *
+ * @author James Goulding
+ * @version 2010-12-18
+ */
+class DSHistoryKey
+implements Comparable< DSHistoryKey > {
+
+	final long ctime;
+	final long rtime;
+	final String sid;
+	final long seq;
+
+	///////////////////////////////
+
+	DSHistoryKey( long ctime, long rtime, String sid, long seq ) {
+		this.ctime = ctime;
+		this.rtime = rtime;
+		this.sid = ( sid == null ) ? "" : sid;
+		this.seq = seq;
+	}
+
+	///////////////////////////////
+
+	public int compareTo( DSHistoryKey k ) {
+		if ( ctime != k.ctime ) return ( ctime < k.ctime ) ? -1 : 1;
+		if ( rtime != k.rtime ) return ( rtime < k.rtime ) ? -1 : 1;
+		int c = sid.compareTo( k.sid );
+		if ( c != 0 ) return c;
+		if ( seq != k.seq ) return ( seq < k.seq ) ? -1 : 1;
+		return 0;
+	}
+}
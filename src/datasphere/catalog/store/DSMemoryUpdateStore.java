@@ -0,0 +1,223 @@
+package datasphere.catalog.store;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import datasphere.catalog.DSHistoryCursor;
+import datasphere.catalog.DSPendingUpdate;
+import datasphere.catalog.DSUpdateVisitor;
+import datasphere.dataware.DSUpdate;
+
+/**
+ * A {@link DSUpdateStore} held entirely on the heap, for benchmarking the 
+ * layers above persistence without any I/O. Each user's history, and each
+ * of their sources' histories, is a concurrent sorted map from (ctime, rtime)
+ * to the update itself, so pages, seeks and totals involve no copying or 
+ * decoding at all. Nothing survives a restart.
+ *
+ * @author James Goulding
+ * @version 2010-12-18
+ */
+public class DSMemoryUpdateStore
+implements DSUpdateStore {
+
+	private final ConcurrentHashMap< String, ConcurrentSkipListMap< DSHistoryKey, DSUpdate > > histories = 
+		new ConcurrentHashMap< String, ConcurrentSkipListMap< DSHistoryKey, DSUpdate > >();
+	
+	//-- kept alongside the histories, as sizing a skip list means walking it
+	private final ConcurrentHashMap< String, AtomicInteger > totals = new ConcurrentHashMap< String, AtomicInteger >();
+	
+	private final AtomicLong sequence = new AtomicLong();
+
+	///////////////////////////////
+
+	public void insertUpdate( String jid, String sid, DSUpdate d ) {
+		insert( new DSPendingUpdate( jid, sid, d, System.currentTimeMillis() ) );
+	}
+
+	///////////////////////////////
+
+	public int insertUpdates( List< DSPendingUpdate > batch ) 
+	throws SQLException {
+		for ( DSPendingUpdate p : batch )
+			insert( p );
+		return batch.size();
+	}
+
+	///////////////////////////////
+
+	public int fetchUpdateTotal( String jid, String sid )
+	throws SQLException {
+		AtomicInteger total = totals.get( historyKey( jid, sid ) );
+		return ( total == null ) ? 0 : total.get();
+	}
+
+	///////////////////////////////
+
+	public ArrayList< DSUpdate > fetchUpdates( String jid, String sid, Integer limit, Integer offset ) 
+	throws SQLException {
+
+		ConcurrentSkipListMap< DSHistoryKey, DSUpdate > h = histories.get( historyKey( jid, sid ) );
+		if ( h == null ) return new ArrayList< DSUpdate >();
+
+		Iterator< DSUpdate > i = h.descendingMap().values().iterator();
+		if ( limit != null && offset != null )
+			for ( int skipped = 0; skipped < offset && i.hasNext(); skipped++ )
+				i.next();
+		
+		return collect( i, ( limit == null ) ? Integer.MAX_VALUE : limit );
+	}
+
+	///////////////////////////////
+
+	public ArrayList< DSUpdate > fetchUpdatesAfter( String jid, String sid, DSHistoryCursor cursor, int limit ) 
+	throws SQLException {
+
+		ConcurrentSkipListMap< DSHistoryKey, DSUpdate > h = histories.get( historyKey( jid, sid ) );
+		if ( h == null ) return new ArrayList< DSUpdate >();
+
+		NavigableMap< DSHistoryKey, DSUpdate > older = ( cursor == null ) ? h :
+			h.headMap( new DSHistoryKey( cursor.getCtime(), cursor.getRtime(), cursor.getSid(), Long.MIN_VALUE ), false );
+		return collect( older.descendingMap().values().iterator(), limit );
+	}
+
+	///////////////////////////////
+
+	public ArrayList< DSUpdate > fetchUpdatesBefore( String jid, String sid, DSHistoryCursor cursor, int limit ) 
+	throws SQLException {
+
+		ConcurrentSkipListMap< DSHistoryKey, DSUpdate > h = histories.get( historyKey( jid, sid ) );
+		if ( h == null ) return new ArrayList< DSUpdate >();
+
+		NavigableMap< DSHistoryKey, DSUpdate > newer = ( cursor == null ) ? h :
+			h.tailMap( new DSHistoryKey( cursor.getCtime(), cursor.getRtime(), cursor.getSid(), Long.MAX_VALUE ), false );
+		ArrayList< DSUpdate > updates = collect( newer.values().iterator(), limit );
+		
+		//-- pages are always presented newest first
+		Collections.reverse( updates );
+		return updates;
+	}
+
+	///////////////////////////////
+
+	public long scanUpdates( String jid, String sid, DSUpdateVisitor visitor ) 
+	throws SQLException {
+
+		long visited = 0;
+		
+		if ( jid == null ) {
+			for ( Map.Entry< String, ConcurrentSkipListMap< DSHistoryKey, DSUpdate > > h : histories.entrySet() ) {
+				
+				//-- user histories only, as source histories hold the same updates again
+				if ( h.getKey().indexOf( '\n' ) >= 0 ) continue;
+				for ( DSUpdate u : h.getValue().values() ) {
+					visited++;
+					if ( !visitor.visit( h.getKey(), u ) ) return visited;
+				}
+			}
+			return visited;
+		}
+		
+		ConcurrentSkipListMap< DSHistoryKey, DSUpdate > h = histories.get( historyKey( jid, sid ) );
+		if ( h == null ) return 0;
+		
+		for ( DSUpdate u : h.values() ) {
+			visited++;
+			if ( !visitor.visit( jid, u ) ) break;
+		}
+		return visited;
+	}
+
+	///////////////////////////////
+
+	public void clearUpdates() 
+	throws SQLException {
+		histories.clear();
+		totals.clear();
+	}
+
+	///////////////////////////////
+
+	private void insert( DSPendingUpdate p ) {
+		
+		DSUpdate d = p.getUpdate();
+		d.setRtime( p.getRtime() );
+		if ( d.getSid() == null ) d.setSid( p.getSid() );
+		
+		DSHistoryKey key = new DSHistoryKey( 
+			( d.getCtime() == null ) ? 0 : d.getCtime(), 
+			p.getRtime(), 
+			d.getSid(),
+			sequence.incrementAndGet() );
+		
+		for ( String k : new String[] { historyKey( p.getJid(), null ), historyKey( p.getJid(), p.getSid() ) } ) {
+			history( k ).put( key, d );
+			total( k ).incrementAndGet();
+		}
+	}
+
+	///////////////////////////////
+
+	private AtomicInteger total( String key ) {
+		AtomicInteger t = totals.get( key );
+		if ( t == null ) {
+			AtomicInteger fresh = new AtomicInteger();
+			t = totals.putIfAbsent( key, fresh );
+			if ( t == null ) t = fresh;
+		}
+		return t;
+	}
+
+	///////////////////////////////
+
+	private ConcurrentSkipListMap< DSHistoryKey, DSUpdate > history( String key ) {
+		ConcurrentSkipListMap< DSHistoryKey, DSUpdate > h = histories.get( key );
+		if ( h == null ) {
+			ConcurrentSkipListMap< DSHistoryKey, DSUpdate > fresh = new ConcurrentSkipListMap< DSHistoryKey, DSUpdate >();
+			h = histories.putIfAbsent( key, fresh );
+			if ( h == null ) h = fresh;
+		}
+		return h;
+	}
+
+	///////////////////////////////
+
+	private static ArrayList< DSUpdate > collect( Iterator< DSUpdate > updates, int limit ) {
+		ArrayList< DSUpdate > page = new ArrayList< DSUpdate >();
+		while ( page.size() < limit && updates.hasNext() )
+			page.add( updates.next() );
+		return page;
+	}
+
+	///////////////////////////////
+
+	private static String historyKey( String jid, String sid ) {
+		return ( sid == null ) ? jid : jid + '\n' + sid;
+	}
+}
@@ -0,0 +1,630 @@
+package datasphere.catalog.store;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import datasphere.catalog.DSCatalog;
+import datasphere.catalog.DSHistoryCursor;
+import datasphere.catalog.DSPendingUpdate;
+import datasphere.catalog.DSUpdateVisitor;
+import datasphere.dataware.DSFormatException;
+import datasphere.dataware.DSUpdate;
+
+/**
+ * An embedded, append-only {@link DSUpdateStore} for single node deployments.
+ * Updates are appended to a sequence of fixed size segment files in a local
+ * directory, each memory-mapped in its entirety, so that recording an update
+ * is a copy into mapped memory with no network hop, and reading one back is
+ * a copy out of it. <br/>
+ * <br/>
+ * Each record is written as its length, a CRC32 checksum and then its body.
+ * On opening, the segments are read through in order to rebuild an in-memory
+ * time index for every user, and every (user, source) pair, mapping (ctime,
+ * rtime) to the record's position. A record whose checksum does not match
+ * (a write torn by a crash) marks the end of its segment. <br/>
+ * <br/>
+ * Mapped pages are left for the operating system to write back, other than
+ * at the end of each batch and on close, when they are forced to disk.
+ *
+ * @author James Goulding
+ * @version 2010-12-17
+ */
+public class DSSegmentUpdateStore
+implements DSUpdateStore {
+
+	private static Logger logger = Logger.getLogger( DSCatalog.class.getName() );
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final String SEGMENT_PREFIX = "updates-";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final int HEADER_SIZE = 8;
+	private static final String UTF8 = "UTF-8";
+
+	private final File dir;
+	private final int segmentSize;
+	private volatile State state = new State();
+	private long sequence = 0;
+
+	///////////////////////////////
+
+	/**
+	 * Everything cleared by {@link DSSegmentUpdateStore#clearUpdates()}, held
+	 * together so that readers see either the old or the new store, never a mix.
+	 */
+	private static class State {
+		final CopyOnWriteArrayList< Segment > segments = new CopyOnWriteArrayList< Segment >();
+		final ConcurrentHashMap< String, History > histories = new ConcurrentHashMap< String, History >();
+	}
+
+	///////////////////////////////
+
+	private static class Segment {
+
+		final File file;
+		final RandomAccessFile raf;
+		final MappedByteBuffer buffer;
+		volatile int position = 0;
+
+		Segment( File file, int size )
+		throws IOException {
+			this.file = file;
+			this.raf = new RandomAccessFile( file, "rw" );
+			if ( raf.length() < size )
+				raf.setLength( size );
+			this.buffer = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, raf.length() );
+		}
+
+		void close() {
+			buffer.force();
+			try {
+				raf.close();
+			} catch ( IOException e ) {
+				//-- the mapping remains valid regardless
+			}
+		}
+	}
+
+	///////////////////////////////
+
+	/**
+	 * The time index of a single user's (or user's source's) updates, mapping
+	 * each to the address of its record: segment number in the high 32 bits
+	 * and offset within the segment in the low.
+	 */
+	private static class History {
+		final ConcurrentSkipListMap< DSHistoryKey, Long > entries = new ConcurrentSkipListMap< DSHistoryKey, Long >();
+		final AtomicInteger size = new AtomicInteger();
+	}
+
+	///////////////////////////////
+
+	private static class Record {
+		final String jid;
+		final DSUpdate update;
+		Record( String jid, DSUpdate update ) {
+			this.jid = jid;
+			this.update = update;
+		}
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @param dir 			The directory holding the segment files.
+	 * @param segmentSize 	The size in bytes of each new segment file.
+	 */
+	public DSSegmentUpdateStore( File dir, int segmentSize ) {
+		this.dir = dir;
+		this.segmentSize = Math.max( 64 * 1024, segmentSize );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Maps the existing segments and rebuilds the time index from them,
+	 * creating the directory and a first segment if the store is new.
+	 */
+	public synchronized void open()
+	throws IOException {
+
+		long start = System.currentTimeMillis();
+		if ( !dir.isDirectory() && !dir.mkdirs() )
+			throw new IOException( "Unable to create update store directory " + dir );
+
+		State s = new State();
+		ArrayList< String > names = new ArrayList< String >();
+		for ( File f : dir.listFiles() )
+			if ( f.getName().startsWith( SEGMENT_PREFIX ) && f.getName().endsWith( SEGMENT_SUFFIX ) )
+				names.add( f.getName() );
+		Collections.sort( names );
+
+		long records = 0;
+		for ( String name : names ) {
+			Segment seg = new Segment( new File( dir, name ), segmentSize );
+			s.segments.add( seg );
+			records += recover( s, s.segments.size() - 1, seg );
+		}
+
+		if ( s.segments.isEmpty() )
+			s.segments.add( new Segment( segmentFile( 0 ), segmentSize ) );
+
+		state = s;
+		logger.info( "--- DSSegmentUpdateStore: Opening " + records + " updates in " +
+			s.segments.size() + " segments (" + ( System.currentTimeMillis() - start ) + "ms)... [SUCCESS]" );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Forces every segment to disk and releases their files.
+	 */
+	public synchronized void close() {
+		for ( Segment seg : state.segments )
+			seg.close();
+	}
+
+	///////////////////////////////
+
+	public void insertUpdate( String jid, String sid, DSUpdate d ) {
+		try {
+			append( new DSPendingUpdate( jid, sid, d, System.currentTimeMillis() ) );
+		} catch ( IOException e ) {
+			logger.severe( "--- DSSegmentUpdateStore: [" + jid + "] UPDATE FAILURE: " + e.getMessage() );
+		}
+	}
+
+	///////////////////////////////
+
+	public int insertUpdates( List< DSPendingUpdate > batch )
+	throws SQLException {
+
+		int written = 0;
+		synchronized ( this ) {
+			for ( DSPendingUpdate p : batch ) {
+				try {
+					append( p );
+					written++;
+				} catch ( IOException e ) {
+					logger.severe( "--- DSSegmentUpdateStore: [" + p.getJid() + "] UPDATE FAILURE: " + e.getMessage() );
+				}
+			}
+			current().buffer.force();
+		}
+		return written;
+	}
+
+	///////////////////////////////
+
+	public int fetchUpdateTotal( String jid, String sid )
+	throws SQLException {
+		History h = state.histories.get( historyKey( jid, sid ) );
+		return ( h == null ) ? 0 : h.size.get();
+	}
+
+	///////////////////////////////
+
+	public ArrayList< DSUpdate > fetchUpdates( String jid, String sid, Integer limit, Integer offset )
+	throws SQLException {
+
+		State s = state;
+		History h = s.histories.get( historyKey( jid, sid ) );
+		if ( h == null ) return new ArrayList< DSUpdate >();
+
+		Iterator< Long > i = h.entries.descendingMap().values().iterator();
+		if ( limit != null && offset != null )
+			for ( int skipped = 0; skipped < offset && i.hasNext(); skipped++ )
+				i.next();
+
+		return collect( s, i, ( limit == null ) ? Integer.MAX_VALUE : limit );
+	}
+
+	///////////////////////////////
+
+	public ArrayList< DSUpdate > fetchUpdatesAfter( String jid, String sid, DSHistoryCursor cursor, int limit )
+	throws SQLException {
+
+		State s = state;
+		History h = s.histories.get( historyKey( jid, sid ) );
+		if ( h == null ) return new ArrayList< DSUpdate >();
+
+		NavigableMap< DSHistoryKey, Long > older = ( cursor == null ) ? h.entries :
+			h.entries.headMap( new DSHistoryKey( cursor.getCtime(), cursor.getRtime(), cursor.getSid(), Long.MIN_VALUE ), false );
+		return collect( s, older.descendingMap().values().iterator(), limit );
+	}
+
+	///////////////////////////////
+
+	public ArrayList< DSUpdate > fetchUpdatesBefore( String jid, String sid, DSHistoryCursor cursor, int limit )
+	throws SQLException {
+
+		State s = state;
+		History h = s.histories.get( historyKey( jid, sid ) );
+		if ( h == null ) return new ArrayList< DSUpdate >();
+
+		NavigableMap< DSHistoryKey, Long > newer = ( cursor == null ) ? h.entries :
+			h.entries.tailMap( new DSHistoryKey( cursor.getCtime(), cursor.getRtime(), cursor.getSid(), Long.MAX_VALUE ), false );
+		ArrayList< DSUpdate > updates = collect( s, newer.values().iterator(), limit );
+
+		//-- pages are always presented newest first
+		Collections.reverse( updates );
+		return updates;
+	}
+
+	///////////////////////////////
+
+	public long scanUpdates( String jid, String sid, DSUpdateVisitor visitor )
+	throws SQLException {
+
+		State s = state;
+		long visited = 0;
+
+		//-- a scan of the whole store simply reads the log through in order
+		if ( jid == null ) {
+			for ( int n = 0; n < s.segments.size(); n++ ) {
+				Segment seg = s.segments.get( n );
+				int end = seg.position;
+				int pos = 0;
+				while ( pos < end ) {
+					ByteBuffer b = seg.buffer.duplicate();
+					int length = b.getInt( pos );
+					Record r = read( s, address( n, pos ) );
+					pos += HEADER_SIZE + length;
+					if ( r == null ) continue;
+					visited++;
+					if ( !visitor.visit( r.jid, r.update ) ) return visited;
+				}
+			}
+			return visited;
+		}
+
+		History h = s.histories.get( historyKey( jid, sid ) );
+		if ( h == null ) return 0;
+
+		for ( Long address : h.entries.values() ) {
+			Record r = read( s, address );
+			if ( r == null ) continue;
+			visited++;
+			if ( !visitor.visit( r.jid, r.update ) ) break;
+		}
+		return visited;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Deletes every segment file and starts afresh with an empty one.
+	 */
+	public synchronized void clearUpdates()
+	throws SQLException {
+
+		State old = state;
+		for ( Segment seg : old.segments ) {
+			seg.close();
+			if ( !seg.file.delete() )
+				logger.warning( "--- DSSegmentUpdateStore: unable to delete " + seg.file );
+		}
+
+		State s = new State();
+		try {
+			s.segments.add( new Segment( segmentFile( 0 ), segmentSize ) );
+		} catch ( IOException e ) {
+			throw new SQLException( "Unable to create update store segment", e );
+		}
+		state = s;
+	}
+
+	///////////////////////////////
+
+	public int getSegmentCount() {
+		return state.segments.size();
+	}
+
+	///////////////////////////////
+
+	@Override
+	public String toString() {
+		State s = state;
+		return "segment-store[dir=" + dir + ", segments=" + s.segments.size() + ", histories=" + s.histories.size() + "]";
+	}
+
+	///////////////////////////////
+
+	private synchronized void append( DSPendingUpdate p )
+	throws IOException {
+
+		byte[] body = encode( p );
+		if ( HEADER_SIZE + body.length > segmentSize )
+			throw new IOException( "update of " + body.length + " bytes exceeds the segment size" );
+
+		State s = state;
+		Segment seg = current();
+		if ( seg.position + HEADER_SIZE + body.length > seg.buffer.capacity() ) {
+			seg.buffer.force();
+			seg = new Segment( segmentFile( s.segments.size() ), segmentSize );
+			s.segments.add( seg );
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update( body );
+
+		//-- the length goes in last, as a zero length marks the end of the log
+		ByteBuffer b = seg.buffer.duplicate();
+		b.position( seg.position + HEADER_SIZE );
+		b.put( body );
+		b.putInt( seg.position + 4, ( int ) crc.getValue() );
+		b.putInt( seg.position, body.length );
+
+		long address = address( s.segments.size() - 1, seg.position );
+		seg.position += HEADER_SIZE + body.length;
+
+		DSUpdate d = p.getUpdate();
+		index( s, p.getJid(), p.getSid(), value( d.getCtime() ), p.getRtime(), address );
+	}
+
+	///////////////////////////////
+
+	private Segment current() {
+		CopyOnWriteArrayList< Segment > segments = state.segments;
+		return segments.get( segments.size() - 1 );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Reads through a segment, indexing each intact record.
+	 * @return int The number of records found.
+	 */
+	private int recover( State s, int n, Segment seg ) {
+
+		ByteBuffer b = seg.buffer.duplicate();
+		int capacity = b.capacity();
+		int pos = 0;
+		int records = 0;
+
+		while ( pos + HEADER_SIZE <= capacity ) {
+
+			int length = b.getInt( pos );
+			if ( length <= 0 || pos + HEADER_SIZE + length > capacity ) break;
+
+			byte[] body = new byte[ length ];
+			b.position( pos + HEADER_SIZE );
+			b.get( body );
+
+			CRC32 crc = new CRC32();
+			crc.update( body );
+			if ( ( int ) crc.getValue() != b.getInt( pos + 4 ) ) {
+				logger.warning( "--- DSSegmentUpdateStore: " + seg.file.getName() + " truncated at torn record (offset " + pos + ")" );
+				break;
+			}
+
+			try {
+				DataInputStream in = new DataInputStream( new ByteArrayInputStream( body ) );
+				String jid = readString( in );
+				String sid = readString( in );
+				long ctime = in.readLong();
+				long rtime = in.readLong();
+				index( s, jid, sid, ctime, rtime, address( n, pos ) );
+				records++;
+			} catch ( IOException e ) {
+				logger.warning( "--- DSSegmentUpdateStore: unreadable record in " + seg.file.getName() + " (offset " + pos + ")" );
+			}
+			pos += HEADER_SIZE + length;
+		}
+
+		seg.position = pos;
+		return records;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Adds a record to the user's history and to its source's. Called with
+	 * the store's lock held, which guards the sequence number.
+	 */
+	private void index( State s, String jid, String sid, long ctime, long rtime, long address ) {
+		DSHistoryKey key = new DSHistoryKey( ctime, rtime, sid, sequence++ );
+		for ( String k : new String[] { historyKey( jid, null ), historyKey( jid, sid ) } ) {
+			History h = s.histories.get( k );
+			if ( h == null ) {
+				h = new History();
+				s.histories.put( k, h );
+			}
+			h.entries.put( key, address );
+			h.size.incrementAndGet();
+		}
+	}
+
+	///////////////////////////////
+
+	private ArrayList< DSUpdate > collect( State s, Iterator< Long > addresses, int limit ) {
+		ArrayList< DSUpdate > updates = new ArrayList< DSUpdate >();
+		while ( updates.size() < limit && addresses.hasNext() ) {
+			Record r = read( s, addresses.next() );
+			if ( r != null ) updates.add( r.update );
+		}
+		return updates;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return Record The record at the address, or null if it cannot be read.
+	 */
+	private Record read( State s, long address ) {
+
+		Segment seg = s.segments.get( ( int ) ( address >>> 32 ) );
+		int pos = ( int ) address;
+
+		ByteBuffer b = seg.buffer.duplicate();
+		byte[] body = new byte[ b.getInt( pos ) ];
+		b.position( pos + HEADER_SIZE );
+		b.get( body );
+
+		try {
+			return decode( body );
+		} catch ( IOException e ) {
+			logger.log( Level.WARNING, "--- DSSegmentUpdateStore: unreadable record in " + seg.file.getName(), e );
+			return null;
+		}
+	}
+
+	///////////////////////////////
+
+	private static byte[] encode( DSPendingUpdate p )
+	throws IOException {
+
+		DSUpdate d = p.getUpdate();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream( 512 );
+		DataOutputStream out = new DataOutputStream( bytes );
+
+		//-- the fields needed to index the record come first
+		writeString( out, p.getJid() );
+		writeString( out, p.getSid() );
+		out.writeLong( value( d.getCtime() ) );
+		out.writeLong( p.getRtime() );
+
+		out.writeLong( value( d.getFtime() ) );
+		out.writeLong( value( d.getTotal() ) );
+		writeString( out, d.getCrud() );
+		writeString( out, d.getPrimaryTag() );
+		writeString( out, d.getDescription() );
+		writeString( out, d.getMetaJSON() );
+		writeString( out, d.getTagsJSON() );
+
+		DSUpdate.Coordinate loc = d.getLocation();
+		out.writeBoolean( loc != null );
+		if ( loc != null ) {
+			out.writeDouble( loc.getLat() );
+			out.writeDouble( loc.getLon() );
+		}
+		out.flush();
+
+		return bytes.toByteArray();
+	}
+
+	///////////////////////////////
+
+	private static Record decode( byte[] body )
+	throws IOException {
+
+		DataInputStream in = new DataInputStream( new ByteArrayInputStream( body ) );
+		String jid = readString( in );
+		String sid = readString( in );
+		long ctime = in.readLong();
+		long rtime = in.readLong();
+		long ftime = in.readLong();
+		long total = in.readLong();
+		String crud = readString( in );
+		String primaryTag = readString( in );
+		String description = readString( in );
+		String meta = readString( in );
+		String tags = readString( in );
+		boolean located = in.readBoolean();
+		double lat = located ? in.readDouble() : 0;
+		double lon = located ? in.readDouble() : 0;
+
+		DSUpdate u;
+		try {
+			u = new DSUpdate( sid, primaryTag, crud )
+				.setDescription( description )
+				.setTotal( total )
+				.setCtime( ctime )
+				.setFtime( ftime )
+				.setRtime( rtime )
+				.setSid( sid );
+		} catch ( DSFormatException e ) {
+			throw new IOException( "malformed update from " + sid );
+		}
+
+		u.setTagsJSON( tags ).setMetaJSON( meta );
+		if ( located ) u.setLocation( lat, lon );
+		return new Record( jid, u );
+	}
+
+	///////////////////////////////
+
+	private static void writeString( DataOutputStream out, String s )
+	throws IOException {
+		if ( s == null ) {
+			out.writeInt( -1 );
+			return;
+		}
+		byte[] b = s.getBytes( UTF8 );
+		out.writeInt( b.length );
+		out.write( b );
+	}
+
+	///////////////////////////////
+
+	private static String readString( DataInputStream in )
+	throws IOException {
+		int length = in.readInt();
+		if ( length < 0 ) return null;
+		byte[] b = new byte[ length ];
+		in.readFully( b );
+		return new String( b, UTF8 );
+	}
+
+	///////////////////////////////
+
+	private static long value( Long l ) {
+		return ( l == null ) ? 0 : l;
+	}
+
+	///////////////////////////////
+
+	private static long address( int segment, int offset ) {
+		return ( ( long ) segment << 32 ) | ( offset & 0xffffffffL );
+	}
+
+	///////////////////////////////
+
+	private static String historyKey( String jid, String sid ) {
+		return ( sid == null ) ? jid : jid + '\n' + sid;
+	}
+
+	///////////////////////////////
+
+	private File segmentFile( int n ) {
+		return new File( dir, SEGMENT_PREFIX + String.format( "%09d", n ) + SEGMENT_SUFFIX );
+	}
+}
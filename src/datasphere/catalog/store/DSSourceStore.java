@@ -0,0 +1,41 @@
+package datasphere.catalog.store;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.sql.SQLException;
+
+import datasphere.catalog.xmpp.DSVCard;
+import datasphere.dataware.DSFormatException;
+
+/**
+ * Persistence of the registry of known dataware sources and their vCards.
+ *
+ * @author James Goulding
+ * @version 2010-12-17
+ */
+public interface DSSourceStore {
+
+	public void insertSource( DSVCard vCard ) 
+	throws DSFormatException, SQLException;
+	
+	public DSVCard fetchSource( String sid )
+	throws SQLException, DSFormatException;
+	
+	public String fetchNamespace( String sid ) 
+	throws SQLException;
+}
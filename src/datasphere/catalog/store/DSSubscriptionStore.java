@@ -0,0 +1,68 @@
+package datasphere.catalog.store;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+import datasphere.catalog.DSSub;
+import datasphere.catalog.DSSub.Status;
+import datasphere.catalog.xmpp.DSVCard;
+import datasphere.dataware.DSFormatException;
+
+/**
+ * Persistence of users' subscriptions to dataware sources, together with the
+ * sharing policy each user has set for each of their sources.
+ *
+ * @author James Goulding
+ * @version 2010-12-17
+ */
+public interface DSSubscriptionStore {
+
+	public String getSubStatus( String jid, String sid );
+	
+	public void setSubStatus( String jid, String sid, Status status );
+	
+	public void insertSub( DSVCard vCard, String jid, Status status ) 
+	throws SQLException, DSFormatException;
+	
+	public void insertSub( DSVCard vCard, String jid, Status status, String sid ) 
+	throws SQLException, DSFormatException;
+	
+	public DSSub fetchSub( String jid, String sid )
+	throws SQLException;
+	
+	public void deleteSub( String jid, String sid )
+	throws SQLException;
+	
+	/**
+	 * @return ArrayList The sources the user subscribes to, restricted to 
+	 * subscriptions with one of the supplied statuses if any are given.
+	 */
+	public ArrayList< DSVCard > fetchSources( String jid, DSSub.Status ... statuses ) 
+	throws SQLException, DSFormatException;
+	
+	public void updatePolicy( String jid, String sid, Status status ) 
+	throws SQLException;
+	
+	public void resetPolicy( String jid, String sid ) 
+	throws SQLException;
+	
+	public Status fetchPolicy( String jid, String sid ) 
+	throws SQLException;
+}
@@ -0,0 +1,100 @@
+package datasphere.catalog.store;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONException;
+
+import datasphere.catalog.DSHistoryCursor;
+import datasphere.catalog.DSPendingUpdate;
+import datasphere.catalog.DSUpdateVisitor;
+import datasphere.dataware.DSUpdate;
+
+/**
+ * Persistence of the updates received from users' dataware sources. Histories
+ * are ordered by creation time (ctime), ties broken by received time (rtime),
+ * and are always returned newest first. <br/>
+ * <br/>
+ * Failures are reported as SQLExceptions whatever the underlying storage, so
+ * that callers written against the original MySQL implementation in 
+ * {@link datasphere.catalog.DSDataManager} work unchanged with any store.
+ *
+ * @author James Goulding
+ * @version 2010-12-17
+ */
+public interface DSUpdateStore {
+
+	/**
+	 * Records a single update. Failures are logged rather than thrown, as the
+	 * update arrives asynchronously and there is no one to report them to.
+	 */
+	public void insertUpdate( String jid, String sid, DSUpdate d );
+	
+	/**
+	 * Records a batch of updates.
+	 * @return int The number of updates successfully recorded.
+	 */
+	public int insertUpdates( List< DSPendingUpdate > batch ) 
+	throws SQLException;
+	
+	/**
+	 * @param sid The source to count the updates of, or null to count across all sources.
+	 */
+	public int fetchUpdateTotal( String jid, String sid )
+	throws SQLException;
+	
+	/**
+	 * @param limit 	The maximum number of updates to return, or null for all of them.
+	 * @param offset 	The number of (newest) updates to skip, or null for none.
+	 */
+	public ArrayList< DSUpdate > fetchUpdates( String jid, String sid, Integer limit, Integer offset ) 
+	throws SQLException, JSONException;
+	
+	/**
+	 * @return ArrayList The page of updates immediately older than the cursor 
+	 * (or the newest updates, if the cursor is null).
+	 */
+	public ArrayList< DSUpdate > fetchUpdatesAfter( String jid, String sid, DSHistoryCursor cursor, int limit ) 
+	throws SQLException;
+	
+	/**
+	 * @return ArrayList The page of updates immediately newer than the cursor.
+	 */
+	public ArrayList< DSUpdate > fetchUpdatesBefore( String jid, String sid, DSHistoryCursor cursor, int limit ) 
+	throws SQLException;
+	
+	/**
+	 * Walks a history oldest first, holding only a bounded number of updates in memory.
+	 * Every user's history is walked in whatever order the store holds it.
+	 * @param jid The user whose history is scanned, or null to scan every user's.
+	 * @param sid The source to restrict the scan to, or null for all sources. 
+	 * Callers only give a sid along with a jid.
+	 * @return long The number of updates visited.
+	 */
+	public long scanUpdates( String jid, String sid, DSUpdateVisitor visitor ) 
+	throws SQLException;
+	
+	/**
+	 * Removes every update held by the store.
+	 */
+	public void clearUpdates() 
+	throws SQLException;
+}
@@ -17,6 +17,7 @@ You should have received a copy of the GNU General Public License
 along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.jivesoftware.smack.PacketListener;
@@ -40,6 +41,7 @@ implements PacketListener {
 	
 	@Override
 	public void processPacket( Packet p ) {
-		logger.finest( "--- DSPacketListener: [" + parent.getJid() + "] " + p.toXML()  );
+		if ( logger.isLoggable( Level.FINEST ) )
+			logger.finest( "--- DSPacketListener: [" + parent.getJid() + "] " + p.toXML()  );
 	}
 };
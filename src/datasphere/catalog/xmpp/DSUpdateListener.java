@@ -17,18 +17,21 @@ You should have received a copy of the GNU General Public License
 along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 
-import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.jivesoftware.smack.packet.XMPPError;
 
+import datasphere.catalog.DSBatchRejectionHandler;
 import datasphere.catalog.DSCatalog;
 import datasphere.dataware.DSException;
+import datasphere.dataware.DSFormatException;
 import datasphere.dataware.DSUpdate;
+import datasphere.dataware.DSUpdateParser;
 
 
 public class DSUpdateListener 
@@ -48,18 +51,17 @@ implements PacketListener {
 	@Override
 	public void processPacket( Packet p ) {
 		Message m = (Message) p;
-		JSONObject o;
 		
 		try {
-			o = new JSONObject( m.getBody() );
-			DSUpdate ds = new DSUpdate( o ); 
+			if ( DSUpdateParser.isBatch( m.getBody() ) ) {
+				processBatch( m, DSUpdateParser.parseBatch( m.getBody() ) );
+				return;
+			}
+			DSUpdate ds = DSUpdateParser.parse( m.getBody() ); 
 			processUpdate( m.getTo(), m.getFrom(), ds );
 			
-		} catch ( JSONException e ) {
-			e.printStackTrace();
-		
-		} catch ( IOException e ) {
-			e.printStackTrace();
+		} catch ( DSFormatException e ) {
+			logger.warning( "--- DSUpdateListener: [" + parent.getJid() + "] malformed update from <" + m.getFrom() + "> - " + e.getMessage() );
 			
 		} catch ( DSException e ) {
 			e.printStackTrace();
@@ -70,8 +72,47 @@ implements PacketListener {
 
 	private void processUpdate( String to, String from, DSUpdate ds ) 
 	throws DSException {
-		logger.fine( "--- DSUpdateListener: [" + parent.getJid() + "] " + ds.toXML()  );
-		DSCatalog.db.insertUpdate( to, from, ds );
+		if ( logger.isLoggable( Level.FINE ) )
+			logger.fine( "--- DSUpdateListener: [" + parent.getJid() + "] " + ds.toXML()  );
+		DSCatalog.db.ingestUpdate( to, from, ds );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Passes on a batch of updates sent in one message. The whole batch has
+	 * been parsed, and so validated, before any of it is passed on. Should the
+	 * batch not be recorded the message is returned to its sender as an error,
+	 * so that it may be sent again.
+	 */
+	private void processBatch( final Message m, List< DSUpdate > batch ) {
+		if ( batch.isEmpty() ) return;
+		if ( logger.isLoggable( Level.FINE ) )
+			logger.fine( "--- DSUpdateListener: [" + parent.getJid() + "] batch of " + batch.size() + " updates from <" + m.getFrom() + ">" );
+		
+		DSCatalog.db.ingestUpdates( m.getTo(), m.getFrom(), batch, new DSBatchRejectionHandler() {
+			public void rejected( String jid, String sid, List< DSUpdate > updates ) {
+				bounce( m, "batch of " + updates.size() + " updates not recorded" );
+			}
+		} );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Returns a message to its sender as an error, carrying the original body.
+	 */
+	private void bounce( Message m, String reason ) {
+		
+		Message reply = new Message( m.getFrom(), Message.Type.error );
+		reply.setFrom( m.getTo() );
+		reply.setPacketID( m.getPacketID() );
+		reply.setThread( m.getThread() );
+		reply.setBody( m.getBody() );
+		reply.setError( new XMPPError( XMPPError.Condition.interna_server_error, reason ) );
+		parent.sendPacket( reply );
+		
+		logger.warning( "--- DSUpdateListener: [" + parent.getJid() + "] " + reason + " - returned to <" + m.getFrom() + ">" );
 	}
 	
 };
@@ -0,0 +1,206 @@
+package datasphere.dataware;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Hands log records over to a writer thread, which formats and writes them
+ * through the handler it wraps, so that a thread logging a message never
+ * waits on the console or a log file. <br/>
+ * <br/>
+ * Records are passed through a bounded ring buffer. Whether a record is
+ * logged at all is decided on the logging thread, by the level and filter of
+ * the wrapped handler, so records it would ignore are never queued. Should
+ * the buffer fill, further records are dropped rather than block the logger,
+ * and a warning of how many were lost is written once the writer catches up.
+ * Records are formatted on the writer thread, so any parameters logged with
+ * them should not change after logging. Closing the handler writes out
+ * everything still buffered before closing the wrapped handler. <br/>
+ * <br/>
+ * The log manager closes every handler from a shutdown hook of its own, which
+ * may well run before a hook still logging its work. A handler {@link #pin pinned} 
+ * by the owner of such a hook ignores being closed, and is closed instead 
+ * when the owner {@link #release releases} it.
+ *
+ * @author James Goulding
+ * @version 2010-12-20
+ */
+public class DSAsyncHandler extends Handler {
+
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	//-- the most records written between flushes of the wrapped handler
+	private static final int BATCH_SIZE = 256;
+
+	private final Handler target;
+	private final ArrayBlockingQueue< LogRecord > ring;
+	private final Thread writer;
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong droppedTotal = new AtomicLong();
+	private volatile boolean closed = false;
+	private volatile boolean pinned = false;
+
+	///////////////////////////////
+
+	public DSAsyncHandler( Handler target ) {
+		this( target, DEFAULT_CAPACITY );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @param target 	The handler records are written through.
+	 * @param capacity 	The number of records the buffer holds before dropping.
+	 */
+	public DSAsyncHandler( Handler target, int capacity ) {
+
+		this.target = target;
+		this.ring = new ArrayBlockingQueue< LogRecord >( Math.max( 1, capacity ) );
+		this.writer = new Thread( "DSAsyncHandler-writer" ) {
+			public void run() {
+				drain();
+			}
+		};
+		writer.setDaemon( true );
+		writer.start();
+	}
+
+	///////////////////////////////
+
+	@Override
+	public boolean isLoggable( LogRecord record ) {
+		return !closed && target.isLoggable( record );
+	}
+
+	///////////////////////////////
+
+	@Override
+	public void publish( LogRecord record ) {
+
+		if ( !isLoggable( record ) ) return;
+		if ( !ring.offer( record ) ) {
+			dropped.incrementAndGet();
+			droppedTotal.incrementAndGet();
+		}
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Flushes the wrapped handler. Records still buffered are written, and
+	 * flushed, by the writer thread in its own time.
+	 */
+	@Override
+	public void flush() {
+		target.flush();
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Keeps the handler open through calls to {@link #close()}, until released.
+	 */
+	public void pin() {
+		pinned = true;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Unpins the handler and closes it, writing out everything still buffered.
+	 */
+	public void release() {
+		pinned = false;
+		close();
+	}
+
+	///////////////////////////////
+
+	@Override
+	public void close()
+	throws SecurityException {
+
+		if ( pinned || closed ) return;
+		closed = true;
+		try {
+			writer.join( 5000 );
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+		target.close();
+	}
+
+	///////////////////////////////
+
+	private void drain() {
+
+		ArrayList< LogRecord > batch = new ArrayList< LogRecord >( BATCH_SIZE );
+		while ( true ) {
+
+			LogRecord record;
+			try {
+				record = ring.poll( 250, TimeUnit.MILLISECONDS );
+			} catch ( InterruptedException e ) {
+				record = null;
+			}
+
+			if ( record == null ) {
+				reportDropped();
+				if ( closed && ring.isEmpty() ) return;
+				continue;
+			}
+
+			batch.add( record );
+			ring.drainTo( batch, BATCH_SIZE - 1 );
+			reportDropped();
+			for ( LogRecord r : batch ) {
+				try {
+					target.publish( r );
+				} catch ( RuntimeException e ) {
+					reportError( null, e, ErrorManager.WRITE_FAILURE );
+				}
+			}
+			target.flush();
+			batch.clear();
+		}
+	}
+
+	///////////////////////////////
+
+	private void reportDropped() {
+		long n = dropped.getAndSet( 0 );
+		if ( n > 0 ) {
+			target.publish( new LogRecord( Level.WARNING,
+				"--- DSAsyncHandler: log buffer full - " + n + " records dropped" ) );
+			target.flush();
+		}
+	}
+
+	///////////////////////////////
+
+	public int getDepth() 				{ return ring.size(); }
+	public long getDroppedCount() 		{ return droppedTotal.get(); }
+}
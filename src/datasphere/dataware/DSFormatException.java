@@ -21,4 +21,12 @@ public class DSFormatException extends DSException {
 
 	private static final long serialVersionUID = -8864340373098031539L;
 
+	public DSFormatException( String s ) {
+		super( s );
+	}
+
+	public DSFormatException() {
+		super();
+	}
+
 }
@@ -23,21 +23,36 @@ import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
 
 /**
- * A simple formatter used in all Datasphere logging. 
- * 
+ * A simple formatter used in all Datasphere logging. Records are stamped
+ * with the time they were logged rather than written, as they may be written
+ * later by a {@link DSAsyncHandler}. The stamp is only re-formatted when the
+ * second changes, and each line is built in a reused buffer.
+ *
  * @author James Goulding
- * @version 2010-11-03
+ * @version 2010-12-20
  */
-public final class DSLogFormatter extends Formatter 
+public final class DSLogFormatter extends Formatter
 {
-	private SimpleDateFormat fmt = new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss" );
-	
-	public String format( LogRecord record ) {
-		
-		String level = String.format("%1$-9s", "[" + record.getLevel() + "]"); 
-		return fmt.format( new Date() ) + 
-			" " + level +
-			" " + record.getMessage() + 
-			"\n";
-	} 
+	private final SimpleDateFormat fmt = new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss" );
+	private final StringBuilder line = new StringBuilder( 256 );
+	private long stampSecond = Long.MIN_VALUE;
+	private String stamp;
+
+	public synchronized String format( LogRecord record ) {
+
+		long second = record.getMillis() / 1000;
+		if ( second != stampSecond ) {
+			stamp = fmt.format( new Date( second * 1000 ) );
+			stampSecond = second;
+		}
+
+		line.setLength( 0 );
+		line.append( stamp ).append( ' ' );
+		int start = line.length();
+		line.append( '[' ).append( record.getLevel().getName() ).append( ']' );
+		while ( line.length() - start < 9 )
+			line.append( ' ' );
+		line.append( ' ' ).append( formatMessage( record ) ).append( '\n' );
+		return line.toString();
+	}
 }
@@ -23,15 +23,12 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map.Entry;
+import java.util.List;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-
 import datasphere.dataware.DSFormatException;
 
 public class DSUpdate {
@@ -84,6 +81,10 @@ public class DSUpdate {
 	//-- other data associated with the update, specific to its type
 	private HashMap< String, String > meta;
 
+	//-- tags and meta as stored, when read back and not yet decoded (transient, so never serialized)
+	private transient String encodedTags;
+	private transient String encodedMeta;
+
 	public DSUpdate( String sid, String primaryTag, String crud ) 
 	throws DSFormatException {
 		setSid( sid );
@@ -98,6 +99,11 @@ public class DSUpdate {
 		setType( primaryTag );
 	}
 
+	/**
+	 * An empty update, to be filled in by {@link DSUpdateParser}.
+	 */
+	DSUpdate() {}
+	
 	public DSUpdate( JSONObject json )
 	throws IOException, JSONException {
 		fromJSON( json );
@@ -105,7 +111,7 @@ public class DSUpdate {
 	
 	public String getNamespace() 			{ return this.namespace; }
 	public String getPrimaryTag() 			{ return this.primaryTag; }
-	public ArrayList< String > getTags() 	{ return this.tags; }
+	public ArrayList< String > getTags() 	{ decodeTags(); return this.tags; }
 	public Long getCtime() 					{ return this.ctime; }
 	public Long getFtime() 					{ return this.ftime; }
 	public Long getRtime() 					{ return this.rtime; }
@@ -114,11 +120,12 @@ public class DSUpdate {
 	public String getDescription() 			{ return this.description; }
 	public String getSid() 					{ return this.sid; }
 	public Long getTotal() 					{ return this.total; }
-	public HashMap< String, String > getMeta() 	{ return this.meta; }
+	public HashMap< String, String > getMeta() 	{ decodeMeta(); return this.meta; }
 
 	public DSUpdate setNamespace( String namespace ) 	 { this.namespace = namespace; return this; }
 	public DSUpdate setType( String primaryTag ) 		 { this.primaryTag = primaryTag; return this; }
-	public DSUpdate setTags( ArrayList< String > tags )  { this.tags = tags; return this; }
+	public DSUpdate setTags( ArrayList< String > tags )  { this.encodedTags = null; this.tags = tags; return this; }
+	public DSUpdate setMeta( HashMap< String, String > meta ) { this.encodedMeta = null; this.meta = meta; return this; }
 	public DSUpdate setCtime( Long ctime ) 				 { this.ctime = ctime; return this; }
 	public DSUpdate setFtime( Long ftime ) 				 { this.ftime = ftime; return this; }
 	public DSUpdate setRtime( Long rtime ) 				 { this.rtime = rtime; return this; }
@@ -142,19 +149,63 @@ public class DSUpdate {
 		return fmt.format( new Date( ctime ) );
 	}
 	
-	public String getTagsJSON() {
+	public synchronized String getTagsJSON() {
+		if ( encodedTags != null ) return encodedTags;
 		if ( tags == null ) return null;
 		JSONArray j = new JSONArray( tags );
 		return j.toString();
 	}
 	
-	public String getMetaJSON() {
+	public synchronized String getMetaJSON() {
+		if ( encodedMeta != null ) return encodedMeta;
 		if ( meta == null ) return null;
 		JSONObject j = null;
 		j = new JSONObject( meta );
 		return j.toString();
 	}
 	
+	/**
+	 * Sets the tags from their stored JSON form. They are only decoded when
+	 * first asked for, and are handed back as they are by {@link #getTagsJSON()} 
+	 * until then, so an update that is read and passed on never pays for 
+	 * decoding them. Tags that fail to decode are treated as absent.
+	 */
+	public synchronized DSUpdate setTagsJSON( String json ) {
+		this.tags = null;
+		this.encodedTags = json;
+		return this;
+	}
+	
+	/**
+	 * Sets the meta data from its stored JSON form, to be decoded when first 
+	 * asked for, as with {@link #setTagsJSON(String)}.
+	 */
+	public synchronized DSUpdate setMetaJSON( String json ) {
+		this.meta = null;
+		this.encodedMeta = json;
+		return this;
+	}
+	
+	private synchronized void decodeTags() {
+		if ( encodedTags == null ) return;
+		try {
+			setTags( new JSONArray( encodedTags ) );
+		} catch ( JSONException e ) {
+			this.tags = null;
+		}
+		encodedTags = null;
+	}
+	
+	private synchronized void decodeMeta() {
+		if ( encodedMeta == null ) return;
+		try {
+			setMeta( new JSONObject( encodedMeta ) );
+		} catch ( JSONException e ) {
+			this.meta = null;
+		}
+		encodedMeta = null;
+	}
+	
 	public String getLocationJSON() {
 		if ( loc == null ) return null;
 		JSONObject j = null;
@@ -179,6 +230,7 @@ public class DSUpdate {
 
 	public DSUpdate addTag( String tag ) {
 		
+		decodeTags();
 		if ( tags == null ) 
 			tags = new ArrayList< String >();
 		
@@ -188,6 +240,7 @@ public class DSUpdate {
 
 	public DSUpdate addMetadata( String key, String value ) {
 		
+		decodeMeta();
 		if ( meta == null ) 
 			meta = new HashMap< String, String >();
 		
@@ -207,14 +260,21 @@ public class DSUpdate {
 
 
 	public String toJSON() {
-		Gson gson = new GsonBuilder().create();
-		String result = gson.toJson( this );
-		return result;
+		return DSUpdateSerializer.toJSON( this );
+	}
+	
+	/**
+	 * Encodes several updates as a single batch message, to be sent by a 
+	 * source in place of one message per update.
+	 */
+	public static String toBatchJSON( List< DSUpdate > batch ) {
+		return DSUpdateSerializer.toJSON( batch );
 	}
 		
 
 	public DSUpdate setTags( JSONArray jsonTags ) 
 	throws JSONException {
+		this.encodedTags = null;
 		this.tags = new ArrayList< String >();
 		for ( int i = 0; i < jsonTags.length(); i++ ) 
 			this.tags.add( jsonTags.getString( i ) );
@@ -224,6 +284,7 @@ public class DSUpdate {
 	@SuppressWarnings("unchecked")
 	public DSUpdate setMeta( JSONObject jsonMeta ) 
 	throws JSONException {
+		this.encodedMeta = null;
 		this.meta = new HashMap< String, String >();
 		Iterator ji = jsonMeta.keys();
 		while ( ji.hasNext() ) {
@@ -275,46 +336,7 @@ public class DSUpdate {
 		
 	
 	public String toXML() {
-		
-		String locString =	( loc == null ) ? "" :
-			"<loc>" +
-				"<lon>" + loc.getLon() + "</lon>" +
-				"<lat>" + loc.getLat() + "</lat>" +
-			"</loc>";
-		
-		String metaXML = "";
-		if ( meta != null) {
-			metaXML = "<meta>";
-			for ( Entry< String, String > e : meta.entrySet() ) { 
-				metaXML += 
-					"<" + e.getKey() + ">" +
-					e.getValue() + 
-					"</" + e.getKey() + ">";
-			}
-			metaXML += "</meta>";
-		}		
-		
-		String tagsXML = "";
-		if ( tags != null) 
-			for ( String e : tags ) tagsXML += "<tag>" + e + "</tag>";
-
-		
-		String s = 
-			"<DSUpdate>" + 
-				"<namespace>" + namespace + "</namespace>" +
-				"<primaryTag>" + primaryTag + "</primaryTag>" +
-				"<description>" + description + "</description>" +
-				"<crud>" + crud + "</crud>" +
-				"<ctime>" + ctime + "</ctime>" +
-				"<ftime>" + ftime + "</ftime>" +
-				"<rtime>" + rtime + "</rtime>" +
-				"<total>" + total + "</total>" +
-				locString +
-				tagsXML + 
-				metaXML +
-			"</DSUpdate>";
-
-		return s;
+		return DSUpdateSerializer.toXML( this );
 	}
 
 
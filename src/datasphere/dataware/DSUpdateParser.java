@@ -0,0 +1,600 @@
+package datasphere.dataware;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Reads the JSON body of an update message straight into a {@link DSUpdate},
+ * in a single pass over its characters. Unlike building a JSONObject and
+ * handing it to {@link DSUpdate#fromJSON}, no intermediate tree is built:
+ * field names are matched in place, numbers are read without boxing, and the
+ * only objects allocated are the strings, tags and meta data the update keeps.
+ * <br/><br/>
+ * The fields read, and those required, are as for fromJSON: namespace,
+ * primaryTag, crud and ctime must be present; description defaults to
+ * "no description" and total to 0; unknown fields are skipped. Scalars are
+ * accepted where strings are expected, and numeric strings where numbers
+ * are, and a nested value where a meta value is expected is kept as its JSON
+ * text. A malformed message raises a {@link DSFormatException} naming what
+ * was expected and the character at which it was not found. <br/>
+ * <br/>
+ * A message may instead carry a batch of updates, as a JSON array of update
+ * objects, read by {@link #parseBatch(String)}.
+ *
+ * @author James Goulding
+ * @version 2010-12-20
+ */
+public class DSUpdateParser {
+
+	//-- the fields of an update message, and of its location
+	private static final String[] FIELDS = {
+		"namespace", "primaryTag", "crud", "ctime", "ftime", "rtime",
+		"sid", "description", "total", "tags", "meta", "loc" };
+	private static final int NAMESPACE = 0;
+	private static final int PRIMARY_TAG = 1;
+	private static final int CRUD = 2;
+	private static final int CTIME = 3;
+	private static final int FTIME = 4;
+	private static final int RTIME = 5;
+	private static final int SID = 6;
+	private static final int DESCRIPTION = 7;
+	private static final int TOTAL = 8;
+	private static final int TAGS = 9;
+	private static final int META = 10;
+	private static final int LOC = 11;
+	private static final int REQUIRED = ( 1 << NAMESPACE ) | ( 1 << PRIMARY_TAG ) | ( 1 << CRUD ) | ( 1 << CTIME );
+
+	private static final String[] LOC_FIELDS = { "lat", "lon" };
+
+	//-- the number of characters quoted in an error
+	private static final int CONTEXT_LENGTH = 24;
+
+	private final String s;
+	private final int end;
+	private int pos;
+
+	///////////////////////////////
+
+	public DSUpdateParser( String s ) {
+		this.s = s;
+		this.end = s.length();
+		this.pos = 0;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return DSUpdate The update held in the body of a message, which must
+	 * hold nothing else.
+	 */
+	public static DSUpdate parse( String body )
+	throws DSFormatException {
+
+		if ( body == null )
+			throw new DSFormatException( "empty update message" );
+
+		DSUpdateParser p = new DSUpdateParser( body );
+		DSUpdate u = p.readUpdate();
+		if ( p.hasMore() )
+			throw p.error( p.pos, "expected end of message" );
+		return u;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return boolean True if the body of a message holds a batch of updates
+	 * rather than a single update. Only the first character is looked at.
+	 */
+	public static boolean isBatch( String body ) {
+
+		if ( body == null ) return false;
+		for ( int i = 0; i < body.length(); i++ ) {
+			char c = body.charAt( i );
+			if ( !Character.isWhitespace( c ) )
+				return c == '[';
+		}
+		return false;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Reads every update in a batch message. The batch is read in full before
+	 * returning, so a malformed update anywhere in it rejects the whole batch.
+	 * @return ArrayList The updates, in the order they appear in the batch.
+	 */
+	public static ArrayList< DSUpdate > parseBatch( String body )
+	throws DSFormatException {
+
+		if ( body == null )
+			throw new DSFormatException( "empty update message" );
+
+		DSUpdateParser p = new DSUpdateParser( body );
+		p.expect( '[', "'[' opening a batch of updates" );
+
+		ArrayList< DSUpdate > batch = new ArrayList< DSUpdate >();
+		if ( !p.consume( ']' ) ) {
+			do {
+				try {
+					batch.add( p.readUpdate() );
+				} catch ( DSFormatException e ) {
+					throw new DSFormatException( "update " + batch.size() + " of batch: " + e.getMessage() );
+				}
+			} while ( p.consume( ',' ) );
+			p.expect( ']', "',' or ']' after an update" );
+		}
+
+		if ( p.hasMore() )
+			throw p.error( p.pos, "expected end of message" );
+		return batch;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return boolean True if anything other than whitespace is left to read.
+	 */
+	public boolean hasMore() {
+		skipWhitespace();
+		return pos < end;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Reads one update object from the current position.
+	 */
+	public DSUpdate readUpdate()
+	throws DSFormatException {
+
+		skipWhitespace();
+		int start = pos;
+		expect( '{', "'{' opening an update" );
+
+		DSUpdate u = new DSUpdate();
+		u.setDescription( "no description" );
+		u.setTotal( 0 );
+		int seen = 0;
+
+		if ( !consume( '}' ) ) {
+			do {
+				int field = readKey( FIELDS );
+				expect( ':', "':' after a field name" );
+				skipWhitespace();
+				int at = pos;
+
+				switch ( field ) {
+					case NAMESPACE: 	u.setNamespace( readText() ); break;
+					case PRIMARY_TAG: 	u.setType( readText() ); break;
+					case CTIME: 		u.setCtime( readLong() ); break;
+					case FTIME: 		u.setFtime( readLong() ); break;
+					case RTIME: 		u.setRtime( readLong() ); break;
+					case SID: 			u.setSid( readText() ); break;
+					case DESCRIPTION: 	u.setDescription( readText() ); break;
+					case TOTAL: 		u.setTotal( readLong() ); break;
+					case TAGS: 			u.setTags( readTags() ); break;
+					case META: 			u.setMeta( readMeta() ); break;
+					case LOC: 			readLocation( u ); break;
+					case CRUD:
+						String crud = readText();
+						try {
+							u.setCrud( crud );
+						} catch ( DSFormatException e ) {
+							throw error( at, "unknown crud '" + crud + "'" );
+						}
+						break;
+					default:
+						skipValue();
+				}
+				if ( field >= 0 ) seen |= 1 << field;
+
+			} while ( consume( ',' ) );
+			expect( '}', "',' or '}' after a field" );
+		}
+
+		if ( ( seen & REQUIRED ) != REQUIRED ) {
+			for ( int i = 0; i < FIELDS.length; i++ ) {
+				if ( ( REQUIRED & ~seen & ( 1 << i ) ) != 0 )
+					throw error( start, "update is missing required field '" + FIELDS[ i ] + "'" );
+			}
+		}
+		return u;
+	}
+
+	///////////////////////////////
+
+	private ArrayList< String > readTags()
+	throws DSFormatException {
+
+		expect( '[', "an array of tags" );
+		ArrayList< String > tags = new ArrayList< String >();
+		if ( consume( ']' ) ) return tags;
+		do {
+			tags.add( readText() );
+		} while ( consume( ',' ) );
+		expect( ']', "',' or ']' after a tag" );
+		return tags;
+	}
+
+	///////////////////////////////
+
+	private HashMap< String, String > readMeta()
+	throws DSFormatException {
+
+		expect( '{', "an object of meta data" );
+		HashMap< String, String > meta = new HashMap< String, String >();
+		if ( consume( '}' ) ) return meta;
+		do {
+			skipWhitespace();
+			String key = readString();
+			expect( ':', "':' after a meta data key" );
+			meta.put( key, readText() );
+		} while ( consume( ',' ) );
+		expect( '}', "',' or '}' after a meta data value" );
+		return meta;
+	}
+
+	///////////////////////////////
+
+	private void readLocation( DSUpdate u )
+	throws DSFormatException {
+
+		int start = pos;
+		expect( '{', "a location object" );
+		double lat = Double.NaN;
+		double lon = Double.NaN;
+		boolean hasLat = false;
+		boolean hasLon = false;
+
+		if ( !consume( '}' ) ) {
+			do {
+				int field = readKey( LOC_FIELDS );
+				expect( ':', "':' after a field name" );
+				if ( field == 0 ) {
+					lat = readDouble();
+					hasLat = true;
+				} else if ( field == 1 ) {
+					lon = readDouble();
+					hasLon = true;
+				} else {
+					skipValue();
+				}
+			} while ( consume( ',' ) );
+			expect( '}', "',' or '}' after a location field" );
+		}
+
+		if ( !hasLat || !hasLon )
+			throw error( start, "location is missing '" + ( hasLat ? "lon" : "lat" ) + "'" );
+		u.setLocation( lat, lon );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Reads a field name, matching it against the names supplied without
+	 * copying it where it holds no escapes.
+	 * @return int The index of the name matched, or -1 for any other name.
+	 */
+	private int readKey( String[] names )
+	throws DSFormatException {
+
+		skipWhitespace();
+		if ( pos >= end || s.charAt( pos ) != '"' )
+			throw error( pos, "expected a quoted field name" );
+
+		int from = pos + 1;
+		int to = from;
+		while ( to < end && s.charAt( to ) != '"' && s.charAt( to ) != '\\' )
+			to++;
+
+		if ( to < end && s.charAt( to ) == '"' ) {
+			pos = to + 1;
+			int length = to - from;
+			for ( int i = 0; i < names.length; i++ ) {
+				if ( names[ i ].length() == length && s.regionMatches( from, names[ i ], 0, length ) )
+					return i;
+			}
+			return -1;
+		}
+
+		String key = readString();
+		for ( int i = 0; i < names.length; i++ ) {
+			if ( names[ i ].equals( key ) )
+				return i;
+		}
+		return -1;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Reads a value as text: a string as its contents, an object or array as
+	 * its JSON, and any other value as it was written.
+	 */
+	private String readText()
+	throws DSFormatException {
+
+		skipWhitespace();
+		if ( pos >= end )
+			throw error( pos, "expected a value" );
+
+		char c = s.charAt( pos );
+		if ( c == '"' )
+			return readString();
+
+		int from = pos;
+		if ( c == '{' || c == '[' )
+			skipValue();
+		else
+			skipLiteral();
+		return s.substring( from, pos );
+	}
+
+	///////////////////////////////
+
+	private long readLong()
+	throws DSFormatException {
+
+		skipWhitespace();
+		int at = pos;
+		if ( pos < end && s.charAt( pos ) == '"' )
+			return toLong( readString(), at );
+
+		skipLiteral();
+
+		//-- plain integers, by far the usual case, are read in place
+		int i = at;
+		boolean negative = ( s.charAt( i ) == '-' );
+		if ( negative ) i++;
+		if ( i < pos && pos - i <= 18 ) {
+			long v = 0;
+			for ( ; i < pos; i++ ) {
+				char c = s.charAt( i );
+				if ( c < '0' || c > '9' ) break;
+				v = v * 10 + ( c - '0' );
+			}
+			if ( i == pos )
+				return negative ? -v : v;
+		}
+		return toLong( s.substring( at, pos ), at );
+	}
+
+	///////////////////////////////
+
+	private long toLong( String value, int at )
+	throws DSFormatException {
+
+		String v = value.trim();
+		try {
+			return Long.parseLong( v );
+		} catch ( NumberFormatException e ) {}
+		try {
+			return ( long ) Double.parseDouble( v );
+		} catch ( NumberFormatException e ) {
+			throw error( at, "expected a number" );
+		}
+	}
+
+	///////////////////////////////
+
+	private double readDouble()
+	throws DSFormatException {
+
+		skipWhitespace();
+		int at = pos;
+		String value;
+		if ( pos < end && s.charAt( pos ) == '"' ) {
+			value = readString().trim();
+		} else {
+			skipLiteral();
+			value = s.substring( at, pos );
+		}
+		try {
+			return Double.parseDouble( value );
+		} catch ( NumberFormatException e ) {
+			throw error( at, "expected a number" );
+		}
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Reads a quoted string from the current position. A string holding no
+	 * escapes is copied out in one go.
+	 */
+	private String readString()
+	throws DSFormatException {
+
+		if ( pos >= end || s.charAt( pos ) != '"' )
+			throw error( pos, "expected a quoted string" );
+
+		int start = pos;
+		int i = pos + 1;
+		while ( i < end ) {
+			char c = s.charAt( i );
+			if ( c == '"' ) {
+				pos = i + 1;
+				return s.substring( start + 1, i );
+			}
+			if ( c == '\\' ) break;
+			i++;
+		}
+
+		StringBuilder sb = new StringBuilder( s.length() - start );
+		sb.append( s, start + 1, i );
+		while ( i < end ) {
+			char c = s.charAt( i++ );
+			if ( c == '"' ) {
+				pos = i;
+				return sb.toString();
+			}
+			if ( c != '\\' ) {
+				sb.append( c );
+				continue;
+			}
+			if ( i >= end ) break;
+			char e = s.charAt( i++ );
+			switch ( e ) {
+				case '"':
+				case '\\':
+				case '/': sb.append( e ); break;
+				case 'b': sb.append( '\b' ); break;
+				case 'f': sb.append( '\f' ); break;
+				case 'n': sb.append( '\n' ); break;
+				case 'r': sb.append( '\r' ); break;
+				case 't': sb.append( '\t' ); break;
+				case 'u':
+					if ( i + 4 > end )
+						throw error( i - 2, "incomplete unicode escape" );
+					try {
+						sb.append( ( char ) Integer.parseInt( s.substring( i, i + 4 ), 16 ) );
+					} catch ( NumberFormatException x ) {
+						throw error( i - 2, "malformed unicode escape" );
+					}
+					i += 4;
+					break;
+				default:
+					throw error( i - 2, "illegal escape '\\" + e + "'" );
+			}
+		}
+		throw error( start, "unterminated string" );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Steps over a value of any kind, checking only its structure.
+	 */
+	private void skipValue()
+	throws DSFormatException {
+
+		skipWhitespace();
+		if ( pos >= end )
+			throw error( pos, "expected a value" );
+
+		char c = s.charAt( pos );
+		if ( c == '"' ) {
+			skipString();
+
+		} else if ( c == '{' ) {
+			pos++;
+			if ( consume( '}' ) ) return;
+			do {
+				skipWhitespace();
+				if ( pos >= end || s.charAt( pos ) != '"' )
+					throw error( pos, "expected a quoted field name" );
+				skipString();
+				expect( ':', "':' after a field name" );
+				skipValue();
+			} while ( consume( ',' ) );
+			expect( '}', "',' or '}' in an object" );
+
+		} else if ( c == '[' ) {
+			pos++;
+			if ( consume( ']' ) ) return;
+			do {
+				skipValue();
+			} while ( consume( ',' ) );
+			expect( ']', "',' or ']' in an array" );
+
+		} else {
+			skipLiteral();
+		}
+	}
+
+	///////////////////////////////
+
+	private void skipString()
+	throws DSFormatException {
+
+		int start = pos;
+		int i = pos + 1;
+		while ( i < end ) {
+			char c = s.charAt( i++ );
+			if ( c == '"' ) {
+				pos = i;
+				return;
+			}
+			if ( c == '\\' ) i++;
+		}
+		throw error( start, "unterminated string" );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Steps over a number, true, false or null, up to the next delimiter.
+	 */
+	private void skipLiteral()
+	throws DSFormatException {
+
+		int start = pos;
+		while ( pos < end ) {
+			char c = s.charAt( pos );
+			if ( c == ',' || c == '}' || c == ']' || c == ':' || c == '"' ||
+				 c == '{' || c == '[' || Character.isWhitespace( c ) )
+				break;
+			pos++;
+		}
+		if ( pos == start )
+			throw error( start, "expected a value" );
+	}
+
+	///////////////////////////////
+
+	private void skipWhitespace() {
+		while ( pos < end && Character.isWhitespace( s.charAt( pos ) ) )
+			pos++;
+	}
+
+	///////////////////////////////
+
+	private boolean consume( char c ) {
+		skipWhitespace();
+		if ( pos < end && s.charAt( pos ) == c ) {
+			pos++;
+			return true;
+		}
+		return false;
+	}
+
+	///////////////////////////////
+
+	private void expect( char c, String what )
+	throws DSFormatException {
+		if ( !consume( c ) )
+			throw error( pos, "expected " + what );
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return DSFormatException An error naming the character at which it
+	 * arose, and quoting the text from there on.
+	 */
+	private DSFormatException error( int at, String message ) {
+
+		String context = ( at >= end )
+			? "end of message"
+			: "'" + s.substring( at, Math.min( end, at + CONTEXT_LENGTH ) ) + ( at + CONTEXT_LENGTH < end ? "...'" : "'" );
+		return new DSFormatException( message + " at character " + at + " (" + context + ")" );
+	}
+}
@@ -0,0 +1,388 @@
+package datasphere.dataware;
+
+/*
+Copyright (C) 2010 J.Goulding, R. Mortier
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a {@link DSUpdate} as JSON or XML into an Appendable supplied by the
+ * caller, or as UTF-8 into a ByteBuffer, without building the whole document
+ * as an intermediate string. The serializer holds no state, so may be used
+ * from any number of threads at once. <br/>
+ * <br/>
+ * The JSON written is the same, character for character, as Gson writes for
+ * an update: fields in declaration order, null fields left out, and strings
+ * escaped by Gson's rules (including its escaping of the HTML characters
+ * &lt;, &gt;, &amp; and =). The one difference is that meta data keys are
+ * escaped too, which Gson neglects to do. The XML is the same as
+ * {@link DSUpdate#toXML()} has always written, which escapes nothing. A
+ * batch of updates is written as a JSON array of update objects, as read by
+ * {@link DSUpdateParser#parseBatch(String)}.
+ *
+ * @author James Goulding
+ * @version 2010-12-20
+ */
+public class DSUpdateSerializer {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	///////////////////////////////
+
+	private DSUpdateSerializer() {}
+
+	///////////////////////////////
+
+	/**
+	 * @return String The update as JSON.
+	 */
+	public static String toJSON( DSUpdate u ) {
+		StringBuilder sb = new StringBuilder( 512 );
+		try {
+			writeJSON( u, sb );
+		} catch ( IOException e ) {
+			//-- a StringBuilder never throws
+			throw new RuntimeException( e );
+		}
+		return sb.toString();
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return String The batch of updates as a JSON array.
+	 */
+	public static String toJSON( List< DSUpdate > batch ) {
+		StringBuilder sb = new StringBuilder( 64 + 512 * batch.size() );
+		try {
+			writeJSON( batch, sb );
+		} catch ( IOException e ) {
+			throw new RuntimeException( e );
+		}
+		return sb.toString();
+	}
+
+	///////////////////////////////
+
+	/**
+	 * @return String The update as XML.
+	 */
+	public static String toXML( DSUpdate u ) {
+		StringBuilder sb = new StringBuilder( 512 );
+		try {
+			writeXML( u, sb );
+		} catch ( IOException e ) {
+			throw new RuntimeException( e );
+		}
+		return sb.toString();
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Writes the update as UTF-8 encoded JSON from the buffer's position.
+	 * @throws BufferOverflowException Thrown if the buffer fills first, in
+	 * which case its position is left wherever writing stopped.
+	 */
+	public static void writeJSON( DSUpdate u, ByteBuffer out ) {
+		try {
+			writeJSON( u, new Utf8Appendable( out ) );
+		} catch ( IOException e ) {
+			throw new RuntimeException( e );
+		}
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Writes the update as UTF-8 encoded XML from the buffer's position.
+	 * @throws BufferOverflowException Thrown if the buffer fills first.
+	 */
+	public static void writeXML( DSUpdate u, ByteBuffer out ) {
+		try {
+			writeXML( u, new Utf8Appendable( out ) );
+		} catch ( IOException e ) {
+			throw new RuntimeException( e );
+		}
+	}
+
+	///////////////////////////////
+
+	public static void writeJSON( DSUpdate u, Appendable out )
+	throws IOException {
+
+		boolean first = true;
+		out.append( '{' );
+		first = stringField( out, first, "namespace", u.getNamespace() );
+		first = stringField( out, first, "primaryTag", u.getPrimaryTag() );
+
+		ArrayList< String > tags = u.getTags();
+		if ( tags != null ) {
+			first = name( out, first, "tags" );
+			out.append( '[' );
+			for ( int i = 0; i < tags.size(); i++ ) {
+				if ( i > 0 ) out.append( ',' );
+				string( out, tags.get( i ) );
+			}
+			out.append( ']' );
+		}
+
+		first = longField( out, first, "ctime", u.getCtime() );
+		first = longField( out, first, "ftime", u.getFtime() );
+		first = longField( out, first, "rtime", u.getRtime() );
+		first = stringField( out, first, "sid", u.getSid() );
+
+		DSUpdate.Coordinate loc = u.getLocation();
+		if ( loc != null ) {
+			first = name( out, first, "loc" );
+			out.append( "{\"lat\":" ).append( Double.toString( loc.getLat() ) );
+			out.append( ",\"lon\":" ).append( Double.toString( loc.getLon() ) );
+			out.append( '}' );
+		}
+
+		first = stringField( out, first, "crud", u.getCrud() );
+		first = stringField( out, first, "description", u.getDescription() );
+		first = longField( out, first, "total", u.getTotal() );
+
+		HashMap< String, String > meta = u.getMeta();
+		if ( meta != null ) {
+			first = name( out, first, "meta" );
+			out.append( '{' );
+			boolean firstEntry = true;
+			for ( Map.Entry< String, String > e : meta.entrySet() ) {
+				firstEntry = name( out, firstEntry, e.getKey() );
+				string( out, e.getValue() );
+			}
+			out.append( '}' );
+		}
+		out.append( '}' );
+	}
+
+	///////////////////////////////
+
+	public static void writeJSON( List< DSUpdate > batch, Appendable out )
+	throws IOException {
+
+		out.append( '[' );
+		for ( int i = 0; i < batch.size(); i++ ) {
+			if ( i > 0 ) out.append( ',' );
+			writeJSON( batch.get( i ), out );
+		}
+		out.append( ']' );
+	}
+
+	///////////////////////////////
+
+	public static void writeXML( DSUpdate u, Appendable out )
+	throws IOException {
+
+		out.append( "<DSUpdate>" );
+		element( out, "namespace", u.getNamespace() );
+		element( out, "primaryTag", u.getPrimaryTag() );
+		element( out, "description", u.getDescription() );
+		element( out, "crud", u.getCrud() );
+		element( out, "ctime", u.getCtime() );
+		element( out, "ftime", u.getFtime() );
+		element( out, "rtime", u.getRtime() );
+		element( out, "total", u.getTotal() );
+
+		DSUpdate.Coordinate loc = u.getLocation();
+		if ( loc != null ) {
+			out.append( "<loc>" );
+			out.append( "<lon>" ).append( Double.toString( loc.getLon() ) ).append( "</lon>" );
+			out.append( "<lat>" ).append( Double.toString( loc.getLat() ) ).append( "</lat>" );
+			out.append( "</loc>" );
+		}
+
+		ArrayList< String > tags = u.getTags();
+		if ( tags != null ) {
+			for ( String tag : tags )
+				element( out, "tag", tag );
+		}
+
+		HashMap< String, String > meta = u.getMeta();
+		if ( meta != null ) {
+			out.append( "<meta>" );
+			for ( Map.Entry< String, String > e : meta.entrySet() )
+				element( out, e.getKey(), e.getValue() );
+			out.append( "</meta>" );
+		}
+		out.append( "</DSUpdate>" );
+	}
+
+	///////////////////////////////
+
+	private static void element( Appendable out, String name, Object value )
+	throws IOException {
+		out.append( '<' ).append( name ).append( '>' );
+		if ( value instanceof Long && out instanceof StringBuilder )
+			( ( StringBuilder ) out ).append( ( ( Long ) value ).longValue() );
+		else
+			out.append( String.valueOf( value ) );
+		out.append( "</" ).append( name ).append( '>' );
+	}
+
+	///////////////////////////////
+
+	private static boolean name( Appendable out, boolean first, String name )
+	throws IOException {
+		if ( !first ) out.append( ',' );
+		string( out, name );
+		out.append( ':' );
+		return false;
+	}
+
+	///////////////////////////////
+
+	private static boolean stringField( Appendable out, boolean first, String name, String value )
+	throws IOException {
+		if ( value == null ) return first;
+		name( out, first, name );
+		string( out, value );
+		return false;
+	}
+
+	///////////////////////////////
+
+	private static boolean longField( Appendable out, boolean first, String name, Long value )
+	throws IOException {
+		if ( value == null ) return first;
+		name( out, first, name );
+		if ( out instanceof StringBuilder )
+			( ( StringBuilder ) out ).append( value.longValue() );
+		else
+			out.append( value.toString() );
+		return false;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Writes a quoted string, escaped as Gson escapes it. Runs of characters
+	 * needing no escape are written in one go.
+	 */
+	private static void string( Appendable out, String s )
+	throws IOException {
+
+		if ( s == null ) {
+			out.append( "null" );
+			return;
+		}
+
+		out.append( '"' );
+		int run = 0;
+		for ( int i = 0; i < s.length(); i++ ) {
+			char c = s.charAt( i );
+			if ( !mustEscape( c ) ) continue;
+
+			out.append( s, run, i );
+			run = i + 1;
+			switch ( c ) {
+				case '\b': out.append( "\\b" ); break;
+				case '\t': out.append( "\\t" ); break;
+				case '\n': out.append( "\\n" ); break;
+				case '\f': out.append( "\\f" ); break;
+				case '\r': out.append( "\\r" ); break;
+				case '\\': out.append( "\\\\" ); break;
+				case '"': out.append( "\\\"" ); break;
+				default:
+					out.append( "\\u" )
+						.append( HEX[ ( c >>> 12 ) & 15 ] )
+						.append( HEX[ ( c >>> 8 ) & 15 ] )
+						.append( HEX[ ( c >>> 4 ) & 15 ] )
+						.append( HEX[ c & 15 ] );
+			}
+		}
+		out.append( s, run, s.length() );
+		out.append( '"' );
+	}
+
+	///////////////////////////////
+
+	private static boolean mustEscape( char c ) {
+		return c < 0x20 || c == '"' || c == '\\' ||
+			c == '<' || c == '>' || c == '&' || c == '=' ||
+			( c >= 0x7f && c <= 0x9f ) || c == 0x2028 || c == 0x2029;
+	}
+
+	///////////////////////////////
+
+	/**
+	 * Encodes the characters appended to it as UTF-8 into a ByteBuffer. A
+	 * surrogate pair is encoded as the one character it stands for; an
+	 * unpaired surrogate as '?'.
+	 */
+	private static class Utf8Appendable implements Appendable {
+
+		private final ByteBuffer out;
+		private char high = 0;
+
+		Utf8Appendable( ByteBuffer out ) {
+			this.out = out;
+		}
+
+		public Appendable append( CharSequence s ) {
+			return append( s, 0, s.length() );
+		}
+
+		public Appendable append( CharSequence s, int start, int end ) {
+			if ( s == null ) s = "null";
+			for ( int i = start; i < end; i++ )
+				append( s.charAt( i ) );
+			return this;
+		}
+
+		public Appendable append( char c ) {
+
+			if ( high != 0 ) {
+				char h = high;
+				high = 0;
+				if ( Character.isLowSurrogate( c ) ) {
+					int cp = Character.toCodePoint( h, c );
+					out.put( ( byte ) ( 0xf0 | ( cp >>> 18 ) ) );
+					out.put( ( byte ) ( 0x80 | ( ( cp >>> 12 ) & 0x3f ) ) );
+					out.put( ( byte ) ( 0x80 | ( ( cp >>> 6 ) & 0x3f ) ) );
+					out.put( ( byte ) ( 0x80 | ( cp & 0x3f ) ) );
+					return this;
+				}
+				out.put( ( byte ) '?' );
+			}
+
+			if ( c < 0x80 ) {
+				out.put( ( byte ) c );
+			} else if ( c < 0x800 ) {
+				out.put( ( byte ) ( 0xc0 | ( c >>> 6 ) ) );
+				out.put( ( byte ) ( 0x80 | ( c & 0x3f ) ) );
+			} else if ( Character.isHighSurrogate( c ) ) {
+				high = c;
+			} else if ( Character.isLowSurrogate( c ) ) {
+				out.put( ( byte ) '?' );
+			} else {
+				out.put( ( byte ) ( 0xe0 | ( c >>> 12 ) ) );
+				out.put( ( byte ) ( 0x80 | ( ( c >>> 6 ) & 0x3f ) ) );
+				out.put( ( byte ) ( 0x80 | ( c & 0x3f ) ) );
+			}
+			return this;
+		}
+	}
+}